@@ -0,0 +1,115 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+
+/**
+ * Builds LDAP Assertion controls (RFC 4528). An update sent with the control is only
+ * applied if the entry matches the filter of the control, otherwise the server
+ * answers with the assertionFailed result code and leaves the entry unchanged.
+ * JNDI has no class for the control, so the filter is BER encoded here.
+ *
+ * @author waltz
+ */
+final class AssertionControl {
+
+    /* result code of an update whose assertion does not hold */
+    static final int ASSERTION_FAILED = 122;
+
+    /* BER tags of the filter choices used */
+    private static final int OR = 0xA1;
+    private static final int NOT = 0xA2;
+    private static final int LESS_OR_EQUAL = 0xA6;
+    private static final int PRESENT = 0x87;
+    private static final int OCTET_STRING = 0x04;
+
+    private AssertionControl() {
+    }
+
+    /**
+     * create a critical control asserting (|(!(attributeName=*))(attributeName<=value)),
+     * that the entry has no value of the attribute or one that does not sort after
+     * the given value. The attribute needs an ordering matching rule in the schema.
+     *
+     * @param attributeName
+     * @param value
+     * @return Control
+     */
+    static Control notAfter(String attributeName, String value) {
+        byte[] attribute = utf8(attributeName);
+        byte[] filter = tlv(OR,
+                tlv(NOT, tlv(PRESENT, attribute)),
+                tlv(LESS_OR_EQUAL, tlv(OCTET_STRING, attribute), tlv(OCTET_STRING, utf8(value))));
+        return new BasicControl(LdapControlSupport.ASSERTION_OID, Control.CRITICAL, filter);
+    }
+
+    /**
+     * JNDI has no exception for the assertionFailed result code, only its message
+     * identifies it
+     *
+     * @param ex
+     * @return true if the update was refused because the assertion did not hold
+     */
+    static boolean isAssertionFailed(NamingException ex) {
+        return ex.getMessage() != null && ex.getMessage().startsWith("[LDAP: error code " + ASSERTION_FAILED + " ");
+    }
+
+    /*
+     * a BER element with a definite length
+     */
+    static byte[] tlv(int tag, byte[]... contents) {
+        ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] content : contents) {
+            value.write(content, 0, content.length);
+        }
+        int length = value.size();
+        ByteArrayOutputStream element = new ByteArrayOutputStream();
+        element.write(tag);
+        if (length < 0x80) {
+            element.write(length);
+        } else {
+            int lengthBytes = length > 0xFFFFFF ? 4 : length > 0xFFFF ? 3 : length > 0xFF ? 2 : 1;
+            element.write(0x80 | lengthBytes);
+            for (int i = lengthBytes - 1; i >= 0; i--) {
+                element.write(length >>> (8 * i));
+            }
+        }
+        element.write(value.toByteArray(), 0, length);
+        return element.toByteArray();
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            // every JVM supports UTF-8
+            throw new IllegalStateException(ex);
+        }
+    }
+}
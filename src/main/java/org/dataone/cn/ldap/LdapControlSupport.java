@@ -0,0 +1,115 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Determines which LDAP controls the directory server supports, by reading the
+ * supportedControl attribute of the root DSE. The answer is remembered for the
+ * life of the JVM, since all pooled contexts connect to the same server.
+ *
+ * @author waltz
+ */
+public class LdapControlSupport {
+
+    public static Log log = LogFactory.getLog(LdapControlSupport.class);
+
+    public static final String SUPPORTED_CONTROL = "supportedControl";
+
+    /* draft-ietf-ldapext-psearch persistent search */
+    public static final String PERSISTENT_SEARCH_OID = "2.16.840.1.113730.3.4.3";
+
+    /* Tree Delete, removes an entry together with its subordinates */
+    public static final String TREE_DELETE_OID = "1.2.840.113556.1.4.805";
+
+    /* RFC 4528 assertion, applies an update only if the entry matches a filter */
+    public static final String ASSERTION_OID = "1.3.6.1.1.12";
+
+    private static Map<String, Boolean> supportedControlMap = new ConcurrentHashMap<String, Boolean>();
+
+    private LdapControlSupport() {
+    }
+
+    /**
+     * determine if the server advertises the control in its root DSE.
+     * If the root DSE can not be read the control is reported as unsupported,
+     * and the server is asked again on the next call.
+     *
+     * @param ctx
+     * @param controlOID
+     * @return true if the control is supported
+     */
+    public static boolean isControlSupported(DirContext ctx, String controlOID) {
+        Boolean supported = supportedControlMap.get(controlOID);
+        if (supported != null) {
+            return supported;
+        }
+        try {
+            Attributes rootDSE = ctx.getAttributes("", new String[]{SUPPORTED_CONTROL});
+            supported = Boolean.FALSE;
+            Attribute supportedControls = rootDSE.get(SUPPORTED_CONTROL);
+            if (supportedControls != null) {
+                NamingEnumeration<?> values = supportedControls.getAll();
+                try {
+                    while (values.hasMore()) {
+                        if (controlOID.equals(values.next())) {
+                            supported = Boolean.TRUE;
+                            break;
+                        }
+                    }
+                } finally {
+                    values.close();
+                }
+            }
+            supportedControlMap.put(controlOID, supported);
+            log.info("LDAP control " + controlOID + (supported ? " is" : " is not") + " supported by the server");
+            return supported;
+        } catch (NamingException ex) {
+            log.warn("unable to read the supported controls of the root DSE: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /*
+     * replace the remembered answer for a control, null forgets it so that the
+     * server is asked again. Lets tests simulate a server without the control
+     */
+    static void setControlSupported(String controlOID, Boolean supported) {
+        if (supported == null) {
+            supportedControlMap.remove(controlOID);
+        } else {
+            supportedControlMap.put(controlOID, supported);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+/**
+ * Plans the ModificationItems that bring the attributes of an entry in line with
+ * new values, without contacting LDAP.
+ *
+ * Multi-valued attributes are compared with hash sets, subject DNs by their
+ * standardized form, and only the values that differ are added or removed.
+ * Nothing is planned for an attribute that already holds the new values, so
+ * the size of a plan is its operation count: an empty plan means the entry
+ * does not need to be modified at all.
+ *
+ * @author waltz
+ */
+final class ModificationPlan {
+
+    private final List<ModificationItem> modificationItemList = new ArrayList<ModificationItem>();
+
+    /**
+     * plan the modification of a single-value attribute. A differing value is
+     * replaced, a missing value is added and a null value removes the attribute.
+     *
+     * @param attributeName
+     * @param currentAttribute the attribute of the entry, null if the entry has none
+     * @param newValue
+     * @return this plan
+     * @throws NamingException
+     */
+    ModificationPlan replace(String attributeName, Attribute currentAttribute, String newValue) throws NamingException {
+        boolean present = (currentAttribute != null) && (currentAttribute.size() > 0);
+        if (newValue == null) {
+            if (present) {
+                modificationItemList.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(attributeName)));
+            }
+        } else if (!present) {
+            modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, new BasicAttribute(attributeName, newValue)));
+        } else if (!newValue.equals(currentAttribute.get())) {
+            modificationItemList.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(attributeName, newValue)));
+        }
+        return this;
+    }
+
+    /**
+     * plan the modification of a multi-value attribute. The new values that are not
+     * current are added and the current values that are not new are removed, so there
+     * will be [0..2] modification items. A null newValues is treated as an empty list.
+     *
+     * @param attributeName
+     * @param currentAttribute the attribute of the entry, null if the entry has none
+     * @param newValues
+     * @return this plan
+     * @throws NamingException
+     */
+    ModificationPlan addAndRemove(String attributeName, Attribute currentAttribute, Collection<String> newValues)
+            throws NamingException {
+        return addAndRemove(attributeName, currentAttribute, newValues, false);
+    }
+
+    /**
+     * plan the modification of a multi-value subject attribute, as addAndRemove does,
+     * but a current and a new subject are the same if their standardized DNs are equal
+     *
+     * @param attributeName
+     * @param currentAttribute the attribute of the entry, null if the entry has none
+     * @param newValues
+     * @return this plan
+     * @throws NamingException
+     */
+    ModificationPlan addAndRemoveSubjects(String attributeName, Attribute currentAttribute, Collection<String> newValues)
+            throws NamingException {
+        return addAndRemove(attributeName, currentAttribute, newValues, true);
+    }
+
+    /**
+     * plan the addition of a multi-value attribute the entry does not have yet.
+     * Nothing is planned if the entry has the attribute or there are no values.
+     *
+     * @param attributeName
+     * @param currentAttribute the attribute of the entry, null if the entry has none
+     * @param newValues
+     * @return this plan
+     */
+    ModificationPlan addIfAbsent(String attributeName, Attribute currentAttribute, Collection<String> newValues) {
+        if ((currentAttribute == null) && (newValues != null) && !newValues.isEmpty()) {
+            Attribute additions = new BasicAttribute(attributeName);
+            for (String newValue : newValues) {
+                additions.add(newValue);
+            }
+            modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, additions));
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of modification items planned
+     */
+    int size() {
+        return modificationItemList.size();
+    }
+
+    /**
+     * @return true if the entry does not need to be modified
+     */
+    boolean isEmpty() {
+        return modificationItemList.isEmpty();
+    }
+
+    /**
+     * @return the planned modification items, in the order they were planned
+     */
+    List<ModificationItem> getModificationItemList() {
+        return Collections.unmodifiableList(modificationItemList);
+    }
+
+    /**
+     * @return the planned modification items, as passed to DirContext.modifyAttributes
+     */
+    ModificationItem[] toArray() {
+        return modificationItemList.toArray(new ModificationItem[modificationItemList.size()]);
+    }
+
+    private ModificationPlan addAndRemove(String attributeName, Attribute currentAttribute, Collection<String> newValues,
+            boolean subjects) throws NamingException {
+        if (newValues == null) {
+            newValues = Collections.emptyList();
+        }
+        List<String> currentValues = new ArrayList<String>();
+        if (currentAttribute != null) {
+            for (int i = 0; i < currentAttribute.size(); i++) {
+                currentValues.add((String) currentAttribute.get(i));
+            }
+        }
+        Set<String> currentKeys = comparisonKeys(currentValues, subjects);
+        Set<String> newKeys = comparisonKeys(newValues, subjects);
+
+        Attribute additions = new BasicAttribute(attributeName);
+        for (String newValue : newValues) {
+            // the set also drops values repeated in the new list
+            if (currentKeys.add(comparisonKey(newValue, subjects))) {
+                additions.add(newValue);
+            }
+        }
+        if (additions.size() > 0) {
+            modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, additions));
+        }
+
+        Attribute removals = new BasicAttribute(attributeName);
+        for (String currentValue : currentValues) {
+            if (!newKeys.contains(comparisonKey(currentValue, subjects))) {
+                removals.add(currentValue);
+            }
+        }
+        if (removals.size() > 0) {
+            modificationItemList.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, removals));
+        }
+        return this;
+    }
+
+    /*
+     * subjects are compared by their standardized DN, other values as they are
+     */
+    private static String comparisonKey(String value, boolean subjects) {
+        return subjects ? SubjectNormalizer.getInstance().normalize(value) : value;
+    }
+
+    private static Set<String> comparisonKeys(Collection<String> values, boolean subjects) {
+        Set<String> keys = new HashSet<String>(values.size() * 2);
+        for (String value : values) {
+            keys.add(comparisonKey(value, subjects));
+        }
+        return keys;
+    }
+}
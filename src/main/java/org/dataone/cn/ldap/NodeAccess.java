@@ -22,18 +22,26 @@
 
 package org.dataone.cn.ldap;
 
-import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.naming.CommunicationException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameAlreadyBoundException;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.SizeLimitExceededException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
@@ -42,22 +50,22 @@ import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import javax.security.auth.x500.X500Principal;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
 
-import org.apache.commons.collections.CollectionUtils;
-import org.apache.commons.collections.Transformer;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.IdentifierNotUnique;
 import org.dataone.service.exceptions.InvalidRequest;
 import org.dataone.service.exceptions.NotFound;
 import org.dataone.service.exceptions.NotImplemented;
 import org.dataone.service.exceptions.ServiceFailure;
 import org.dataone.service.types.v1.NodeReference;
 import org.dataone.service.types.v1.NodeReplicationPolicy;
-import org.dataone.service.types.v1.NodeState;
 import org.dataone.service.types.v1.NodeType;
-import org.dataone.service.types.v1.ObjectFormatIdentifier;
 import org.dataone.service.types.v1.Ping;
 import org.dataone.service.types.v1.Schedule;
 import org.dataone.service.types.v1.Service;
@@ -122,7 +130,40 @@ public class NodeAccess extends LDAPService {
 	/* log aggregation elements */
 
     
+    /* the attributes of the child entries of a node that may be modified, in lower case */
+    private static final Set<String> CHILD_ENTRY_ATTRIBUTES = new HashSet<String>();
+    static {
+        for (SearchProjection projection : new SearchProjection[]{SearchProjection.NODE_SERVICE,
+                SearchProjection.SERVICE_METHOD_RESTRICTION, SearchProjection.NODE_PROPERTY}) {
+            for (String attributeName : projection.getAttributes()) {
+                CHILD_ENTRY_ATTRIBUTES.add(attributeName.toLowerCase());
+            }
+        }
+        CHILD_ENTRY_ATTRIBUTES.remove("objectclass");
+    }
+
+    /*
+     * advance-only watermark updates are checked by the server when it supports the Assertion
+     * control, unless the watermark attributes turn out to have no ORDERING matching rule
+     */
+    private static final boolean USE_ASSERTION_CONTROL = Settings.getConfiguration().getBoolean(
+            "noderegistry.watermark.assertionControl", true);
+
+    /* orders the names of entries in a subtree so that children precede their parents */
+    private static final Comparator<LdapName> DEEPEST_FIRST = new Comparator<LdapName>() {
+        @Override
+        public int compare(LdapName name1, LdapName name2) {
+            return name2.size() - name1.size();
+        }
+    };
+
     private static NodeServicesAccess nodeServicesAccess = new NodeServicesAccess();
+
+    /*
+     * whether the Assertion control can compare the values of a watermark attribute,
+     * unknown until an asserted update of the attribute has been refused
+     */
+    private final Map<String, Boolean> orderedWatermarks = new ConcurrentHashMap<String, Boolean>();
     private static NodePropertyAccess nodePropertyAccess = new NodePropertyAccess();
     private static ServiceMethodRestrictionsAccess serviceMethodRestrictionsAccess = new ServiceMethodRestrictionsAccess();
 
@@ -150,55 +191,67 @@ public class NodeAccess extends LDAPService {
     }
 
     /**
-     * return a list of Nodes that are marked approved in LDAP
+     * remove the node and all of its dependent structures from LDAP.
      *
-     * @return List<Node>
+     * The names of the entries in the subtree of the node are read with a single
+     * search. If the server supports the Tree Delete control the node entry is
+     * removed together with its subtree in one request, otherwise the entries are
+     * removed one at a time, children before their parents. If a removal fails
+     * the entries removed so far are reported in the message of the ServiceFailure.
+     *
+     * @param nodeReference
+     * @return List<String> the DNs of the removed entries, children before their parents
      * @throws ServiceFailure
-     * 
+     *
      */
-    protected List<Node> getApprovedNodeList(DirContext ctx) throws ServiceFailure {
-        List<Node> allNode = new ArrayList<Node>();
+    protected List<String> deleteNodeSubtree(DirContext ctx, NodeReference nodeReference) throws ServiceFailure {
+        String nodeDN = buildNodeDN(nodeReference);
+        List<LdapName> entryNames = new ArrayList<LdapName>();
+        List<String> removedEntryNames = new ArrayList<String>();
         try {
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-            log.trace("BASE: " + getBase());
-            NamingEnumeration<SearchResult> results =
-                    ctx.search(getBase(), "(&(objectClass=d1Node)(d1NodeApproved=TRUE))", ctls);
-            
-            while (results != null && results.hasMore()) {
-                SearchResult si = results.next();
-                String nodeDn = si.getNameInNamespace();
-                log.trace("Search result found for: " + nodeDn);
-
-                //return dn;
-                // or we could double check
-                HashMap<String, NamingEnumeration<?>> attributesMap = new HashMap<String, NamingEnumeration<?>>();
-                Attributes attributes = si.getAttributes();
-                NamingEnumeration<? extends Attribute> values = attributes.getAll();
-                while (values.hasMore()) {
-                    Attribute attribute = values.next();
-                    String attributeName = attribute.getID().toLowerCase();
-                    NamingEnumeration<?> attributeValue = attribute.getAll();
-                    attributesMap.put(attributeName, attributeValue);
+            NamingEnumeration<SearchResult> results = ctx.search(nodeDN, "(objectClass=*)",
+                    SearchProjection.ENTRY_NAME.subtreeSearchControls());
+            try {
+                while (results.hasMore()) {
+                    entryNames.add(new LdapName(results.next().getNameInNamespace()));
+                }
+            } finally {
+                results.close();
+            }
+            Collections.sort(entryNames, DEEPEST_FIRST);
+
+            if (ctx instanceof LdapContext
+                    && LdapControlSupport.isControlSupported(ctx, LdapControlSupport.TREE_DELETE_OID)) {
+                LdapContext ldapContext = (LdapContext) ctx;
+                Control[] requestControls = ldapContext.getRequestControls();
+                ldapContext.setRequestControls(new Control[]{
+                    new BasicControl(LdapControlSupport.TREE_DELETE_OID, Control.CRITICAL, null)});
+                try {
+                    ldapContext.destroySubcontext(nodeDN);
+                } finally {
+                    ldapContext.setRequestControls(requestControls);
+                }
+                for (LdapName entryName : entryNames) {
+                    removedEntryNames.add(entryName.toString());
+                }
+            } else {
+                for (LdapName entryName : entryNames) {
+                    ctx.destroySubcontext(entryName);
+                    removedEntryNames.add(entryName.toString());
                 }
-               
-                
-                allNode.add(this.mapBasicNodeProperties(attributesMap, new Node()));
-                values.close();
-                 
             }
-            results.close();
+            log.debug("Removed " + removedEntryNames.size() + " entries of " + nodeDN);
         } catch (CommunicationException ex) {
-            log.error(ex.getMessage(), ex);
+            log.error("LDAP Service is unresponsive " + nodeDN, ex);
             throw new ServiceFailure("-1", "LDAP Service is unresponsive");
-        } catch (Exception e) {
-            
-            log.error("Problem searching Approved Nodes for Nodelist", e);
-            throw new ServiceFailure("-1", e.getMessage());
+        } catch (NamingException ex) {
+            log.error("Problem removing " + nodeDN + ", removed " + removedEntryNames, ex);
+            throw new ServiceFailure("0", "Unable to delete " + nodeDN + ", removed " + removedEntryNames.size()
+                    + " of " + entryNames.size() + " entries " + removedEntryNames + ": " + ex.getMessage());
         }
-        return allNode;
+        return removedEntryNames;
     }
-    
+
     /**
      * return the date the last time a node was harvested for log records
      * the date is not the time the harvesting ran, but
@@ -210,9 +263,16 @@ public class NodeAccess extends LDAPService {
      * 
      */
     protected Date getDateLastHarvested(DirContext ctx, NodeReference nodeReference) throws ServiceFailure {
+        WatermarkBuffer.BufferedWatermark buffered = null;
+        if (WatermarkBuffer.ENABLED) {
+            buffered = WatermarkBuffer.getInstance().getBuffered(nodeReference.getValue(), NODE_LAST_HARVESTED);
+            if (buffered != null && !buffered.isAdvanceOnly()) {
+                return buffered.getValue();
+            }
+        }
         Date logLastAggregated = null;
         try {
-            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference);
+            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference, NODE_LAST_HARVESTED);
             if (attributesMap.containsKey(NODE_LAST_HARVESTED.toLowerCase())) {
                 logLastAggregated = DateTimeMarshaller.deserializeDateToUTC(getEnumerationValueString(attributesMap.get(NODE_LAST_HARVESTED.toLowerCase())));
             }
@@ -221,7 +281,8 @@ public class NodeAccess extends LDAPService {
             log.error("Problem retrieving " + NODE_LAST_HARVESTED.toLowerCase() + " of " + nodeReference.getValue(), e);
             throw new ServiceFailure("4801", "Could retrieve " + NODE_LAST_HARVESTED.toLowerCase() + " from: " + nodeReference.getValue() + " " + e.getMessage());
         }
-        return logLastAggregated;
+        // an advance-only value is not written if the stored value is later
+        return buffered == null ? logLastAggregated : buffered.resolve(logLastAggregated);
     }
     
     /**
@@ -235,9 +296,16 @@ public class NodeAccess extends LDAPService {
      * 
      */
     protected Date getLogLastAggregated(DirContext ctx, NodeReference nodeReference) throws ServiceFailure {
+        WatermarkBuffer.BufferedWatermark buffered = null;
+        if (WatermarkBuffer.ENABLED) {
+            buffered = WatermarkBuffer.getInstance().getBuffered(nodeReference.getValue(), LOG_LAST_AGGREGATED);
+            if (buffered != null && !buffered.isAdvanceOnly()) {
+                return buffered.getValue();
+            }
+        }
         Date logLastAggregated = null;
         try {
-            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference);
+            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference, LOG_LAST_AGGREGATED);
             if (attributesMap.containsKey(LOG_LAST_AGGREGATED.toLowerCase())) {
                 logLastAggregated = DateTimeMarshaller.deserializeDateToUTC(getEnumerationValueString(attributesMap.get(LOG_LAST_AGGREGATED.toLowerCase())));
             }
@@ -246,7 +314,8 @@ public class NodeAccess extends LDAPService {
             log.error("Problem retrieving " + LOG_LAST_AGGREGATED.toLowerCase() + " of " + nodeReference.getValue(), e);
             throw new ServiceFailure("4801", "Could retrieve " + LOG_LAST_AGGREGATED.toLowerCase() + " from: " + nodeReference.getValue() + " " + e.getMessage());
         }
-        return logLastAggregated;
+        // an advance-only value is not written if the stored value is later
+        return buffered == null ? logLastAggregated : buffered.resolve(logLastAggregated);
     }
 
     /**
@@ -261,14 +330,14 @@ public class NodeAccess extends LDAPService {
      */
     protected Node getNode(DirContext dirContext, NodeReference nodeReference) throws NotFound, NamingException, NameNotFoundException {
 
-        HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(dirContext, nodeReference);
+        Attributes attributes = dirContext.getAttributes(buildNodeDN(nodeReference), SearchProjection.NODE.getAttributes());
         log.debug("Retrieved Node for: " + nodeReference.getValue());
 
-        if (attributesMap.isEmpty()) {
+        if (attributes.size() == 0) {
             throw new NotFound("4801", nodeReference.getValue() + " not found on the server");
         }
 
-        return this.mapBasicNodeProperties(attributesMap, new Node());
+        return this.mapNode(attributes);
 
 
     }
@@ -283,9 +352,9 @@ public class NodeAccess extends LDAPService {
      */
     protected Node getApprovedNode(DirContext ctx, NodeReference nodeReference) throws ServiceFailure, NotFound {
         Boolean nodeApproved = false;
-        HashMap<String, NamingEnumeration<?>> attributesMap;
+        Attributes attributes;
         try {
-            attributesMap = buildNodeAttributeMap(ctx, nodeReference);
+            attributes = ctx.getAttributes(buildNodeDN(nodeReference), SearchProjection.APPROVED_NODE.getAttributes());
         } catch (NameNotFoundException e) {
             throw new NotFound("4801", nodeReference.getValue() + " not found on the server");
         } catch (Exception e) {
@@ -293,12 +362,12 @@ public class NodeAccess extends LDAPService {
             log.error("buildNodeAttributeMap- Problem determining approved state " + nodeReference.getValue(), e);
             throw new ServiceFailure("4801", "buildNodeAttributeMap- Could not determine approved state of : " + nodeReference.getValue() + " " + e.getMessage());
         }
-        if (attributesMap.isEmpty()) {
+        if (attributes.size() == 0) {
             throw new NotFound("4801", nodeReference.getValue() + " not found on the server");
         }
-        if (attributesMap.containsKey(NODE_APPROVED.toLowerCase())) {
+        if (attributes.get(NODE_APPROVED) != null) {
             try {
-                nodeApproved = Boolean.valueOf(getEnumerationValueString(attributesMap.get(NODE_APPROVED.toLowerCase())));
+                nodeApproved = Boolean.valueOf((String) attributes.get(NODE_APPROVED).get());
             } catch (Exception e) {
                 e.printStackTrace();
                 log.error("getEnumerationValueString- Problem determining approved state " + nodeReference.getValue(), e);
@@ -314,7 +383,7 @@ public class NodeAccess extends LDAPService {
             throw new NotFound("4801", nodeReference.getValue() + " not approved on the server");
         }
         try {
-            return this.mapBasicNodeProperties(attributesMap, new Node());
+            return this.mapNode(attributes);
         } catch (NameNotFoundException ex) {
             log.warn("Node not found: " + nodeReference.getValue());
             throw new NotFound("4842", ex.getMessage());
@@ -333,7 +402,7 @@ public class NodeAccess extends LDAPService {
     protected Boolean getNodeApproved(DirContext ctx, NodeReference nodeReference) throws ServiceFailure {
         Boolean nodeApproved = false;
         try {
-            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference);
+            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference, NODE_APPROVED);
             if (attributesMap.containsKey(NODE_APPROVED.toLowerCase())) {
                 String nodeApprovedStr = getEnumerationValueString(attributesMap.get(NODE_APPROVED.toLowerCase()));
                 
@@ -348,6 +417,54 @@ public class NodeAccess extends LDAPService {
 
     }
 
+    /**
+     * retrieve the nodes that use either the node identifier or the baseURL,
+     * mapped to their baseUrls. Only the matching entries are read, so the cost
+     * does not depend on the number of registered nodes
+     *
+     * at most two nodes are returned, which is enough to tell whether the identifier
+     * and the baseURL are available for registration
+     *
+     * @param nodeId
+     * @param baseUrl
+     * @return Map<String, String>
+     * @throws ServiceFailure
+     *
+     */
+    protected Map<String, String> getNodeIdList(DirContext ctx, String nodeId, String baseUrl) throws ServiceFailure {
+        Map<String, String> matchingNodeIds = new HashMap<String, String>();
+        try {
+            SearchControls ctls = SearchProjection.NODE_ID_AND_BASEURL.subtreeSearchControls();
+            ctls.setCountLimit(2);
+
+            // the filter arguments are escaped by the provider
+            NamingEnumeration<SearchResult> results = ctx.search(getBase(),
+                    "(&(objectClass=d1Node)(|(" + NODE_ID + "={0})(" + NODE_BASEURL + "={1})))",
+                    new Object[]{nodeId, baseUrl}, ctls);
+            try {
+                while (results != null && results.hasMore()) {
+                    Attributes attributes = results.next().getAttributes();
+                    Attribute nodeIdAttribute = attributes.get(NODE_ID);
+                    Attribute nodeBaseUrlAttribute = attributes.get(NODE_BASEURL);
+                    if (nodeIdAttribute != null) {
+                        matchingNodeIds.put((String) nodeIdAttribute.get(),
+                                nodeBaseUrlAttribute == null ? null : (String) nodeBaseUrlAttribute.get());
+                    }
+                }
+            } catch (SizeLimitExceededException ex) {
+                // more nodes share the baseURL, those read are enough
+                log.debug("node id search for " + nodeId + " and " + baseUrl + " reached its size limit");
+            }
+        } catch (CommunicationException ex) {
+            log.error("LDAP Service is unresponsive searching Nodes for " + nodeId + " and " + baseUrl, ex);
+            throw new ServiceFailure("-1", "LDAP Service is unresponsive");
+        } catch (Exception e) {
+            log.error("Problem search Nodes for " + nodeId + " and " + baseUrl, e);
+            throw new ServiceFailure("-1", e.getMessage());
+        }
+        return matchingNodeIds;
+    }
+
     /**
      * retrieve mapping of all NodeReference values from LDAP
      * to their baseUrls
@@ -358,37 +475,38 @@ public class NodeAccess extends LDAPService {
      * 
      */
     protected Map<String, String> getNodeIdList(DirContext ctx) throws ServiceFailure {
-        Map<String, String> allNodeIds = new HashMap<String, String>();
+        final Map<String, String> allNodeIds = new HashMap<String, String>();
         try {
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-
-            NamingEnumeration<SearchResult> results =
-                    ctx.search(getBase(), "(objectClass=d1Node)", ctls);
-
-            while (results != null && results.hasMore()) {
-                SearchResult si = results.next();
-                String nodeDn = si.getNameInNamespace();
-                log.trace("Search result found for: " + nodeDn);
-
-                //return dn;
-                // or we could double check
-                Attributes attributes = si.getAttributes();
-                NamingEnumeration<? extends Attribute> values = attributes.getAll();
-                String nodeId = null;
-                String nodeBaseUrl = null;
-                while (values.hasMore()) {
-                    Attribute attribute = values.next();
-                    String attributeName = attribute.getID();
-                    if (attributeName.equalsIgnoreCase(NODE_ID)) {
-                        nodeId = (String) attribute.get();
-                    }
-                    if (attributeName.equalsIgnoreCase(NODE_BASEURL)) {
-                        nodeBaseUrl = (String) attribute.get();
+            SearchControls ctls = SearchProjection.NODE_ID_AND_BASEURL.subtreeSearchControls();
+
+            PagedSearch.search(ctx, getBase(), "(objectClass=d1Node)", ctls, new PagedSearch.PageHandler() {
+                @Override
+                public boolean handlePage(List<SearchResult> page) throws NamingException {
+                    for (SearchResult si : page) {
+                        String nodeDn = si.getNameInNamespace();
+                        log.trace("Search result found for: " + nodeDn);
+
+                        //return dn;
+                        // or we could double check
+                        Attributes attributes = si.getAttributes();
+                        NamingEnumeration<? extends Attribute> values = attributes.getAll();
+                        String nodeId = null;
+                        String nodeBaseUrl = null;
+                        while (values.hasMore()) {
+                            Attribute attribute = values.next();
+                            String attributeName = attribute.getID();
+                            if (attributeName.equalsIgnoreCase(NODE_ID)) {
+                                nodeId = (String) attribute.get();
+                            }
+                            if (attributeName.equalsIgnoreCase(NODE_BASEURL)) {
+                                nodeBaseUrl = (String) attribute.get();
+                            }
+                        }
+                        allNodeIds.put(nodeId, nodeBaseUrl);
                     }
+                    return true;
                 }
-                allNodeIds.put(nodeId, nodeBaseUrl);
-            }
+            });
         } catch (CommunicationException ex) {
             ex.printStackTrace();
             throw new ServiceFailure("-1", "LDAP Service is unresponsive");
@@ -411,8 +529,7 @@ public class NodeAccess extends LDAPService {
     protected List<NodeReference> getPendingNodeReferenceList(DirContext ctx) throws ServiceFailure {
         List<NodeReference> allNodeIds = new ArrayList<NodeReference>();
         try {
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            SearchControls ctls = SearchProjection.NODE_ID.subtreeSearchControls();
 
             NamingEnumeration<SearchResult> results =
                     ctx.search(getBase(), "(&(objectClass=d1Node)(d1NodeApproved=FALSE))", ctls);
@@ -474,7 +591,7 @@ public class NodeAccess extends LDAPService {
         // will be dealt with in the logAgg code and not here
         Boolean aggregateLogs = Boolean.valueOf(true);
         try {
-            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference);
+            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeReference, AGGREGATE_LOGS);
             if (attributesMap.containsKey(AGGREGATE_LOGS.toLowerCase())) {
 
                  aggregateLogs =   Boolean.valueOf(getEnumerationValueString(attributesMap.get(AGGREGATE_LOGS.toLowerCase())));
@@ -512,7 +629,7 @@ public class NodeAccess extends LDAPService {
      * @return String of DN
      * 
      */
-    private String buildNodeDN(NodeReference nodeReference) {
+    protected String buildNodeDN(NodeReference nodeReference) {
         return "cn=" + nodeReference.getValue() + ",dc=dataone,dc=org";
     }
 
@@ -522,14 +639,15 @@ public class NodeAccess extends LDAPService {
      * a node entry in ldap
      *
      * @param nodeDN Distinguished name of the DN, provided by buildNodeDN
+     * @param attributeIds the attributes to be read, the others are not returned by the server
      * @return String
      * @throws NamingException
      * 
      */
-    private HashMap<String, NamingEnumeration<?>> buildNodeAttributeMap(DirContext ctx, NodeReference nodeReference) throws NamingException {
+    private HashMap<String, NamingEnumeration<?>> buildNodeAttributeMap(DirContext ctx, NodeReference nodeReference, String... attributeIds) throws NamingException {
         HashMap<String, NamingEnumeration<?>> attributesMap = new HashMap<String, NamingEnumeration<?>>();
         String nodeDN = buildNodeDN(nodeReference);
-        Attributes attributes = ctx.getAttributes(nodeDN);
+        Attributes attributes = ctx.getAttributes(nodeDN, attributeIds);
         NamingEnumeration<? extends Attribute> values = attributes.getAll();
         while (values.hasMore()) {
 
@@ -544,155 +662,77 @@ public class NodeAccess extends LDAPService {
 
     }
     
+    /**
+     * from the Attributes of a d1Node entry returned from an LDAP query, build out
+     * a DataONE Node datatype instance with the basic properties. NodeServices, 
+     * ServiceMethodRestrictions and NodeProperties are not included in this mapping.
+     *
+     * @param attributes
+     * @return Node
+     * @throws NamingException
+     * 
+     */
+    protected Node mapNode(Attributes attributes) throws NamingException {
+        return this.mapBasicNodeProperties(NodeAttribute.slots(attributes), new Node());
+    }
+
 	/**
-	 * from the provided attributeMap returned from an LDAP query, build out
+	 * from the attribute slots of a d1Node entry returned from an LDAP query, build out
 	 * a DataONE Node datatype instance with the basic properties.  Complex 
 	 * sub-types (such as NodeServices) that cannot be expressed as attributes of
 	 * the Node record are not included in this mapping.
 	 *
-	 * @param attributesMap
+	 * @param slots the attributes of the entry, as sorted by NodeAttribute.slots
 	 * @return Node
 	 * @throws NamingException
 	 * 
 	 */
-	private Node mapBasicNodeProperties(HashMap<String, NamingEnumeration<?>> attributesMap, Node node) throws NamingException {
-
-		if (attributesMap.containsKey(NODE_ID.toLowerCase())) {
-			NodeReference nodeReference = new NodeReference();
-
-			nodeReference.setValue(getEnumerationValueString(attributesMap.get(NODE_ID.toLowerCase())));
-			node.setIdentifier(nodeReference);
-		}
-
-		if (attributesMap.containsKey(NODE_NAME.toLowerCase())) {
-			node.setName(getEnumerationValueString(attributesMap.get(NODE_NAME.toLowerCase())));
-		}
-
-		if (attributesMap.containsKey(NODE_BASEURL.toLowerCase())) {
-			node.setBaseURL(getEnumerationValueString(attributesMap.get(NODE_BASEURL.toLowerCase())));
-		}
-
-		if (attributesMap.containsKey(NODE_DESCRIPTION.toLowerCase())) {
-			node.setDescription(getEnumerationValueString(attributesMap.get(NODE_DESCRIPTION.toLowerCase())));
-		}
-
-		if (attributesMap.containsKey(NODE_SUBJECT.toLowerCase())) {
-			NamingEnumeration<?> subjects = attributesMap.get(NODE_SUBJECT.toLowerCase());
-			while (subjects.hasMore()) {
-				Subject nodeSubject = new Subject();
-				String subjectValue = (String) subjects.next();
-				nodeSubject.setValue(subjectValue);
-				try {
-					X500Principal principal = new X500Principal(subjectValue);
-					String standardizedName = principal.getName(X500Principal.RFC2253);
-					nodeSubject.setValue(standardizedName);
-				} catch (IllegalArgumentException iae) {
-					// ignore
+	private Node mapBasicNodeProperties(Attribute[] slots, Node node) throws NamingException {
+
+		readNodeAttributes(slots, node, NodeAttribute.Group.NODE);
+
+		// Here begins the optional params
+
+		// synchronization schedules and status reports are only for MNs
+		if (node.getType() != null && node.getType().compareTo(NodeType.MN) == 0) {
+			// My assumption is if d1NodeSynSchdSec does not exist, then
+			// the node does not have a schedule
+			log.trace("found a Membernode");
+			if (slots[NodeAttribute.SYNC_SCHEDULE_SEC.ordinal()] != null) {
+				Synchronization synchronization = new Synchronization();
+				synchronization.setSchedule(new Schedule());
+				node.setSynchronization(synchronization);
+				readNodeAttributes(slots, node, NodeAttribute.Group.SYNCHRONIZATION);
+				if (WatermarkBuffer.ENABLED) {
+					WatermarkBuffer.getInstance().overlay(node);
 				}
-				node.addSubject(nodeSubject);
 			}
-		}
-		if (attributesMap.containsKey(NODE_CONTACT_SUBJECT.toLowerCase())) {
-			NamingEnumeration<?> contactSubjects = attributesMap.get(NODE_CONTACT_SUBJECT.toLowerCase());
-			while (contactSubjects.hasMore()) {
-				Subject nodeContactSubject = new Subject();
-				String contactSubjectValue = (String) contactSubjects.next();
-				nodeContactSubject.setValue(contactSubjectValue);
-				try {
-					X500Principal principal = new X500Principal(contactSubjectValue);
-					String standardizedName = principal.getName(X500Principal.RFC2253);
-					nodeContactSubject.setValue(standardizedName);
-				} catch (IllegalArgumentException iae) {
-					// ignore
+			// this is optional for a membernode as well
+			if (slots[NodeAttribute.PING_SUCCESS.ordinal()] != null) {
+				node.setPing(new Ping());
+				readNodeAttributes(slots, node, NodeAttribute.Group.PING);
+			}
+			for (NodeAttribute nodeAttribute : NodeAttribute.inGroup(NodeAttribute.Group.REPLICATION_POLICY)) {
+				if (slots[nodeAttribute.ordinal()] != null) {
+					node.setNodeReplicationPolicy(new NodeReplicationPolicy());
+					readNodeAttributes(slots, node, NodeAttribute.Group.REPLICATION_POLICY);
+					break;
 				}
-				node.addContactSubject(nodeContactSubject);
 			}
 		}
-		if (attributesMap.containsKey(NODE_REPLICATE.toLowerCase())) {
-			node.setReplicate(Boolean.valueOf(getEnumerationValueString(attributesMap.get(NODE_REPLICATE.toLowerCase()))));
-		}
-
-		if (attributesMap.containsKey(NODE_SYNCHRONIZE.toLowerCase())) {
-			node.setSynchronize(Boolean.valueOf(getEnumerationValueString(attributesMap.get(NODE_SYNCHRONIZE.toLowerCase()))));
-		}
-
-		if (attributesMap.containsKey(NODE_STATE.toLowerCase())) {
-			node.setState(NodeState.convert(getEnumerationValueString(attributesMap.get(NODE_STATE.toLowerCase()))));
-		}
-
-		if (attributesMap.containsKey(NODE_TYPE.toLowerCase())) {
-			node.setType(NodeType.convert(getEnumerationValueString(attributesMap.get(NODE_TYPE.toLowerCase()))));
-
-			// Here begins the optional params
-
-			// synchronization schedules and status reports are only for MNs
-			if (node.getType().compareTo(NodeType.MN) == 0) {
-				// My assumption is if d1NodeSynSchdSec does not exist, then
-				// the node does not have a schedule
-				log.trace("found a Membernode");
-				if (attributesMap.containsKey(SYNC_SCHEDULE_SEC.toLowerCase())) {
-					Synchronization synchronization = new Synchronization();
-					Schedule schedule = new Schedule();
-					schedule.setSec(getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_SEC.toLowerCase())));
-					schedule.setMin(getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_MIN.toLowerCase())));
-					schedule.setHour(getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_HOUR.toLowerCase())));
-					schedule.setMday(getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_MDAY.toLowerCase())));
-					schedule.setMon(getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_MON.toLowerCase())));
-					schedule.setWday(getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_WDAY.toLowerCase())));
-					schedule.setYear(getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_YEAR.toLowerCase())));
-					synchronization.setSchedule(schedule);
-
-					synchronization.setLastHarvested(DateTimeMarshaller.deserializeDateToUTC(
-							getEnumerationValueString(attributesMap.get(NODE_LAST_HARVESTED.toLowerCase()))));
-					synchronization.setLastCompleteHarvest(DateTimeMarshaller.deserializeDateToUTC(
-							getEnumerationValueString(attributesMap.get(NODE_LAST_COMPLETE_HARVEST.toLowerCase()))));
-					node.setSynchronization(synchronization);
-				}
-				// this is optional for a membernode as well
-				if (attributesMap.containsKey(PING_SUCCESS.toLowerCase())) {
-					Ping ping = new Ping();
-					ping.setSuccess(Boolean.valueOf(
-							getEnumerationValueString(attributesMap.get(PING_SUCCESS.toLowerCase()))));
-					ping.setLastSuccess(DateTimeMarshaller.deserializeDateToUTC(
-							getEnumerationValueString(attributesMap.get(PING_DATE_CHECKED.toLowerCase()))));
-					node.setPing(ping);
-				}
+		return node;
+	}
 
-				NodeReplicationPolicy nrp = null;
-				if (attributesMap.containsKey(REP_POLICY_MAXOBJECTSIZE.toLowerCase())) {
-					if (nrp == null) nrp = new NodeReplicationPolicy();
-					nrp.setMaxObjectSize(new BigInteger(
-							getEnumerationValueString(attributesMap.get(REP_POLICY_MAXOBJECTSIZE.toLowerCase()))));
-				}
-				if (attributesMap.containsKey(REP_POLICY_SPACEALLOCATED.toLowerCase())) {
-					if (nrp == null) nrp = new NodeReplicationPolicy();
-					nrp.setSpaceAllocated(new BigInteger(
-							getEnumerationValueString(attributesMap.get(REP_POLICY_SPACEALLOCATED.toLowerCase()))));
-				}
-				if (attributesMap.containsKey(REP_POLICY_ALLOWEDNODE.toLowerCase())) {
-					if (nrp == null) nrp = new NodeReplicationPolicy();
-					NamingEnumeration<?> allowedNodes = attributesMap.get(REP_POLICY_ALLOWEDNODE.toLowerCase());
-					while (allowedNodes.hasMore()) {
-						NodeReference nr = new NodeReference();
-						nr.setValue( (String) allowedNodes.next());
-						nrp.addAllowedNode(nr);
-					}
-				}
-				if (attributesMap.containsKey(REP_POLICY_ALLOWEDOBJECTFORMAT.toLowerCase())) {
-					if (nrp == null) nrp = new NodeReplicationPolicy();
-					NamingEnumeration<?> allowedFormats = attributesMap.get(REP_POLICY_ALLOWEDOBJECTFORMAT.toLowerCase());
-					while (allowedFormats.hasMore()) {
-						ObjectFormatIdentifier formatid = new ObjectFormatIdentifier();
-						formatid.setValue( (String) allowedFormats.next());
-						nrp.addAllowedObjectFormat(formatid);
-					}
-				}
-				if (nrp != null) {
-					node.setNodeReplicationPolicy(nrp);
-				}
+	/*
+	 * read the attributes of the group that the entry has into the Node
+	 */
+	private static void readNodeAttributes(Attribute[] slots, Node node, NodeAttribute.Group group) throws NamingException {
+		for (NodeAttribute nodeAttribute : NodeAttribute.inGroup(group)) {
+			Attribute attribute = slots[nodeAttribute.ordinal()];
+			if (attribute != null) {
+				nodeAttribute.read(node, attribute);
 			}
 		}
-		return node;
 	}
 
     /**
@@ -713,113 +753,83 @@ public class NodeAccess extends LDAPService {
         nodeAttributes.put(objClasses);
 
         nodeAttributes.put(new BasicAttribute("cn", node.getIdentifier().getValue()));
-
-        nodeAttributes.put(new BasicAttribute(NODE_ID, node.getIdentifier().getValue()));
-        nodeAttributes.put(new BasicAttribute(NODE_NAME, node.getName()));
-        nodeAttributes.put(new BasicAttribute(NODE_DESCRIPTION, node.getDescription()));
-        nodeAttributes.put(new BasicAttribute(NODE_BASEURL, node.getBaseURL()));
-        nodeAttributes.put(new BasicAttribute(NODE_REPLICATE, Boolean.toString(node.isReplicate()).toUpperCase()));
-        nodeAttributes.put(new BasicAttribute(NODE_SYNCHRONIZE, Boolean.toString(node.isSynchronize()).toUpperCase()));
-        nodeAttributes.put(new BasicAttribute(NODE_TYPE, node.getType().xmlValue()));
-        nodeAttributes.put(new BasicAttribute(NODE_STATE, node.getState().xmlValue()));
         nodeAttributes.put(new BasicAttribute(NODE_APPROVED, Boolean.toString(Boolean.FALSE).toUpperCase()));
-        // Any other attributes are membernode only attributes
 
-        if ((node.getSubjectList() != null) && (!node.getSubjectList().isEmpty())) {
-            Attribute subjects = new BasicAttribute(NODE_SUBJECT);
-            for (Subject subject : node.getSubjectList()) {
-                //X500Principal principal = new X500Principal(subject.getValue());
-                //String standardizedName = principal.getName(X500Principal.RFC2253);
-                //subjects.add(standardizedName);
-                // save the subject as it is sent, just standardize upon retrieval
-                subjects.add(subject.getValue());
-            }
-            nodeAttributes.put(subjects);
-        }
-        if ((node.getContactSubjectList() != null) && (!node.getContactSubjectList().isEmpty())) {
-            Attribute contactSubjects = new BasicAttribute(NODE_CONTACT_SUBJECT);
-            for (Subject contactSubject : node.getContactSubjectList()) {
-                //X500Principal principal = new X500Principal(contactSubject.getValue());
-                //String standardizedName = principal.getName(X500Principal.RFC2253);
-                //contactSubjects.add(standardizedName);
-                // save the subject as it is sent, just standardize upon retrieval
-                contactSubjects.add(contactSubject.getValue());
-            }
-            nodeAttributes.put(contactSubjects);
-        } else {
+        if ((node.getContactSubjectList() == null) || (node.getContactSubjectList().isEmpty())) {
             // throw an exception
             throw new NullPointerException("ContactSubjectList may not be null or empty");
         }
+        putNodeAttributes(nodeAttributes, node, NodeAttribute.Group.NODE);
+
+        // Any other attributes are membernode only attributes
         // synchronization schedules and status reports are only for MNs
         if (node.getType().compareTo(NodeType.MN) == 0) {
             // If there is  synchronization
             if (node.getSynchronization() != null) {
-                nodeAttributes.put(new BasicAttribute(SYNC_SCHEDULE_SEC, node.getSynchronization().getSchedule().getSec()));
-                nodeAttributes.put(new BasicAttribute(SYNC_SCHEDULE_MIN, node.getSynchronization().getSchedule().getMin()));
-                nodeAttributes.put(new BasicAttribute(SYNC_SCHEDULE_HOUR, node.getSynchronization().getSchedule().getHour()));
-                nodeAttributes.put(new BasicAttribute(SYNC_SCHEDULE_MDAY, node.getSynchronization().getSchedule().getMday()));
-                nodeAttributes.put(new BasicAttribute(SYNC_SCHEDULE_MON, node.getSynchronization().getSchedule().getMon()));
-                nodeAttributes.put(new BasicAttribute(SYNC_SCHEDULE_WDAY, node.getSynchronization().getSchedule().getWday()));
-                nodeAttributes.put(new BasicAttribute(SYNC_SCHEDULE_YEAR, node.getSynchronization().getSchedule().getYear()));
-                nodeAttributes.put(new BasicAttribute(NODE_LAST_HARVESTED, DEFAULT_NON_HARVEST_DATE));
-                nodeAttributes.put(new BasicAttribute(NODE_LAST_COMPLETE_HARVEST, DEFAULT_NON_HARVEST_DATE));
+                putNodeAttributes(nodeAttributes, node, NodeAttribute.Group.SYNCHRONIZATION);
             }
         }
        
         /* Node Replication Policy items */
-        NodeReplicationPolicy nrp = node.getNodeReplicationPolicy();
-        if (nrp != null)  {
-            if (nrp.getMaxObjectSize() != null)
-                nodeAttributes.put(new BasicAttribute(REP_POLICY_MAXOBJECTSIZE, nrp.getMaxObjectSize().toString()));
-            if (nrp.getSpaceAllocated() != null)
-                nodeAttributes.put(new BasicAttribute(REP_POLICY_SPACEALLOCATED, nrp.getSpaceAllocated().toString()));
-        	if (nrp.getAllowedNodeList() != null && !nrp.getAllowedNodeList().isEmpty()) {
-        		Attribute allowedNodes = new BasicAttribute(REP_POLICY_ALLOWEDNODE);
-        		for (NodeReference nr : nrp.getAllowedNodeList()) {
-        			allowedNodes.add(nr.getValue());
-        		}
-        		nodeAttributes.put(allowedNodes);
-        	}
-        	if (nrp.getAllowedObjectFormatList() != null && !nrp.getAllowedObjectFormatList().isEmpty()) {
-        		Attribute allowedFormats = new BasicAttribute(REP_POLICY_ALLOWEDOBJECTFORMAT);
-        		for (ObjectFormatIdentifier formatid : nrp.getAllowedObjectFormatList()) {
-        			allowedFormats.add(formatid.getValue());
-        		}
-        		nodeAttributes.put(allowedFormats);
-        	}
+        if (node.getNodeReplicationPolicy() != null)  {
+            putNodeAttributes(nodeAttributes, node, NodeAttribute.Group.REPLICATION_POLICY);
         }
  
         return nodeAttributes;
     }
 
+    /*
+     * add an attribute for each attribute of the group that has values in the Node
+     */
+    private static void putNodeAttributes(Attributes nodeAttributes, Node node, NodeAttribute.Group group) {
+        for (NodeAttribute nodeAttribute : NodeAttribute.inGroup(group)) {
+            List<String> values = nodeAttribute.values(node);
+            if (!values.isEmpty()) {
+                Attribute attribute = new BasicAttribute(nodeAttribute.getAttributeName());
+                for (String value : values) {
+                    attribute.add(value);
+                }
+                nodeAttributes.put(attribute);
+            }
+        }
+    }
+
     /**
-     * from the provided Node and AttributesMap returned from a query,
+     * from the provided Node and the attribute slots of the entry returned from a query,
      * fill in the modifiable Attributes that will be used
      * to update the Node in LDAP
      * NodeServices are not including in this mapping
      *
-     * @param attributesMap
+     * @param slots the attributes of the entry, as sorted by NodeAttribute.slots
      * @param node
      * @return List<ModificationItem>
      * @throws NamingException
      * 
      */
-    private List<ModificationItem> mapNodeModificationItemList(HashMap<String, NamingEnumeration<?>> attributesMap, Node node) 
+    protected List<ModificationItem> mapNodeModificationItemList(Attribute[] slots, Node node) 
     throws NamingException {
-        List<ModificationItem> modificationItemList = new ArrayList<ModificationItem>();
+        return planNodeModifications(slots, node).getModificationItemList();
+    }
 
+    /**
+     * plan the modifications of mapNodeModificationItemList, an empty plan
+     * means the node entry does not need to be modified
+     *
+     * @param slots the attributes of the entry, as sorted by NodeAttribute.slots
+     * @param node
+     * @return ModificationPlan
+     * @throws NamingException
+     *
+     */
+    protected ModificationPlan planNodeModifications(Attribute[] slots, Node node) 
+    throws NamingException {
+        ModificationPlan modificationPlan = new ModificationPlan();
 
-        modificationItemList.addAll(calcModifications(NODE_NAME, attributesMap, node.getName()));
-        modificationItemList.addAll(calcModifications(NODE_BASEURL, attributesMap, node.getBaseURL()));
-        modificationItemList.addAll(calcModifications(NODE_DESCRIPTION, attributesMap, node.getDescription()));
-        modificationItemList.addAll(calcSubjectListModifications(NODE_SUBJECT, attributesMap, node.getSubjectList()));
-        modificationItemList.addAll(calcSubjectListModifications(NODE_CONTACT_SUBJECT, attributesMap, node.getContactSubjectList()));
-        modificationItemList.addAll(calcModifications(NODE_REPLICATE, attributesMap, String.valueOf(node.isReplicate()).toUpperCase()));
-        modificationItemList.addAll(calcModifications(NODE_SYNCHRONIZE, attributesMap, String.valueOf(node.isSynchronize()).toUpperCase()));
-        modificationItemList.addAll(calcModifications(NODE_STATE, attributesMap, String.valueOf(node.getState().xmlValue())));
+        calcNodeModifications(modificationPlan, slots, node, NodeAttribute.Group.NODE);
 
-        if (attributesMap.containsKey(NODE_TYPE.toLowerCase())) {
-            NodeType nodeType = NodeType.convert(getEnumerationValueString(attributesMap.get(NODE_TYPE.toLowerCase())));
+        Attribute nodeTypeAttribute = slots[NodeAttribute.TYPE.ordinal()];
+        if (nodeTypeAttribute != null) {
+            NodeType nodeType = NodeType.convert(NodeAttribute.firstValue(nodeTypeAttribute));
 
             // Here begins the optional params, can not change node types!
 
@@ -829,78 +839,58 @@ public class NodeAccess extends LDAPService {
             	
                 // My assumption is if d1NodeSynSchdSec does not exist, then
                 // the node does not have a schedule
-                if (attributesMap.containsKey(SYNC_SCHEDULE_SEC.toLowerCase()) &&
-                		node.getSynchronization() == null) {
-                	 // well you can't remove a schedule, but you can turn off synchronization if you want
-                	log.error("Unable to remove Synchronization for " + node.getIdentifier().getValue());
+                if (node.getSynchronization() == null) {
+                    if (slots[NodeAttribute.SYNC_SCHEDULE_SEC.ordinal()] != null) {
+                        // well you can't remove a schedule, but you can turn off synchronization if you want
+                        log.error("Unable to remove Synchronization for " + node.getIdentifier().getValue());
+                    }
                 } else {
-                    Schedule newSchedule = node.getSynchronization().getSchedule();
-                    log.warn(String.format("%s-%s-%s-%s-%s-%s-%s", newSchedule.getWday(), newSchedule.getYear(), newSchedule.getMon(), newSchedule.getMday(), newSchedule.getHour(), newSchedule.getMin(), newSchedule.getSec()));
-                    modificationItemList.addAll(calcModifications(SYNC_SCHEDULE_SEC, attributesMap, newSchedule.getSec()));
-                    modificationItemList.addAll(calcModifications(SYNC_SCHEDULE_MIN, attributesMap, newSchedule.getMin()));
-                    modificationItemList.addAll(calcModifications(SYNC_SCHEDULE_HOUR, attributesMap, newSchedule.getHour()));
-                    modificationItemList.addAll(calcModifications(SYNC_SCHEDULE_MDAY, attributesMap, newSchedule.getMday()));
-                    modificationItemList.addAll(calcModifications(SYNC_SCHEDULE_MON, attributesMap, newSchedule.getMon()));
-                    modificationItemList.addAll(calcModifications(SYNC_SCHEDULE_WDAY, attributesMap, newSchedule.getWday()));
-                    modificationItemList.addAll(calcModifications(SYNC_SCHEDULE_YEAR, attributesMap, newSchedule.getYear()));
-                }  
-                
-                // default harvest dates are not set on node creation if there wasn't a synchronization
-                // element at that time.  We don't want to overwrite existing ones either in the case of
-                // empty values, so will only create modifications (as additions) if there are no stored values
-                // (these dates get modified in specialized methods in this class)
-                if (!attributesMap.containsKey(NODE_LAST_HARVESTED.toLowerCase()) &&
-                		node.getSynchronization() != null) {
-                	Attribute d1NodeLastHarvested = new BasicAttribute(NODE_LAST_HARVESTED, DEFAULT_NON_HARVEST_DATE);
-                	modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, d1NodeLastHarvested));
-
-                	Attribute d1NodeLastCompleteHarvest = new BasicAttribute(NODE_LAST_COMPLETE_HARVEST, DEFAULT_NON_HARVEST_DATE);
-                	modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, d1NodeLastCompleteHarvest));
-
+                    // default harvest dates are not set on node creation if there wasn't a synchronization
+                    // element at that time.  We don't want to overwrite existing ones either in the case of
+                    // empty values, so will only create modifications (as additions) if there are no stored values
+                    // (these dates get modified in specialized methods in this class)
+                    calcNodeModifications(modificationPlan, slots, node, NodeAttribute.Group.SYNCHRONIZATION);
                 }
             }
             
             /* NodeReplicationPolicy elements and attributes */
             if (node.getNodeReplicationPolicy() != null) {
-                NodeReplicationPolicy rp = node.getNodeReplicationPolicy();
-                
-                modificationItemList.addAll(calcModifications(
-                        REP_POLICY_MAXOBJECTSIZE, 
-                        attributesMap, 
-                        rp.getMaxObjectSize() == null ? null : rp.getMaxObjectSize().toString()
-                        ));
-
-                modificationItemList.addAll(calcModifications(
-                        REP_POLICY_SPACEALLOCATED, 
-                        attributesMap, 
-                        rp.getSpaceAllocated() == null ? null : rp.getSpaceAllocated().toString()
-                        ));
-                modificationItemList.addAll(calcListModifications(
-            			REP_POLICY_ALLOWEDNODE,
-            			attributesMap, 
-            			rp.getAllowedNodeList() == null ? null : CollectionUtils.collect(rp.getAllowedNodeList(),
-            					new Transformer() {
-            				        public Object transform(Object o) {
-            					       return ((NodeReference) o).getValue();
-            				        }
-            			        })
-                		));           		            
-               	modificationItemList.addAll(calcListModifications(
-            			REP_POLICY_ALLOWEDOBJECTFORMAT,
-            			attributesMap, 
-            			rp.getAllowedObjectFormatList() == null ? null : CollectionUtils.collect(rp.getAllowedObjectFormatList(),
-                		        new Transformer() {
-                			        public Object transform(Object o) {
-                				       return ((ObjectFormatIdentifier) o).getValue();
-                			        }
-                		        })
-            			));
+                calcNodeModifications(modificationPlan, slots, node, NodeAttribute.Group.REPLICATION_POLICY);
+            }
+        }
+        return modificationPlan;
+    }
+
+    /*
+     * add the modifications needed to bring the attributes of the group up to date with the Node
+     */
+    private void calcNodeModifications(ModificationPlan modificationPlan, Attribute[] slots, Node node,
+            NodeAttribute.Group group) throws NamingException {
+        for (NodeAttribute nodeAttribute : NodeAttribute.inGroup(group)) {
+            Attribute currentAttribute = slots[nodeAttribute.ordinal()];
+            switch (nodeAttribute.getUpdate()) {
+                case REPLACE:
+                    List<String> values = nodeAttribute.values(node);
+                    modificationPlan.replace(nodeAttribute.getAttributeName(), currentAttribute,
+                            values.isEmpty() ? null : values.get(0));
+                    break;
+                case ADD_AND_REMOVE:
+                    modificationPlan.addAndRemove(nodeAttribute.getAttributeName(), currentAttribute,
+                            nodeAttribute.values(node));
+                    break;
+                case ADD_AND_REMOVE_SUBJECTS:
+                    modificationPlan.addAndRemoveSubjects(nodeAttribute.getAttributeName(), currentAttribute,
+                            nodeAttribute.values(node));
+                    break;
+                case ADD_IF_ABSENT:
+                    modificationPlan.addIfAbsent(nodeAttribute.getAttributeName(), currentAttribute,
+                            nodeAttribute.values(node));
+                    break;
+                default:
+                    break;
             }
         }
-        return modificationItemList;
     }
-    
-    
 
     /**
      * update the date a Member node was last Synchronized
@@ -909,32 +899,40 @@ public class NodeAccess extends LDAPService {
      * the date is the latest dateSysMetadataModified from the last batch of records
      * harvested
      *
+     * With noderegistry.watermark.writeBehind the date is buffered and written
+     * in the background, see WatermarkBuffer
+     *
      * @param nodeIdentifier
      * @param lastDateNodeHarvested
      * @throws ServiceFailure
      * 
      */
     protected void setDateLastHarvested(DirContext ctx, NodeReference nodeIdentifier, Date lastDateNodeHarvested) throws ServiceFailure {
-        try {
-            String dnNodeIdentifier = "cn=" + nodeIdentifier.getValue() + ",dc=dataone,dc=org";
-            Attribute d1NodeLastHarvested = new BasicAttribute(NODE_LAST_HARVESTED, DateTimeMarshaller.serializeDateToUTC(lastDateNodeHarvested));
-            // get a handle to an Initial DirContext
-
-            // construct the list of modifications to make
-            ModificationItem[] mods = new ModificationItem[1];
-            mods[0] = new ModificationItem(DirContext.REPLACE_ATTRIBUTE, d1NodeLastHarvested);
+        if (WatermarkBuffer.ENABLED) {
+            WatermarkBuffer.getInstance().put(nodeIdentifier.getValue(), NODE_LAST_HARVESTED, lastDateNodeHarvested);
+            return;
+        }
+        setWatermark(ctx, nodeIdentifier, NODE_LAST_HARVESTED, lastDateNodeHarvested, false);
+    }
 
-            // make the change
-            ctx.modifyAttributes(dnNodeIdentifier, mods);
-            log.debug("Updated entry: " + dnNodeIdentifier);
-        } catch (CommunicationException ex) {
-            ex.printStackTrace();
-            throw new ServiceFailure("-1", "LDAP Service is unresponsive");
-        } catch (Exception e) {
-            e.printStackTrace();
-            log.error("Problem updating lastHarvested for node " + nodeIdentifier, e);
-            throw new ServiceFailure("4801", "Could not update account: " + e.getMessage());
+    /**
+     * advance the date a Member node was last Synchronized, as setDateLastHarvested
+     * does, unless the stored date is later than the given one.
+     * With noderegistry.watermark.writeBehind the buffered date is advanced instead,
+     * or the date is buffered to be written advance-only, see WatermarkBuffer
+     *
+     * @param nodeIdentifier
+     * @param lastDateNodeHarvested
+     * @return true if the date was written or buffered, false if the stored date, or the
+     *         buffered one, is later
+     * @throws ServiceFailure
+     *
+     */
+    protected boolean advanceDateLastHarvested(DirContext ctx, NodeReference nodeIdentifier, Date lastDateNodeHarvested) throws ServiceFailure {
+        if (WatermarkBuffer.ENABLED) {
+            return WatermarkBuffer.getInstance().advance(nodeIdentifier.getValue(), NODE_LAST_HARVESTED, lastDateNodeHarvested);
         }
+        return setWatermark(ctx, nodeIdentifier, NODE_LAST_HARVESTED, lastDateNodeHarvested, true);
     }
 
     /**
@@ -943,38 +941,146 @@ public class NodeAccess extends LDAPService {
      * LogAggregation uses last aggregated date to poll membernodes for new content
      * the date is the latest dateLogged from the LogEvent records harvested
      *
+     * With noderegistry.watermark.writeBehind the date is buffered and written
+     * in the background, see WatermarkBuffer
+     *
      * @param nodeIdentifier
      * @param logAggregationDate
      * @throws ServiceFailure
      * 
      */
     protected void setLogLastAggregated(DirContext ctx, NodeReference nodeIdentifier, Date logAggregationDate) throws ServiceFailure {
-        try {
-            String dnNodeIdentifier = buildNodeDN(nodeIdentifier);
-            String strLogLastAggregated = DateTimeMarshaller.serializeDateToUTC(logAggregationDate);
-            Attribute d1NodeLogLastAggregated = new BasicAttribute(LOG_LAST_AGGREGATED, strLogLastAggregated);
-            // get a handle to an Initial DirContext
+        if (WatermarkBuffer.ENABLED) {
+            WatermarkBuffer.getInstance().put(nodeIdentifier.getValue(), LOG_LAST_AGGREGATED, logAggregationDate);
+            return;
+        }
+        setWatermark(ctx, nodeIdentifier, LOG_LAST_AGGREGATED, logAggregationDate, false);
+    }
 
-            // construct the list of modifications to make
-            ModificationItem[] mods = new ModificationItem[1];
-            if (getLogLastAggregated(ctx, nodeIdentifier) == null) {
-                mods[0] = new ModificationItem(DirContext.ADD_ATTRIBUTE, d1NodeLogLastAggregated);
-            } else {
-                mods[0] = new ModificationItem(DirContext.REPLACE_ATTRIBUTE, d1NodeLogLastAggregated);
-            }
-            // make the change
-            ctx.modifyAttributes(dnNodeIdentifier, mods);
-            log.debug("set LogLastAggregated: " + dnNodeIdentifier + " to " + strLogLastAggregated);
+    /**
+     * advance the date a DataONE Node was last Aggregated for Log records, as
+     * setLogLastAggregated does, unless the stored date is later than the given one.
+     * With noderegistry.watermark.writeBehind the buffered date is advanced instead,
+     * or the date is buffered to be written advance-only, see WatermarkBuffer
+     *
+     * @param nodeIdentifier
+     * @param logAggregationDate
+     * @return true if the date was written or buffered, false if the stored date, or the
+     *         buffered one, is later
+     * @throws ServiceFailure
+     *
+     */
+    protected boolean advanceLogLastAggregated(DirContext ctx, NodeReference nodeIdentifier, Date logAggregationDate) throws ServiceFailure {
+        if (WatermarkBuffer.ENABLED) {
+            return WatermarkBuffer.getInstance().advance(nodeIdentifier.getValue(), LOG_LAST_AGGREGATED, logAggregationDate);
+        }
+        return setWatermark(ctx, nodeIdentifier, LOG_LAST_AGGREGATED, logAggregationDate, true);
+    }
+
+    /**
+     * write a watermark date of a node with a single REPLACE, which also creates
+     * the attribute if the entry does not have it yet.
+     *
+     * In advance-only mode a stored date later than the given one is kept. When the
+     * server supports the Assertion control, the check is made by the server as part of
+     * the modification, in one round trip. If the attribute has no ORDERING matching rule
+     * the assertion is Undefined and the server refuses the modification as if the stored
+     * date were later. The first refused modification of an attribute is therefore
+     * followed by a read of the stored date: if it is not later, the attribute is not
+     * ordered and its advance-only updates from then on read the stored date before they
+     * replace it. That fallback, also used with noderegistry.watermark.assertionControl=false
+     * and by servers without the control, is not atomic: of two concurrent updates, the
+     * earlier date may be written last.
+     *
+     * @param nodeIdentifier
+     * @param attributeName NODE_LAST_HARVESTED or LOG_LAST_AGGREGATED
+     * @param date
+     * @param advanceOnly if true a stored date later than the given one is kept
+     * @return true if the date was written
+     * @throws ServiceFailure
+     *
+     */
+    protected boolean setWatermark(DirContext ctx, NodeReference nodeIdentifier, String attributeName, Date date,
+            boolean advanceOnly) throws ServiceFailure {
+        try {
+            return writeWatermark(ctx, nodeIdentifier, attributeName, date, advanceOnly);
         } catch (CommunicationException ex) {
             ex.printStackTrace();
             throw new ServiceFailure("-1", "LDAP Service is unresponsive");
         } catch (Exception e) {
             e.printStackTrace();
-            log.error("Problem setting LogLastAggregated " + nodeIdentifier, e);
-            throw new ServiceFailure("4801", "Could not approve node: " + nodeIdentifier + " " + e.getMessage());
+            log.error("Problem setting " + attributeName + " of " + nodeIdentifier.getValue(), e);
+            throw new ServiceFailure("4801", "Could not set " + attributeName + " of " + nodeIdentifier.getValue() + " " + e.getMessage());
         }
     }
 
+    /*
+     * the modification of setWatermark, also used by the write-behind
+     */
+    boolean writeWatermark(DirContext ctx, NodeReference nodeIdentifier, String attributeName, Date date,
+            boolean advanceOnly) throws NamingException {
+        String dnNodeIdentifier = buildNodeDN(nodeIdentifier);
+        String value = DateTimeMarshaller.serializeDateToUTC(date);
+        ModificationItem[] mods = new ModificationItem[1];
+        mods[0] = new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(attributeName, value));
+        if (!advanceOnly) {
+            ctx.modifyAttributes(dnNodeIdentifier, mods);
+        } else if (USE_ASSERTION_CONTROL && !Boolean.FALSE.equals(orderedWatermarks.get(attributeName))
+                && ctx instanceof LdapContext
+                && LdapControlSupport.isControlSupported(ctx, LdapControlSupport.ASSERTION_OID)) {
+            LdapContext ldapContext = (LdapContext) ctx;
+            Control[] requestControls = ldapContext.getRequestControls();
+            ldapContext.setRequestControls(new Control[]{AssertionControl.notAfter(attributeName, value)});
+            boolean refused = false;
+            try {
+                ldapContext.modifyAttributes(dnNodeIdentifier, mods);
+            } catch (NamingException ex) {
+                if (!AssertionControl.isAssertionFailed(ex)) {
+                    throw ex;
+                }
+                refused = true;
+            } finally {
+                ldapContext.setRequestControls(requestControls);
+            }
+            if (refused && orderedWatermarks.get(attributeName) == null) {
+                Date storedDate = getWatermark(ctx, nodeIdentifier, attributeName);
+                if (storedDate != null && storedDate.after(date)) {
+                    orderedWatermarks.put(attributeName, Boolean.TRUE);
+                } else {
+                    log.warn("the Assertion control can not compare the values of " + attributeName
+                            + ", it has no ORDERING matching rule. Advance-only updates read it first");
+                    orderedWatermarks.put(attributeName, Boolean.FALSE);
+                    ctx.modifyAttributes(dnNodeIdentifier, mods);
+                    refused = false;
+                }
+            }
+            if (refused) {
+                log.debug("kept the later " + attributeName + " of " + dnNodeIdentifier + " instead of " + value);
+                return false;
+            }
+        } else {
+            Date storedDate = getWatermark(ctx, nodeIdentifier, attributeName);
+            if (storedDate != null && storedDate.after(date)) {
+                log.debug("kept the later " + attributeName + " of " + dnNodeIdentifier + " instead of " + value);
+                return false;
+            }
+            ctx.modifyAttributes(dnNodeIdentifier, mods);
+        }
+        log.debug("set " + attributeName + ": " + dnNodeIdentifier + " to " + value);
+        return true;
+    }
+
+    /*
+     * read the stored date of a watermark, null if the entry does not have one
+     */
+    private Date getWatermark(DirContext ctx, NodeReference nodeIdentifier, String attributeName) throws NamingException {
+        HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeIdentifier, attributeName);
+        if (!attributesMap.containsKey(attributeName.toLowerCase())) {
+            return null;
+        }
+        return DateTimeMarshaller.deserializeDateToUTC(getEnumerationValueString(attributesMap.get(attributeName.toLowerCase())));
+    }
+
     /**
      * update a registered DataONE Node to be approved (or unapproved if need be)
      *
@@ -1017,14 +1123,21 @@ public class NodeAccess extends LDAPService {
      * @throws NotImplemented
      * @throws InvalidRequest
      * @throws NotFound
+     * @throws IdentifierNotUnique if an entry for the node identifier exists
      * 
      */
-    protected void createNode(DirContext ctx, Node node) throws NotImplemented, ServiceFailure, InvalidRequest, NotFound {
+    protected void createNode(DirContext ctx, Node node) throws NotImplemented, ServiceFailure, InvalidRequest, NotFound, IdentifierNotUnique {
         String dnNodeIdentifier = buildNodeDN(node.getIdentifier());
 
         try {
             Attributes nodeAttributes = mapNodeAttributes(node);
-            ctx.createSubcontext(dnNodeIdentifier, nodeAttributes);
+            try {
+                ctx.createSubcontext(dnNodeIdentifier, nodeAttributes);
+            } catch (NameAlreadyBoundException ex) {
+                // the directory is the authority when two registrations of the identifier race
+                throw new IdentifierNotUnique("4844", node.getIdentifier().getValue()
+                        + " is not available for registration");
+            }
             log.debug("Added Node entry " + dnNodeIdentifier);
             if ((node.getServices() != null) && (node.getServices().sizeServiceList() > 0)) {
                 for (Service service : node.getServices().getServiceList()) {
@@ -1075,78 +1188,46 @@ public class NodeAccess extends LDAPService {
 
             log.info("Updating Node " + nodeid + " ...");
 
-            HashMap<String, NamingEnumeration<?>> attributesMap = buildNodeAttributeMap(ctx, nodeid);
-            List<ModificationItem> modificationItemList = mapNodeModificationItemList(attributesMap, node);
-            for (ModificationItem item: modificationItemList) {
-            	String id = item.getAttribute().getID();
-            	Object value = item.getAttribute().get();
-            	log.debug("updating node attribute: " + id + "=" + value);
-            }
-            ModificationItem[] modificationArray = new ModificationItem[modificationItemList.size()];
-            modificationArray = modificationItemList.toArray(modificationArray);
-            ctx.modifyAttributes(buildNodeDN(nodeid), modificationArray);
-            
-            log.debug("(a) modified using attributesMap");
-
-            // easiest to remove existingServices and then adding the new ones back
-            List<Service> existingNodeServices = nodeServicesAccess.getServiceList(ctx, nodeid.getValue());
-            if ((existingNodeServices != null) && !(existingNodeServices.isEmpty())) {
-                for (Service removeService : existingNodeServices) {
-                    String d1NodeServiceId = nodeServicesAccess.buildNodeServiceId(removeService);
-                    List<ServiceMethodRestriction> serviceMethodRestrictionList = serviceMethodRestrictionsAccess.getServiceMethodRestrictionList(ctx, nodeid.getValue(), d1NodeServiceId);
-                    if ((serviceMethodRestrictionList != null) && !(serviceMethodRestrictionList.isEmpty())) {
-                        for (ServiceMethodRestriction removeServiceMethodRestriction : serviceMethodRestrictionList) {
-                            serviceMethodRestrictionsAccess.deleteServiceMethodRestriction(ctx, nodeid, removeService, removeServiceMethodRestriction);
-                        }
+            // read the node entry and all of its child entries with a single search
+            String nodeDN = buildNodeDN(nodeid);
+            LdapName nodeName = new LdapName(nodeDN);
+            Attributes attributes = null;
+            Map<LdapName, Attributes> storedEntries = new HashMap<LdapName, Attributes>();
+            NamingEnumeration<SearchResult> results = ctx.search(nodeDN, NodeTreeAccess.NODE_TREE_FILTER,
+                    SearchProjection.NODE_TREE.subtreeSearchControls());
+            try {
+                while (results.hasMore()) {
+                    SearchResult si = results.next();
+                    LdapName entryName = new LdapName(si.getNameInNamespace());
+                    if (entryName.equals(nodeName)) {
+                        attributes = si.getAttributes();
+                    } else {
+                        storedEntries.put(entryName, si.getAttributes());
                     }
-                    nodeServicesAccess.deleteNodeService(ctx, nodeid, removeService);
                 }
+            } finally {
+                results.close();
+            }
+            if (attributes == null) {
+                throw new NameNotFoundException(nodeDN);
             }
-            log.debug("(b) removed existing services and service restrictions");
 
-            // add in the services
-            if ((node.getServices() != null) && (node.getServices().sizeServiceList() > 0)) {
-                for (Service service : node.getServices().getServiceList()) {
-                    String serviceDN = nodeServicesAccess.buildNodeServiceDN(node.getIdentifier(), service);
-                    Attributes serviceAttributes = nodeServicesAccess.mapNodeServiceAttributes(node, service);
-                    ctx.createSubcontext(serviceDN, serviceAttributes);
-                    log.trace("updateNodeCapabilities Added Node Service entry " + serviceDN);
-                    if (service.getRestrictionList() != null) {
-                        for (ServiceMethodRestriction restriction : service.getRestrictionList()) {
-                            String serviceMethodRestrictionDN = serviceMethodRestrictionsAccess.buildServiceMethodRestrictionDN(node.getIdentifier(), service, restriction);
-                            Attributes serviceMethodRestrictionAttributes = serviceMethodRestrictionsAccess.mapServiceMethodRestrictionAttributes(node, service, restriction);
-                            ctx.createSubcontext(serviceMethodRestrictionDN, serviceMethodRestrictionAttributes);
-                            log.trace("updateNodeCapabilities Added Service Method Restriction entry " + serviceMethodRestrictionDN);
-                        }
-                    }
-                }
+            ModificationPlan modificationPlan = planNodeModifications(NodeAttribute.slots(attributes), node);
+            for (ModificationItem item: modificationPlan.getModificationItemList()) {
+            	String id = item.getAttribute().getID();
+            	Object value = item.getAttribute().size() > 0 ? item.getAttribute().get() : null;
+            	log.debug("updating node attribute: " + id + "=" + value);
             }
-            log.debug("(c) added the updated services and service restrictions");
-
-            // handle properties
-            List<Property> existingNodeProperties = nodePropertyAccess.getPropertyList(ctx, nodeid.getValue());
-            if ((existingNodeProperties != null) && !(existingNodeProperties.isEmpty())) {
-                for (Property removeProperty : existingNodeProperties) {
-                    if (!removeProperty.getKey().startsWith("CN_"))
-                        nodePropertyAccess.deleteNodeProperty(ctx, nodeid, removeProperty);
-                }
+            // an update that changes nothing is not sent
+            if (!modificationPlan.isEmpty()) {
+                ctx.modifyAttributes(nodeDN, modificationPlan.toArray());
             }
-            log.debug("(d) removed existing properties (except CN-controlled)");
+            
+            log.debug("(a) modified " + modificationPlan.size() + " node attributes");
 
-            // add in the properties
-            if ((node.getPropertyList() != null) && (node.getPropertyList().size() > 0)) {
-                for (Property property : node.getPropertyList()) {
-                    if (!property.getKey().startsWith("CN_")) {
-                        String propertyDN = nodePropertyAccess.buildNodePropertyDN(node.getIdentifier(), property);
-                        Attributes propertyAttributes = nodePropertyAccess.mapNodePropertyAttributes(node, property);
-                        ctx.createSubcontext(propertyDN, propertyAttributes);
-                        log.debug("...Added Node Property entry " + propertyDN);
-                    } else {
-                        log.debug("...Skipped Node Property entry with reserved 'CN_' prefix: " + property.getKey());
-                    }
-                }
-            }
-            log.debug("(e) added the updated properties");
+            // only the services, service restrictions and properties that differ are written
+            updateNodeChildEntries(ctx, storedEntries, mapNodeChildEntries(node));
+            log.debug("(b) updated the services, service restrictions and properties");
 
             log.info("Updated NodeCapabilities Node: " + nodeid.getValue());
         } catch (NamingException ex) {
@@ -1158,6 +1239,146 @@ public class NodeAccess extends LDAPService {
         
     }
 
+
+    /**
+     * from the provided Node, fill in the entries that will be used to create the
+     * d1NodeService, d1ServiceMethodRestriction and d1NodeProperty entries of the node,
+     * keyed by their DN. Properties with the reserved 'CN_' prefix are not included.
+     *
+     * @param node
+     * @return Map<LdapName, Attributes>
+     * @throws InvalidNameException
+     *
+     */
+    protected Map<LdapName, Attributes> mapNodeChildEntries(Node node) throws InvalidNameException {
+        Map<LdapName, Attributes> entries = new LinkedHashMap<LdapName, Attributes>();
+        if ((node.getServices() != null) && (node.getServices().sizeServiceList() > 0)) {
+            for (Service service : node.getServices().getServiceList()) {
+                entries.put(new LdapName(nodeServicesAccess.buildNodeServiceDN(node.getIdentifier(), service)),
+                        nodeServicesAccess.mapNodeServiceAttributes(node, service));
+                if (service.getRestrictionList() != null) {
+                    for (ServiceMethodRestriction restriction : service.getRestrictionList()) {
+                        entries.put(new LdapName(serviceMethodRestrictionsAccess.buildServiceMethodRestrictionDN(node.getIdentifier(), service, restriction)),
+                                serviceMethodRestrictionsAccess.mapServiceMethodRestrictionAttributes(node, service, restriction));
+                    }
+                }
+            }
+        }
+        if ((node.getPropertyList() != null) && (node.getPropertyList().size() > 0)) {
+            for (Property property : node.getPropertyList()) {
+                if (!property.getKey().startsWith("CN_")) {
+                    entries.put(new LdapName(nodePropertyAccess.buildNodePropertyDN(node.getIdentifier(), property)),
+                            nodePropertyAccess.mapNodePropertyAttributes(node, property));
+                } else {
+                    log.debug("...Skipped Node Property entry with reserved 'CN_' prefix: " + property.getKey());
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * bring the child entries of a node in line with the entries mapped from the
+     * submitted Node. Stored entries that are not submitted are removed, deepest first,
+     * except for properties with the reserved 'CN_' prefix. Submitted entries that are not
+     * stored are created in the order they were mapped, so services precede their
+     * restrictions. Entries that are both stored and submitted are only modified if
+     * their attributes differ.
+     *
+     * @param ctx
+     * @param storedEntries the child entries read from LDAP, keyed by their DN
+     * @param entries the child entries mapped from the submitted Node, keyed by their DN
+     * @throws NamingException
+     *
+     */
+    private void updateNodeChildEntries(DirContext ctx, Map<LdapName, Attributes> storedEntries,
+            Map<LdapName, Attributes> entries) throws NamingException {
+
+        List<LdapName> removedEntryNames = new ArrayList<LdapName>();
+        for (Map.Entry<LdapName, Attributes> storedEntry : storedEntries.entrySet()) {
+            if (!entries.containsKey(storedEntry.getKey()) && !isReservedProperty(storedEntry.getValue())) {
+                removedEntryNames.add(storedEntry.getKey());
+            }
+        }
+        Collections.sort(removedEntryNames, DEEPEST_FIRST);
+        for (LdapName entryName : removedEntryNames) {
+            super.removeEntry(ctx, entryName.toString());
+            log.trace("updateNodeCapabilities Removed entry " + entryName);
+        }
+
+        for (Map.Entry<LdapName, Attributes> entry : entries.entrySet()) {
+            Attributes storedAttributes = storedEntries.get(entry.getKey());
+            if (storedAttributes == null) {
+                ctx.createSubcontext(entry.getKey(), entry.getValue());
+                log.trace("updateNodeCapabilities Added entry " + entry.getKey());
+            } else {
+                List<ModificationItem> modificationItemList = calcEntryModifications(storedAttributes, entry.getValue());
+                if (!modificationItemList.isEmpty()) {
+                    ctx.modifyAttributes(entry.getKey(),
+                            modificationItemList.toArray(new ModificationItem[modificationItemList.size()]));
+                    log.trace("updateNodeCapabilities Modified entry " + entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * compare the attributes of a stored child entry with the attributes the entry
+     * would be created with and return the modifications that make them the same.
+     * Only the attributes read by the child entry projections are compared, since
+     * the naming attributes are part of the DN and cannot change.
+     *
+     * @param storedAttributes
+     * @param attributes
+     * @return List<ModificationItem>
+     * @throws NamingException
+     *
+     */
+    protected List<ModificationItem> calcEntryModifications(Attributes storedAttributes, Attributes attributes) throws NamingException {
+        List<ModificationItem> modificationItemList = new ArrayList<ModificationItem>();
+        Map<String, Attribute> storedAttributeMap = new HashMap<String, Attribute>();
+        NamingEnumeration<? extends Attribute> storedValues = storedAttributes.getAll();
+        while (storedValues.hasMore()) {
+            Attribute storedAttribute = storedValues.next();
+            String attributeName = storedAttribute.getID().toLowerCase();
+            if (CHILD_ENTRY_ATTRIBUTES.contains(attributeName)) {
+                storedAttributeMap.put(attributeName, storedAttribute);
+            }
+        }
+        NamingEnumeration<? extends Attribute> values = attributes.getAll();
+        while (values.hasMore()) {
+            Attribute attribute = values.next();
+            String attributeName = attribute.getID().toLowerCase();
+            if (!CHILD_ENTRY_ATTRIBUTES.contains(attributeName)) {
+                continue;
+            }
+            Attribute storedAttribute = storedAttributeMap.remove(attributeName);
+            if ((storedAttribute == null) || !getValueSet(storedAttribute).equals(getValueSet(attribute))) {
+                modificationItemList.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, attribute));
+            }
+        }
+        for (Attribute storedAttribute : storedAttributeMap.values()) {
+            modificationItemList.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, new BasicAttribute(storedAttribute.getID())));
+        }
+        return modificationItemList;
+    }
+
+    /*
+     * CN_ properties are maintained by the CN and are never removed by an update
+     */
+    private static boolean isReservedProperty(Attributes attributes) throws NamingException {
+        Attribute key = attributes.get(NodePropertyAccess.NODE_PROPERTY_KEY);
+        return (key != null) && (key.get() != null) && ((String) key.get()).startsWith("CN_");
+    }
+
+    private static Set<Object> getValueSet(Attribute attribute) throws NamingException {
+        Set<Object> valueSet = new HashSet<Object>();
+        NamingEnumeration<?> values = attribute.getAll();
+        while (values.hasMore()) {
+            valueSet.add(values.next());
+        }
+        return valueSet;
+    }
     
     /**
      * update the aggregate Logs Boolean on a DataONE Node
@@ -1195,27 +1416,28 @@ public class NodeAccess extends LDAPService {
     /**
      * create ModificationItems for the named single-value attribute.  There will
      * be zero or 1 modification item, depending on whether a change is required. 
-     * A null newValue parameter will be treated as empty String, and will result 
-     * in removal of the existing value.
+     * A null newValue parameter will result in removal of the existing value.
      */
-    //TODO: should a Remove operation happen when the newValue is emptyString or null?
-    // (currently a Replace op happens and places an empty string)
     protected List<ModificationItem> calcModifications(String attributeName, HashMap<String, NamingEnumeration<?>> attributesMap, String newValue) 
     throws NamingException 
     {
-    	if (newValue == null) newValue = "";
-    	List<ModificationItem> modificationItemList = new ArrayList<ModificationItem>();
-    	if (attributesMap.containsKey(attributeName.toLowerCase())) {
-    		String currentValue = getEnumerationValueString(attributesMap.get(attributeName.toLowerCase()));
-    		if (!newValue.contentEquals(currentValue)) {
-    			Attribute attr = new BasicAttribute(attributeName, newValue);
-    			modificationItemList.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, attr));
-            }
-        } else {
-            Attribute attr = new BasicAttribute(attributeName, newValue);
-            modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, attr));
-        }
-    	return modificationItemList;
+    	return calcModifications(attributeName, getAttribute(attributeName, attributesMap), newValue);
+    }
+
+    /**
+     * create ModificationItems for the named single-value attribute, as
+     * calcModifications(String, HashMap, String) does, from the current attribute
+     *
+     * @param attributeName
+     * @param currentAttribute the attribute of the entry, null if the entry has none
+     * @param newValue
+     * @return
+     * @throws NamingException
+     */
+    protected List<ModificationItem> calcModifications(String attributeName, Attribute currentAttribute, String newValue) 
+    throws NamingException 
+    {
+    	return new ModificationPlan().replace(attributeName, currentAttribute, newValue).getModificationItemList();
     }
     
 
@@ -1233,62 +1455,46 @@ public class NodeAccess extends LDAPService {
      * @return
      * @throws NamingException
      */
-    @SuppressWarnings("rawtypes")
     protected List<ModificationItem> calcListModifications(String attributeName, 
 			HashMap<String, NamingEnumeration<?>> attributesMap, Collection<String> newValues)
     throws NamingException
     {
-    	if (newValues == null) 
-    		newValues = new ArrayList<String>();
-    	List<ModificationItem> modificationItemList = new ArrayList<ModificationItem>();
-    	
-    	if (attributesMap.containsKey(attributeName.toLowerCase()) || !(newValues.isEmpty())) {
-    		
-    		List<String> existingList = new ArrayList<String>();
-    		if (attributesMap.containsKey(attributeName.toLowerCase())) {
-    			NamingEnumeration enumeration = attributesMap.get(attributeName.toLowerCase());
-    			while (enumeration.hasMoreElements()) {
-    				existingList.add((String)enumeration.nextElement());
-    			}
-    		}
-    		// Determine which attributes to add
-    		// added attributes should be the items in the new subject list
-    		// minus the same items in the existing list
-    		List<String> additionList = new ArrayList<String>();
-    		additionList.addAll(newValues);
-
-    		if (!(existingList.isEmpty()) && !(additionList.isEmpty())) {
-    			additionList.removeAll(existingList);
-    		}
-
-    		if (!additionList.isEmpty()) {
-    			Attribute additions = new BasicAttribute(attributeName);
-
-    			for (String addition : additionList) {
-    				additions.add(addition);
-    			}
-    			modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, additions));
-    		}
-
-    		// Determine which attributes to remove
-    		// removed attributes should be the items in the existing subject list
-    		// minus the same items in the new subject list
-    		List<String> removalList = new ArrayList<String>();
-    		removalList.addAll(existingList);
-    		if (!(newValues.isEmpty()) && !(removalList.isEmpty())) {
-    			removalList.removeAll(newValues);
-    		}
+    	return calcListModifications(attributeName, getAttribute(attributeName, attributesMap), newValues);
+    }
 
-    		if (!removalList.isEmpty()) {
-    			Attribute removals = new BasicAttribute(attributeName);
+    /**
+     * create ModificationItems for the named multi-value attribute, as
+     * calcListModifications(String, HashMap, Collection) does, from the current attribute
+     *
+     * @param attributeName
+     * @param currentAttribute the attribute of the entry, null if the entry has none
+     * @param newValues
+     * @return
+     * @throws NamingException
+     */
+    protected List<ModificationItem> calcListModifications(String attributeName, 
+			Attribute currentAttribute, Collection<String> newValues)
+    throws NamingException
+    {
+    	return new ModificationPlan().addAndRemove(attributeName, currentAttribute, newValues).getModificationItemList();
+    }
 
-    			for (String removal : removalList) {
-    				removals.add(removal);
-    			}
-    			modificationItemList.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, removals));
-    		}
-    	}
-    	return modificationItemList;
+    /**
+     * create ModificationItems for the named multi-value subject attribute, as
+     * calcListModifications(String, Attribute, Collection) does, but a current and
+     * a new subject are the same if their standardized DNs are equal
+     *
+     * @param attributeName
+     * @param currentAttribute the attribute of the entry, null if the entry has none
+     * @param newValues
+     * @return
+     * @throws NamingException
+     */
+    protected List<ModificationItem> calcSubjectListModifications(String attributeName, 
+			Attribute currentAttribute, Collection<String> newValues)
+    throws NamingException
+    {
+    	return new ModificationPlan().addAndRemoveSubjects(attributeName, currentAttribute, newValues).getModificationItemList();
     }
     
     /**
@@ -1307,58 +1513,30 @@ public class NodeAccess extends LDAPService {
 			HashMap<String, NamingEnumeration<?>> attributesMap, List<Subject> newValues)
     throws NamingException
     {
-    	if (newValues == null) 
-    		newValues = new ArrayList<Subject>();
-    	List<ModificationItem> modificationItemList = new ArrayList<ModificationItem>();
-    	
-    	if (attributesMap.containsKey(attributeName.toLowerCase()) || !(newValues.isEmpty())) {
-    		
-    		List<Subject> existingList = new ArrayList<Subject>();
-    		if (attributesMap.containsKey(attributeName.toLowerCase())) {
-    			NamingEnumeration<?> enumeration = attributesMap.get(attributeName.toLowerCase());
-    			while (enumeration.hasMoreElements()) {
-    				Subject s = new Subject();
-    				s.setValue((String)enumeration.nextElement());
-    				existingList.add(s);
-    			}
+    	List<String> newSubjectValues = null;
+    	if (newValues != null) {
+    		newSubjectValues = new ArrayList<String>(newValues.size());
+    		for (Subject subject : newValues) {
+    			newSubjectValues.add(subject.getValue());
     		}
-    		// Determine which attributes to add
-    		// added attributes should be the items in the new subject list
-    		// minus the same items in the existing list
-    		List<Subject> additionList = new ArrayList<Subject>();
-    		additionList.addAll(newValues);
-
-    		if (!(existingList.isEmpty()) && !(additionList.isEmpty())) {
-    			additionList.removeAll(existingList);
-    		}
-
-    		if (!additionList.isEmpty()) {
-    			Attribute additions = new BasicAttribute(attributeName);
-
-    			for (Subject addition : additionList) {
-    				additions.add(addition.getValue());
-    			}
-    			modificationItemList.add(new ModificationItem(DirContext.ADD_ATTRIBUTE, additions));
-    		}
-
-    		// Determine which attributes to remove
-    		// removed attributes should be the items in the existing subject list
-    		// minus the same items in the new subject list
-    		List<Subject> removalList = new ArrayList<Subject>();
-    		removalList.addAll(existingList);
-    		if (!(newValues.isEmpty()) && !(removalList.isEmpty())) {
-    			removalList.removeAll(newValues);
-    		}
-
-    		if (!removalList.isEmpty()) {
-    			Attribute removals = new BasicAttribute(attributeName);
+    	}
+    	return calcSubjectListModifications(attributeName, getAttribute(attributeName, attributesMap), newSubjectValues);
+    }
 
-    			for (Subject removal : removalList) {
-    				removals.add(removal.getValue());
-    			}
-    			modificationItemList.add(new ModificationItem(DirContext.REMOVE_ATTRIBUTE, removals));
-    		}
+    /*
+     * the values of the named attribute in a map built by buildNodeAttributeMap, as an Attribute
+     */
+    private static Attribute getAttribute(String attributeName, HashMap<String, NamingEnumeration<?>> attributesMap)
+    throws NamingException
+    {
+    	NamingEnumeration<?> enumeration = attributesMap.get(attributeName.toLowerCase());
+    	if (enumeration == null) {
+    		return null;
+    	}
+    	Attribute attribute = new BasicAttribute(attributeName);
+    	while (enumeration.hasMore()) {
+    		attribute.add(enumeration.next());
     	}
-    	return modificationItemList;
+    	return attribute;
     }
 }
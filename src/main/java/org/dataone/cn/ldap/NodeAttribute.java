@@ -0,0 +1,567 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.NodeState;
+import org.dataone.service.types.v1.NodeType;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.util.DateTimeMarshaller;
+
+/**
+ * The attributes of a d1Node entry that are mapped to the fields of a Node.
+ *
+ * Each constant describes how its attribute is read into a Node, how its values
+ * are taken from a Node when the entry is created, and how it is updated, so
+ * NodeAccess maps all three directions from this one table. The attributes of an
+ * entry are sorted into an array of slots indexed by ordinal, looked up by the
+ * precomputed lowercase names, instead of being copied into a map for each entry.
+ *
+ * Attributes that are not part of the Node type, such as d1NodeApproved, are
+ * maintained by NodeAccess directly.
+ *
+ * @author waltz
+ */
+enum NodeAttribute {
+
+    IDENTIFIER(NodeAccess.NODE_ID, Group.NODE, Update.NEVER) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            NodeReference nodeReference = new NodeReference();
+            nodeReference.setValue(firstValue(attribute));
+            node.setIdentifier(nodeReference);
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getIdentifier() == null ? null : node.getIdentifier().getValue());
+        }
+    },
+    NAME(NodeAccess.NODE_NAME, Group.NODE, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.setName(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getName());
+        }
+    },
+    BASEURL(NodeAccess.NODE_BASEURL, Group.NODE, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.setBaseURL(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getBaseURL());
+        }
+    },
+    DESCRIPTION(NodeAccess.NODE_DESCRIPTION, Group.NODE, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.setDescription(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getDescription());
+        }
+    },
+    SUBJECT(NodeAccess.NODE_SUBJECT, Group.NODE, Update.ADD_AND_REMOVE_SUBJECTS) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            for (String subjectValue : allValues(attribute)) {
+                node.addSubject(standardizedSubject(subjectValue));
+            }
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return subjectValues(node.getSubjectList());
+        }
+    },
+    CONTACT_SUBJECT(NodeAccess.NODE_CONTACT_SUBJECT, Group.NODE, Update.ADD_AND_REMOVE_SUBJECTS) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            for (String subjectValue : allValues(attribute)) {
+                node.addContactSubject(standardizedSubject(subjectValue));
+            }
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return subjectValues(node.getContactSubjectList());
+        }
+    },
+    REPLICATE(NodeAccess.NODE_REPLICATE, Group.NODE, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.setReplicate(Boolean.valueOf(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(Boolean.toString(node.isReplicate()).toUpperCase());
+        }
+    },
+    SYNCHRONIZE(NodeAccess.NODE_SYNCHRONIZE, Group.NODE, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.setSynchronize(Boolean.valueOf(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(Boolean.toString(node.isSynchronize()).toUpperCase());
+        }
+    },
+    STATE(NodeAccess.NODE_STATE, Group.NODE, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.setState(NodeState.convert(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getState() == null ? null : node.getState().xmlValue());
+        }
+    },
+    /* node types can not be changed */
+    TYPE(NodeAccess.NODE_TYPE, Group.NODE, Update.NEVER) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.setType(NodeType.convert(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getType() == null ? null : node.getType().xmlValue());
+        }
+    },
+    SYNC_SCHEDULE_SEC(NodeAccess.SYNC_SCHEDULE_SEC, Group.SYNCHRONIZATION, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().getSchedule().setSec(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getSynchronization().getSchedule().getSec());
+        }
+    },
+    SYNC_SCHEDULE_MIN(NodeAccess.SYNC_SCHEDULE_MIN, Group.SYNCHRONIZATION, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().getSchedule().setMin(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getSynchronization().getSchedule().getMin());
+        }
+    },
+    SYNC_SCHEDULE_HOUR(NodeAccess.SYNC_SCHEDULE_HOUR, Group.SYNCHRONIZATION, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().getSchedule().setHour(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getSynchronization().getSchedule().getHour());
+        }
+    },
+    SYNC_SCHEDULE_MDAY(NodeAccess.SYNC_SCHEDULE_MDAY, Group.SYNCHRONIZATION, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().getSchedule().setMday(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getSynchronization().getSchedule().getMday());
+        }
+    },
+    SYNC_SCHEDULE_MON(NodeAccess.SYNC_SCHEDULE_MON, Group.SYNCHRONIZATION, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().getSchedule().setMon(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getSynchronization().getSchedule().getMon());
+        }
+    },
+    SYNC_SCHEDULE_WDAY(NodeAccess.SYNC_SCHEDULE_WDAY, Group.SYNCHRONIZATION, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().getSchedule().setWday(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getSynchronization().getSchedule().getWday());
+        }
+    },
+    SYNC_SCHEDULE_YEAR(NodeAccess.SYNC_SCHEDULE_YEAR, Group.SYNCHRONIZATION, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().getSchedule().setYear(firstValue(attribute));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(node.getSynchronization().getSchedule().getYear());
+        }
+    },
+    /* the harvest dates are set by synchronization, a new entry starts with the default */
+    LAST_HARVESTED(NodeAccess.NODE_LAST_HARVESTED, Group.SYNCHRONIZATION, Update.ADD_IF_ABSENT) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().setLastHarvested(DateTimeMarshaller.deserializeDateToUTC(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(NodeAccess.DEFAULT_NON_HARVEST_DATE);
+        }
+    },
+    LAST_COMPLETE_HARVEST(NodeAccess.NODE_LAST_COMPLETE_HARVEST, Group.SYNCHRONIZATION, Update.ADD_IF_ABSENT) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getSynchronization().setLastCompleteHarvest(DateTimeMarshaller.deserializeDateToUTC(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return value(NodeAccess.DEFAULT_NON_HARVEST_DATE);
+        }
+    },
+    PING_SUCCESS(NodeAccess.PING_SUCCESS, Group.PING, Update.NEVER) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getPing().setSuccess(Boolean.valueOf(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return Collections.emptyList();
+        }
+    },
+    PING_DATE_CHECKED(NodeAccess.PING_DATE_CHECKED, Group.PING, Update.NEVER) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getPing().setLastSuccess(DateTimeMarshaller.deserializeDateToUTC(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            return Collections.emptyList();
+        }
+    },
+    REP_POLICY_MAXOBJECTSIZE(NodeAccess.REP_POLICY_MAXOBJECTSIZE, Group.REPLICATION_POLICY, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getNodeReplicationPolicy().setMaxObjectSize(new BigInteger(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            BigInteger maxObjectSize = node.getNodeReplicationPolicy().getMaxObjectSize();
+            return value(maxObjectSize == null ? null : maxObjectSize.toString());
+        }
+    },
+    REP_POLICY_SPACEALLOCATED(NodeAccess.REP_POLICY_SPACEALLOCATED, Group.REPLICATION_POLICY, Update.REPLACE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            node.getNodeReplicationPolicy().setSpaceAllocated(new BigInteger(firstValue(attribute)));
+        }
+
+        @Override
+        List<String> values(Node node) {
+            BigInteger spaceAllocated = node.getNodeReplicationPolicy().getSpaceAllocated();
+            return value(spaceAllocated == null ? null : spaceAllocated.toString());
+        }
+    },
+    REP_POLICY_ALLOWEDNODE(NodeAccess.REP_POLICY_ALLOWEDNODE, Group.REPLICATION_POLICY, Update.ADD_AND_REMOVE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            for (String allowedNode : allValues(attribute)) {
+                NodeReference nodeReference = new NodeReference();
+                nodeReference.setValue(allowedNode);
+                node.getNodeReplicationPolicy().addAllowedNode(nodeReference);
+            }
+        }
+
+        @Override
+        List<String> values(Node node) {
+            List<NodeReference> allowedNodeList = node.getNodeReplicationPolicy().getAllowedNodeList();
+            if (allowedNodeList == null) {
+                return Collections.emptyList();
+            }
+            List<String> values = new ArrayList<String>(allowedNodeList.size());
+            for (NodeReference allowedNode : allowedNodeList) {
+                values.add(allowedNode.getValue());
+            }
+            return values;
+        }
+    },
+    REP_POLICY_ALLOWEDOBJECTFORMAT(NodeAccess.REP_POLICY_ALLOWEDOBJECTFORMAT, Group.REPLICATION_POLICY, Update.ADD_AND_REMOVE) {
+        @Override
+        void read(Node node, Attribute attribute) throws NamingException {
+            for (String allowedObjectFormat : allValues(attribute)) {
+                ObjectFormatIdentifier formatid = new ObjectFormatIdentifier();
+                formatid.setValue(allowedObjectFormat);
+                node.getNodeReplicationPolicy().addAllowedObjectFormat(formatid);
+            }
+        }
+
+        @Override
+        List<String> values(Node node) {
+            List<ObjectFormatIdentifier> allowedObjectFormatList = node.getNodeReplicationPolicy().getAllowedObjectFormatList();
+            if (allowedObjectFormatList == null) {
+                return Collections.emptyList();
+            }
+            List<String> values = new ArrayList<String>(allowedObjectFormatList.size());
+            for (ObjectFormatIdentifier allowedObjectFormat : allowedObjectFormatList) {
+                values.add(allowedObjectFormat.getValue());
+            }
+            return values;
+        }
+    };
+
+    /**
+     * the part of a Node that an attribute belongs to
+     */
+    enum Group {
+
+        /* the fields of every node */
+        NODE,
+
+        /* the synchronization of member nodes, present when d1NodeSynSchdSec is */
+        SYNCHRONIZATION,
+
+        /* the last ping of member nodes, present when d1NodePingSuccess is, and maintained elsewhere */
+        PING,
+
+        /* the replication policy, present when any of its attributes is */
+        REPLICATION_POLICY
+    }
+
+    /**
+     * how an attribute is brought up to date with a modified Node
+     */
+    enum Update {
+
+        /* the attribute is only written when the entry is created */
+        NEVER,
+
+        /* a single value, replaced when it differs */
+        REPLACE,
+
+        /* multiple values, the missing values are added and the others removed */
+        ADD_AND_REMOVE,
+
+        /* as ADD_AND_REMOVE, but the values are subject DNs compared by their standardized form */
+        ADD_AND_REMOVE_SUBJECTS,
+
+        /* written once with the value of the Node, then maintained elsewhere */
+        ADD_IF_ABSENT
+    }
+
+    private static final NodeAttribute[] ATTRIBUTES = values();
+
+    /* keyed by the attribute name as declared and in lowercase */
+    private static final Map<String, NodeAttribute> ATTRIBUTES_BY_NAME = new HashMap<String, NodeAttribute>();
+
+    private static final Map<Group, NodeAttribute[]> ATTRIBUTES_BY_GROUP = new EnumMap<Group, NodeAttribute[]>(Group.class);
+
+    static {
+        Map<Group, List<NodeAttribute>> groups = new EnumMap<Group, List<NodeAttribute>>(Group.class);
+        for (Group group : Group.values()) {
+            groups.put(group, new ArrayList<NodeAttribute>());
+        }
+        for (NodeAttribute nodeAttribute : ATTRIBUTES) {
+            ATTRIBUTES_BY_NAME.put(nodeAttribute.attributeName, nodeAttribute);
+            ATTRIBUTES_BY_NAME.put(nodeAttribute.key, nodeAttribute);
+            groups.get(nodeAttribute.group).add(nodeAttribute);
+        }
+        for (Map.Entry<Group, List<NodeAttribute>> group : groups.entrySet()) {
+            ATTRIBUTES_BY_GROUP.put(group.getKey(), group.getValue().toArray(new NodeAttribute[group.getValue().size()]));
+        }
+    }
+
+    private final String attributeName;
+    private final String key;
+    private final Group group;
+    private final Update update;
+
+    private NodeAttribute(String attributeName, Group group, Update update) {
+        this.attributeName = attributeName;
+        this.key = attributeName.toLowerCase(Locale.ENGLISH);
+        this.group = group;
+        this.update = update;
+    }
+
+    /**
+     * set the field of the Node from the attribute, the part of the Node the attribute
+     * belongs to has been created by the caller
+     *
+     * @param node
+     * @param attribute an attribute with at least one value
+     * @throws NamingException
+     */
+    abstract void read(Node node, Attribute attribute) throws NamingException;
+
+    /**
+     * @param node a Node that has the part the attribute belongs to
+     * @return the values to be stored for the Node, empty if there are none
+     */
+    abstract List<String> values(Node node);
+
+    String getAttributeName() {
+        return attributeName;
+    }
+
+    Group getGroup() {
+        return group;
+    }
+
+    Update getUpdate() {
+        return update;
+    }
+
+    /**
+     * @param attributeName the name of an attribute in any case
+     * @return the NodeAttribute, or null if the attribute is not mapped to the Node
+     */
+    static NodeAttribute forName(String attributeName) {
+        // servers return the names as declared in the schema, so the case is seldom converted
+        NodeAttribute nodeAttribute = ATTRIBUTES_BY_NAME.get(attributeName);
+        if (nodeAttribute == null) {
+            nodeAttribute = ATTRIBUTES_BY_NAME.get(attributeName.toLowerCase(Locale.ENGLISH));
+        }
+        return nodeAttribute;
+    }
+
+    /**
+     * @param group
+     * @return the attributes of the group in table order, the array is shared and must not be modified
+     */
+    static NodeAttribute[] inGroup(Group group) {
+        return ATTRIBUTES_BY_GROUP.get(group);
+    }
+
+    /**
+     * sort the attributes of an entry into slots indexed by the ordinal of their
+     * NodeAttribute, attributes that are not mapped to the Node are left out
+     *
+     * @param attributes
+     * @return an array with a slot for every NodeAttribute, null where the entry has no value
+     * @throws NamingException
+     */
+    static Attribute[] slots(Attributes attributes) throws NamingException {
+        Attribute[] slots = new Attribute[ATTRIBUTES.length];
+        NamingEnumeration<? extends Attribute> values = attributes.getAll();
+        try {
+            while (values.hasMore()) {
+                Attribute attribute = values.next();
+                NodeAttribute nodeAttribute = forName(attribute.getID());
+                if (nodeAttribute != null && attribute.size() > 0) {
+                    slots[nodeAttribute.ordinal()] = attribute;
+                }
+            }
+        } finally {
+            values.close();
+        }
+        return slots;
+    }
+
+    /**
+     * @return the names of all of the attributes, in table order
+     */
+    static String[] attributeNames() {
+        String[] attributeNames = new String[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            attributeNames[i] = ATTRIBUTES[i].attributeName;
+        }
+        return attributeNames;
+    }
+
+    static String firstValue(Attribute attribute) throws NamingException {
+        return (String) attribute.get();
+    }
+
+    static List<String> allValues(Attribute attribute) throws NamingException {
+        List<String> values = new ArrayList<String>(attribute.size());
+        for (int i = 0; i < attribute.size(); i++) {
+            values.add((String) attribute.get(i));
+        }
+        return values;
+    }
+
+    private static List<String> value(String value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(value);
+    }
+
+    private static List<String> subjectValues(List<Subject> subjects) {
+        if (subjects == null) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<String>(subjects.size());
+        SubjectNormalizer subjectNormalizer = SubjectNormalizer.getInstance();
+        for (Subject subject : subjects) {
+            values.add(subjectNormalizer.forWrite(subject.getValue()));
+        }
+        return values;
+    }
+
+    private static Subject standardizedSubject(String subjectValue) {
+        Subject subject = new Subject();
+        subject.setValue(SubjectNormalizer.getInstance().forRead(subjectValue));
+        return subject;
+    }
+}
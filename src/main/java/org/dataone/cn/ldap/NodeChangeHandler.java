@@ -0,0 +1,52 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import javax.naming.NamingException;
+
+/**
+ * Receives the changes to the node registry reported by a NodeRegistryChangeListener.
+ *
+ * The methods are called on the thread that delivers LDAP events and should return quickly.
+ *
+ * @author waltz
+ */
+public interface NodeChangeHandler {
+
+    /**
+     * the node entry, or one of its services, service method restrictions or
+     * properties, was added, modified, renamed or removed. Modifications of
+     * only the watermarks of the node entry are not reported
+     *
+     * @param nodeId the identifier of the affected node
+     */
+    void nodeChanged(String nodeId);
+
+    /**
+     * the listener has stopped receiving changes, any cached data can no
+     * longer be trusted to be current
+     *
+     * @param ex the reason the listener failed
+     */
+    void changeListenerFailed(NamingException ex);
+}
@@ -5,26 +5,26 @@
  */
 package org.dataone.cn.ldap;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 import javax.naming.directory.DirContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
 import org.dataone.service.exceptions.IdentifierNotUnique;
 import org.dataone.service.exceptions.InvalidRequest;
 import org.dataone.service.exceptions.NotFound;
 import org.dataone.service.exceptions.NotImplemented;
 import org.dataone.service.exceptions.ServiceFailure;
 import org.dataone.service.types.v1.NodeReference;
-import org.dataone.service.types.v1.Service;
-import org.dataone.service.types.v1.ServiceMethodRestriction;
-import org.dataone.service.types.v1.Services;
 import org.dataone.service.types.v2.Node;
 import org.dataone.service.types.v2.NodeList;
-import org.dataone.service.types.v2.Property;
 
 /**
  * Expose public access to protected methods in NodeAccess, NodePropertyAccess, NodeServicesAccess and
@@ -38,14 +38,17 @@ public class NodeFacade {
 
     public static Log log = LogFactory.getLog(NodeFacade.class);
     private static NodeAccess nodeAccess = new NodeAccess();
-    private static NodeServicesAccess nodeServicesAccess = new NodeServicesAccess();
-    private static NodePropertyAccess nodePropertyAccess = new NodePropertyAccess();
-    private static ServiceMethodRestrictionsAccess serviceMethodRestrictionsAccess = new ServiceMethodRestrictionsAccess();
+    private static NodeTreeAccess nodeTreeAccess = new NodeTreeAccess();
     private static DirContextProvider dirContextProvider = DirContextProvider.getInstance();
+    private static NodeIdIndex nodeIdIndex = new NodeIdIndex(Settings.getConfiguration().getLong(
+            "noderegistry.nodeIdIndex.refreshInterval", 60L) * 1000L);
     /*
      * Retreive a list of nodes that have been registered and approved
      * with the DataONE infrastructure.
      *
+     * The nodes, their services, restrictions and properties are all
+     * retrieved with a single subtree search
+     *
      * @author waltz
      * @return a DataONE NodeList
      * @throws ServiceFailure
@@ -67,39 +70,9 @@ public class NodeFacade {
         }
         try {
             nodeList = new NodeList();
-            List<Node> allNodes = nodeAccess.getApprovedNodeList(dirContext);
+            List<Node> allNodes = nodeTreeAccess.getApprovedNodeList(dirContext);
             if (log.isDebugEnabled())
                     log.debug("found " + allNodes.size() + " nodes");
-            for (Node node : allNodes) {
-
-                String nodeIdentifier = node.getIdentifier().getValue();
-                if (log.isTraceEnabled())
-                    log.trace(nodeIdentifier + " " + node.getName() + " " + node.getBaseURL());
-                List<Service> serviceList = nodeServicesAccess.getServiceList(dirContext, nodeIdentifier);
-                if (!serviceList.isEmpty()) {
-                    for (Service service : serviceList) {
-                        String nodeServiceId = nodeServicesAccess.buildNodeServiceId(service);
-
-                        if (log.isTraceEnabled()) 
-                            log.trace("\t has service " + nodeServiceId);
-                        List<ServiceMethodRestriction> restrictionList = serviceMethodRestrictionsAccess
-                                .getServiceMethodRestrictionList(dirContext, nodeIdentifier, nodeServiceId);
-                        if (log.isTraceEnabled())
-                            for (ServiceMethodRestriction restrict : restrictionList) {
-                                log.trace("\t\t has restriction" + restrict.getMethodName());
-                            }
-                        service.setRestrictionList(restrictionList);
-                    }
-                    Services services = new Services();
-                    services.setServiceList(serviceList);
-                    node.setServices(services);
-                }
-
-                // set the property list
-                List<Property> propertyList = nodePropertyAccess.getPropertyList(dirContext, nodeIdentifier);
-                node.setPropertyList(propertyList);
-
-            }
             nodeList.setNodeList(allNodes);
 
         } finally {
@@ -109,6 +82,162 @@ public class NodeFacade {
 
     }
 
+    /*
+     * Walk the nodes that have been registered and approved with the DataONE
+     * infrastructure, handing each fully populated node to the visitor as it
+     * is read, without building a NodeList.
+     *
+     * The LDAP Directory Context is held for the whole walk, and returned to
+     * the pool once the last node is visited, the visitor ends the walk, or
+     * an exception is thrown.
+     *
+     * @author waltz
+     * @param NodeVisitor receives each approved node
+     * @throws ServiceFailure
+     *
+     */
+    public void forEachApprovedNode(NodeVisitor visitor) throws ServiceFailure {
+        DirContext dirContext = null;
+        try {
+            dirContext = dirContextProvider.borrowDirContext();
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("4801", ex.getMessage());
+        }
+        if (dirContext == null) {
+            throw new ServiceFailure("4801", "Context is null. Unable to retrieve LDAP Directory Context from pool. Please try again.");
+        }
+        try {
+            nodeTreeAccess.forEachApprovedNode(dirContext, visitor);
+        } finally {
+            dirContextProvider.returnDirContext(dirContext);
+        }
+    }
+
+    /*
+     * Retreive the identifiers of the nodes that have been created or modified,
+     * or had a service, restriction or property created or modified, at or
+     * after the given date
+     *
+     * @author waltz
+     * @param Date the earliest modification time of interest
+     * @return a Set of Node Identifier values
+     * @throws ServiceFailure
+     *
+     */
+    public Set<String> getModifiedNodeIds(Date since) throws ServiceFailure {
+        DirContext dirContext = null;
+        Set<String> modifiedNodeIds = null;
+        try {
+            dirContext = dirContextProvider.borrowDirContext();
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("4801", ex.getMessage());
+        }
+        if (dirContext == null) {
+            throw new ServiceFailure("4801", "Context is null. Unable to retrieve LDAP Directory Context from pool. Please try again.");
+        }
+        try {
+            modifiedNodeIds = nodeTreeAccess.getModifiedNodeIds(dirContext, since);
+        } finally {
+            dirContextProvider.returnDirContext(dirContext);
+        }
+        return modifiedNodeIds;
+    }
+
+    /*
+     * Retreive the fully populated nodes among the given identifiers that
+     * are approved. Nodes that do not exist or are not approved are absent
+     * from the returned Map
+     *
+     * @author waltz
+     * @param Collection the Node Identifier values to be retreived
+     * @return a Map of DataONE Nodes keyed by Node Identifier value
+     * @throws ServiceFailure
+     *
+     */
+    public Map<String, Node> getApprovedNodes(Collection<String> nodeIds) throws ServiceFailure {
+        DirContext dirContext = null;
+        Map<String, Node> approvedNodes = null;
+        try {
+            dirContext = dirContextProvider.borrowDirContext();
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("4801", ex.getMessage());
+        }
+        if (dirContext == null) {
+            throw new ServiceFailure("4801", "Context is null. Unable to retrieve LDAP Directory Context from pool. Please try again.");
+        }
+        try {
+            approvedNodes = nodeTreeAccess.getApprovedNodes(dirContext, nodeIds);
+        } finally {
+            dirContextProvider.returnDirContext(dirContext);
+        }
+        return approvedNodes;
+    }
+
+    /*
+     * Count the LDAP entries that make up each approved node: the node itself,
+     * and its services, restrictions and properties
+     *
+     * @author waltz
+     * @return a Map of entry counts keyed by Node Identifier value
+     * @throws ServiceFailure
+     *
+     */
+    public Map<String, Integer> getApprovedNodeEntryCounts() throws ServiceFailure {
+        DirContext dirContext = null;
+        Map<String, Integer> entryCounts = null;
+        try {
+            dirContext = dirContextProvider.borrowDirContext();
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("4801", ex.getMessage());
+        }
+        if (dirContext == null) {
+            throw new ServiceFailure("4801", "Context is null. Unable to retrieve LDAP Directory Context from pool. Please try again.");
+        }
+        try {
+            entryCounts = nodeTreeAccess.getApprovedNodeEntryCounts(dirContext);
+        } finally {
+            dirContextProvider.returnDirContext(dirContext);
+        }
+        return entryCounts;
+    }
+
+    /*
+     * Retreive a list of nodes that have been registered but not yet approved
+     * with the DataONE infrastructure.
+     *
+     * The nodes, their services, restrictions and properties are all
+     * retrieved with a single subtree search
+     *
+     * @author waltz
+     * @return a DataONE NodeList
+     * @throws ServiceFailure
+     *
+     */
+    public NodeList getPendingNodeList() throws ServiceFailure {
+        DirContext dirContext = null;
+        NodeList nodeList = null;
+        try {
+            dirContext = dirContextProvider.borrowDirContext();
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("14800", ex.getMessage());
+        }
+        if (dirContext == null) {
+            throw new ServiceFailure("14800", "Context is null. Unable to retrieve LDAP Directory Context from pool. Please try again.");
+        }
+        try {
+            nodeList = new NodeList();
+            nodeList.setNodeList(nodeTreeAccess.getPendingNodeList(dirContext));
+        } finally {
+            dirContextProvider.returnDirContext(dirContext);
+        }
+        return nodeList;
+    }
+
     public List<NodeReference> getPendingNodeReferenceList() throws ServiceFailure {
         DirContext dirContext = null;
         List<NodeReference> pendingNodeReferenceList = null;
@@ -132,6 +261,9 @@ public class NodeFacade {
      * Retreive a node that has been registered, but not necessarily approved,
      * within the DataONE infrastructure.
      *
+     * The node, its services, restrictions and properties are all
+     * retrieved with a single subtree search rooted at the node entry
+     *
      * @author waltz
      * @param NodeReference The Node Identifier to be retreived
      * @return a DataONE Node
@@ -155,7 +287,7 @@ public class NodeFacade {
         Node node = null;
         try {
             try {
-                node = nodeAccess.getNode(dirContext, nodeReference);
+                node = nodeTreeAccess.getNode(dirContext, nodeReference);
             } catch (NameNotFoundException ex) {
                 log.warn("Node not found: " + nodeReference.getValue());
                 throw new NotFound("4824", ex.getMessage());
@@ -166,22 +298,6 @@ public class NodeFacade {
             if (log.isDebugEnabled())
                 log.debug(nodeReference.getValue() + " " + node.getName() + " " + node.getBaseURL() + " "
                     + node.getBaseURL());
-            List<Service> serviceList = nodeServicesAccess.getServiceList(dirContext, nodeReference.getValue());
-            if (!serviceList.isEmpty()) {
-                for (Service service : serviceList) {
-                    String nodeServiceId = nodeServicesAccess.buildNodeServiceId(service);
-
-                    service.setRestrictionList(serviceMethodRestrictionsAccess
-                            .getServiceMethodRestrictionList(dirContext, node.getIdentifier().getValue(),
-                                    nodeServiceId));
-                }
-                Services services = new Services();
-                services.setServiceList(serviceList);
-                node.setServices(services);
-            }
-            // set the property list
-            List<Property> propertyList = nodePropertyAccess.getPropertyList(dirContext, nodeReference.getValue());
-            node.setPropertyList(propertyList);
         } finally {
             dirContextProvider.returnDirContext(dirContext);
         }
@@ -220,6 +336,8 @@ public class NodeFacade {
         } finally {
             dirContextProvider.returnDirContext(dirContext);
         }
+        // the index is updated without holding a context, since loading it borrows one
+        nodeIdIndex.put(node.getIdentifier().getValue(), node.getBaseURL());
     }
 
     /*
@@ -253,6 +371,7 @@ public class NodeFacade {
         } finally {
             dirContextProvider.returnDirContext(dirContext);
         }
+        nodeIdIndex.put(node.getIdentifier().getValue(), node.getBaseURL());
 
     }
 
@@ -263,11 +382,11 @@ public class NodeFacade {
      *
      * @author waltz
      * @param NodeReference The Node Identifier to be removed
-     * @return true upon success (?)
+     * @return the DNs of the removed entries, empty if the node is approved
      * @throws ServiceFailure
      * 
      */
-    public void deleteNode(NodeReference nodeReference) throws ServiceFailure {
+    public List<String> deleteNode(NodeReference nodeReference) throws ServiceFailure {
         DirContext dirContext = null;
 
         try {
@@ -279,54 +398,26 @@ public class NodeFacade {
         if (dirContext == null) {
             throw new ServiceFailure("14801", "Context is null. Unable to retrieve LDAP Directory Context from pool. Please try again.");
         }
+        List<String> removedEntryNames = new ArrayList<String>();
+        boolean deleted = false;
         try {
             if (!nodeAccess.getNodeApproved(dirContext, nodeReference)) {
-                List<Service> services = nodeServicesAccess.getServiceList(dirContext, nodeReference.getValue());
-                if ((services != null) && (services.size() > 0)) {
-                    for (Service service : services) {
-                        if (log.isDebugEnabled())
-                            log.debug("deleteNode Service: " + service.getName());
-                        List<ServiceMethodRestriction> serviceRestrictionList = serviceMethodRestrictionsAccess
-                                .getServiceMethodRestrictionList(dirContext, nodeReference.getValue(),
-                                        nodeServicesAccess.buildNodeServiceId(service));
-                        if (serviceRestrictionList != null) {
-                            for (ServiceMethodRestriction restriction : serviceRestrictionList) {
-                                
-                                if (log.isDebugEnabled())
-                                    log.debug("deleteNode deleting " + serviceMethodRestrictionsAccess
-                                        .buildServiceMethodRestrictionDN(nodeReference, service, restriction));
-                                
-                                if (!serviceMethodRestrictionsAccess.deleteServiceMethodRestriction(dirContext,
-                                        nodeReference, service, restriction)) {
-
-                                    throw new ServiceFailure(
-                                            "0",
-                                            "Unable to delete restriction "
-                                            + serviceMethodRestrictionsAccess
-                                            .buildServiceMethodRestrictionDN(
-                                                    nodeReference, service, restriction));
-                                }
-                            }
-                        }
-                        if (!nodeServicesAccess.deleteNodeService(dirContext, nodeReference, service)) {
-                            throw new ServiceFailure("0", "Unable to delete service "
-                                    + nodeServicesAccess.buildNodeServiceDN(nodeReference, service));
-                        }
-                    }
-                }
-                // delete the properties
-                List<Property> propertyList = nodePropertyAccess.getPropertyList(dirContext, nodeReference
-                        .getValue());
-                if (propertyList != null && propertyList.size() > 0) {
-                    for (Property property : propertyList) {
-                        nodePropertyAccess.deleteNodeProperty(dirContext, nodeReference, property);
-                    }
-                }
-                nodeAccess.deleteNode(dirContext, nodeReference);
+                removedEntryNames = nodeAccess.deleteNodeSubtree(dirContext, nodeReference);
+                deleted = true;
             }
         } finally {
             dirContextProvider.returnDirContext(dirContext);
         }
+        if (deleted) {
+            // the index is updated without holding a context, since loading it borrows one
+            nodeIdIndex.remove(nodeReference.getValue());
+            if (WatermarkBuffer.ENABLED) {
+                WatermarkBuffer.getInstance().remove(nodeReference.getValue());
+            }
+        }
+        if (log.isDebugEnabled())
+            log.debug("deleteNode removed " + removedEntryNames);
+        return removedEntryNames;
     }
 
     /*
@@ -382,6 +473,104 @@ public class NodeFacade {
         return nodeIdList;
     }
 
+    /*
+     * Retreive the registered nodes, approved or not, that use either the node
+     * identifier or the baseURL, with a single targeted search. At most two
+     * nodes are returned
+     *
+     * @author waltz
+     * @param String the Node Identifier value
+     * @param String the baseURL
+     * @return a Map of baseURLs keyed by Node Identifier value
+     * @throws ServiceFailure
+     *
+     */
+    public Map<String, String> getNodeIdList(String nodeId, String baseUrl) throws ServiceFailure {
+        DirContext dirContext = null;
+        Map<String, String> nodeIdList = null;
+
+        try {
+            dirContext = dirContextProvider.borrowDirContext();
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("14803", ex.getMessage());
+        }
+        if (dirContext == null) {
+            throw new ServiceFailure("14803", "Context is null. Unable to retrieve LDAP Directory Context from pool. Please try again.");
+        }
+
+        try {
+            nodeIdList = nodeAccess.getNodeIdList(dirContext, nodeId, baseUrl);
+        } finally {
+            dirContextProvider.returnDirContext(dirContext);
+        }
+        return nodeIdList;
+    }
+
+    /*
+     * Determine if a node with the identifier is registered, whether approved or not.
+     *
+     * Answered from the in memory NodeIdIndex, which is loaded again once it is older than
+     * noderegistry.nodeIdIndex.refreshInterval seconds
+     *
+     * @author waltz
+     * @param String the Node Identifier value
+     * @return true if the node is registered
+     * @throws ServiceFailure
+     *
+     */
+    public boolean isRegistered(String nodeId) throws ServiceFailure {
+        return getNodeIdIndex().containsNodeId(nodeId);
+    }
+
+    /*
+     * Find the node registered with the baseURL, whether approved or not.
+     *
+     * Answered from the in memory NodeIdIndex, which is loaded again once it is older than
+     * noderegistry.nodeIdIndex.refreshInterval seconds
+     *
+     * @author waltz
+     * @param String the baseURL
+     * @return the Node Identifier value, or null if no node uses the baseURL
+     * @throws ServiceFailure
+     *
+     */
+    public String findByBaseUrl(String baseUrl) throws ServiceFailure {
+        return getNodeIdIndex().getNodeIdByBaseURL(baseUrl);
+    }
+
+    /**
+     * Write the harvest and log aggregation watermarks that are buffered when
+     * noderegistry.watermark.writeBehind is true. Does nothing otherwise.
+     *
+     * @author waltz
+     * @throws ServiceFailure
+     *
+     */
+    public void flushWatermarks() throws ServiceFailure {
+        if (!WatermarkBuffer.ENABLED) {
+            return;
+        }
+        try {
+            WatermarkBuffer.getInstance().flush();
+        } catch (Exception ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("4801", ex.getMessage());
+        }
+    }
+
+    private NodeIdIndex getNodeIdIndex() throws ServiceFailure {
+        if (nodeIdIndex.isExpired()) {
+            // creates and deletes wait for the load, so that none is lost
+            synchronized (nodeIdIndex) {
+                if (nodeIdIndex.isExpired()) {
+                    nodeIdIndex.load(getNodeIdList());
+                }
+            }
+        }
+        return nodeIdIndex;
+    }
+
     protected static NodeAccess getNodeAccess() {
         return nodeAccess;
     }
@@ -0,0 +1,186 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A bidirectional index of the identifiers and baseURLs of all registered nodes,
+ * approved or not.
+ *
+ * The index is loaded from a projected search of the node entries, is kept current
+ * by the creates, updates and deletes made through NodeFacade, and expires after a
+ * refresh interval so that nodes registered by other Coordinating Nodes are picked up.
+ *
+ * Node identifiers are matched without regard to case, as in the node DN, so
+ * the identifiers are keyed in lower case. Lookups by baseURL answer the identifier
+ * as it was recorded.
+ *
+ * Lookups never block. Loads and modifications synchronize on the index.
+ *
+ * @author waltz
+ */
+public class NodeIdIndex {
+
+    /*
+     * the maps are replaced as a pair when the index is loaded
+     */
+    private static final class Entries {
+
+        final Map<String, String> baseURLsByNodeId;
+        final Map<String, String> nodeIdsByBaseURL;
+        final long loadedNanos;
+
+        Entries(Map<String, String> baseURLsByNodeId, Map<String, String> nodeIdsByBaseURL) {
+            this.baseURLsByNodeId = baseURLsByNodeId;
+            this.nodeIdsByBaseURL = nodeIdsByBaseURL;
+            this.loadedNanos = System.nanoTime();
+        }
+    }
+
+    private final long refreshIntervalNanos;
+    private volatile Entries entries = null;
+    private volatile boolean invalidated = false;
+
+    /**
+     * @param refreshIntervalMS the age after which the index must be loaded again
+     */
+    public NodeIdIndex(long refreshIntervalMS) {
+        this.refreshIntervalNanos = refreshIntervalMS * 1000000L;
+    }
+
+    /**
+     * @return true if the index has never been loaded, was invalidated, or is older than
+     *         the refresh interval
+     */
+    public boolean isExpired() {
+        Entries current = entries;
+        return current == null || invalidated
+                || System.nanoTime() - current.loadedNanos >= refreshIntervalNanos;
+    }
+
+    /**
+     * replace the content of the index
+     *
+     * @param nodeIds the baseURL of every registered node, keyed by node identifier
+     */
+    public synchronized void load(Map<String, String> nodeIds) {
+        Map<String, String> baseURLsByNodeId = new ConcurrentHashMap<String, String>(nodeIds.size() * 2);
+        Map<String, String> nodeIdsByBaseURL = new ConcurrentHashMap<String, String>(nodeIds.size() * 2);
+        for (Map.Entry<String, String> nodeId : nodeIds.entrySet()) {
+            if (nodeId.getKey() == null) {
+                continue;
+            }
+            if (nodeId.getValue() != null) {
+                baseURLsByNodeId.put(key(nodeId.getKey()), nodeId.getValue());
+                if (!nodeIdsByBaseURL.containsKey(nodeId.getValue())) {
+                    nodeIdsByBaseURL.put(nodeId.getValue(), nodeId.getKey());
+                }
+            } else {
+                // ConcurrentHashMap does not accept null values
+                baseURLsByNodeId.put(key(nodeId.getKey()), "");
+            }
+        }
+        entries = new Entries(baseURLsByNodeId, nodeIdsByBaseURL);
+        invalidated = false;
+    }
+
+    /**
+     * force the index to be loaded again before its next use, lookups are
+     * answered from the current content until then
+     */
+    public void invalidate() {
+        invalidated = true;
+    }
+
+    /**
+     * record a created or updated node, has no effect if the index is not loaded
+     *
+     * @param nodeId
+     * @param baseURL
+     */
+    public synchronized void put(String nodeId, String baseURL) {
+        Entries current = entries;
+        if (current == null || nodeId == null) {
+            return;
+        }
+        String previousBaseURL = current.baseURLsByNodeId.put(key(nodeId), baseURL == null ? "" : baseURL);
+        if (previousBaseURL != null
+                && nodeId.equalsIgnoreCase(current.nodeIdsByBaseURL.get(previousBaseURL))) {
+            current.nodeIdsByBaseURL.remove(previousBaseURL);
+        }
+        if (baseURL != null && !current.nodeIdsByBaseURL.containsKey(baseURL)) {
+            current.nodeIdsByBaseURL.put(baseURL, nodeId);
+        }
+    }
+
+    /**
+     * record a deleted node, has no effect if the index is not loaded
+     *
+     * @param nodeId
+     */
+    public synchronized void remove(String nodeId) {
+        Entries current = entries;
+        if (current == null || nodeId == null) {
+            return;
+        }
+        String baseURL = current.baseURLsByNodeId.remove(key(nodeId));
+        if (baseURL != null && nodeId.equalsIgnoreCase(current.nodeIdsByBaseURL.get(baseURL))) {
+            current.nodeIdsByBaseURL.remove(baseURL);
+        }
+    }
+
+    /**
+     * @param nodeId
+     * @return true if a node with the identifier, in any case, is registered
+     * @throws IllegalStateException if the index is not loaded
+     */
+    public boolean containsNodeId(String nodeId) {
+        return getEntries().baseURLsByNodeId.containsKey(key(nodeId));
+    }
+
+    /**
+     * @param baseURL
+     * @return the identifier of the node registered with the baseURL, or null if there is none
+     * @throws IllegalStateException if the index is not loaded
+     */
+    public String getNodeIdByBaseURL(String baseURL) {
+        if (baseURL == null) {
+            return null;
+        }
+        return getEntries().nodeIdsByBaseURL.get(baseURL);
+    }
+
+    private static String key(String nodeId) {
+        return nodeId.toLowerCase();
+    }
+
+    private Entries getEntries() {
+        Entries current = entries;
+        if (current == null) {
+            throw new IllegalStateException("node id index is not loaded");
+        }
+        return current;
+    }
+}
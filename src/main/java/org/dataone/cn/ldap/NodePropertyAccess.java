@@ -29,6 +29,7 @@ import java.util.List;
 
 import javax.naming.CommunicationException;
 import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
@@ -126,8 +127,7 @@ public class NodePropertyAccess extends LDAPService {
     protected List<Property> getPropertyList(DirContext ctx, String nodeIdentifier) throws ServiceFailure {
         List<Property> allProperties = new ArrayList<Property>();
         try {
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            SearchControls ctls = SearchProjection.NODE_PROPERTY.subtreeSearchControls();
             
             NamingEnumeration<SearchResult> results =
                     ctx.search(getBase(), String.format("(&(objectClass=%s)(%s=%s))",
@@ -135,21 +135,8 @@ public class NodePropertyAccess extends LDAPService {
                     
             while (results != null && results.hasMore()) {
                 SearchResult si = results.next();
-                String nodeDn = si.getNameInNamespace();
-
-                //return dn;
-                // or we could double check
-                HashMap<String, String> attributesMap = new HashMap<String, String>();
-                Attributes attributes = si.getAttributes();
-                NamingEnumeration<? extends Attribute> values = attributes.getAll();
-                while (values.hasMore()) {
-                    Attribute attribute = values.next();
-                    String attributeName = attribute.getID().toLowerCase();
-                    String attributeValue = (String) attribute.get();
-                    attributesMap.put(attributeName, attributeValue);
-                }
-
-                allProperties.add(this.mapProperty(attributesMap));
+
+                allProperties.add(this.mapProperty(si.getAttributes()));
             }
         } catch (CommunicationException ex) {
             log.error("LDAP Service is unresponsive " + nodeIdentifier, ex);
@@ -188,6 +175,27 @@ public class NodePropertyAccess extends LDAPService {
         return propertyAttributes;
     }
 
+    /**
+     * from the Attributes of a d1NodeProperty entry returned from an LDAP query,
+     * fill out a Node Property object
+     *
+     * @param attributes
+     * @return Property
+     * @throws NamingException
+     * 
+     */
+    protected Property mapProperty(Attributes attributes) throws NamingException {
+        HashMap<String, String> attributesMap = new HashMap<String, String>();
+        NamingEnumeration<? extends Attribute> values = attributes.getAll();
+        while (values.hasMore()) {
+            Attribute attribute = values.next();
+            String attributeName = attribute.getID().toLowerCase();
+            String attributeValue = (String) attribute.get();
+            attributesMap.put(attributeName, attributeValue);
+        }
+        return this.mapProperty(attributesMap);
+    }
+
     /**
      * from the provided attributeMap returned from an LDAP query,
      * fill out a Node Property object
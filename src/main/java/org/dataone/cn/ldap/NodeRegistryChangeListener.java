@@ -0,0 +1,272 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.naming.Binding;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.event.EventDirContext;
+import javax.naming.event.NamespaceChangeListener;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
+import javax.naming.event.ObjectChangeListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+
+/**
+ * Listens for changes to the d1Node, d1NodeService, d1ServiceMethodRestriction and
+ * d1NodeProperty entries under the node registry base, and reports the identifier of
+ * every node affected to a NodeChangeHandler.
+ *
+ * Changes are received through a persistent search, which the JNDI LDAP provider issues
+ * on behalf of a registered NamingListener. The listener holds one LDAP Directory Context
+ * from the pool for as long as it is started. If the server does not advertise the
+ * persistent search control the listener does not start, and callers should continue to
+ * rely on polling.
+ *
+ * The harvest and log aggregation watermarks are written to the node entry as nodes are
+ * processed, and do not need the node to be reloaded. Events carry the attributes of the
+ * changed entry, and a modification is not reported if the entry differs from the previous
+ * event of the same entry only by its watermarks. The first modification of each entry
+ * after the listener starts is always reported.
+ *
+ * @author waltz
+ */
+public class NodeRegistryChangeListener extends LDAPService implements NamespaceChangeListener, ObjectChangeListener {
+
+    public static Log log = LogFactory.getLog(NodeRegistryChangeListener.class);
+
+    private final NodeChangeHandler nodeChangeHandler;
+    private DirContextProvider dirContextProvider = DirContextProvider.getInstance();
+    private DirContext dirContext = null;
+    private EventDirContext eventDirContext = null;
+    private volatile boolean active = false;
+
+    /* the attributes of every entry seen in an event, without the watermarks, keyed by entry name */
+    private final Map<String, Attributes> entryAttributes = new ConcurrentHashMap<String, Attributes>();
+
+    public NodeRegistryChangeListener(NodeChangeHandler nodeChangeHandler) {
+        // we need to use a different base for the ids
+        this.setBase(Settings.getConfiguration().getString("nodeRegistry.ldap.base"));
+        this.nodeChangeHandler = nodeChangeHandler;
+    }
+
+    /**
+     * register for changes to the node registry
+     *
+     * @return true if the listener is receiving changes, false if the
+     * server does not support persistent search or the registration failed
+     */
+    public synchronized boolean start() {
+        if (active) {
+            return true;
+        }
+        try {
+            dirContext = dirContextProvider.borrowDirContext();
+        } catch (Exception ex) {
+            log.error("unable to start the node registry change listener: " + ex.getMessage(), ex);
+            return false;
+        }
+        if (dirContext == null) {
+            log.error("Context is null. Unable to retrieve LDAP Directory Context from pool. Change listener not started.");
+            return false;
+        }
+        try {
+            if (!LdapControlSupport.isControlSupported(dirContext, LdapControlSupport.PERSISTENT_SEARCH_OID)) {
+                log.warn("persistent search is not supported by the server, node registry changes will be polled");
+                release();
+                return false;
+            }
+            Object rootContext = dirContext.lookup("");
+            if (!(rootContext instanceof EventDirContext)) {
+                log.warn("LDAP context does not support events, node registry changes will be polled");
+                release();
+                return false;
+            }
+            eventDirContext = (EventDirContext) rootContext;
+
+            // all user attributes, so that modifications of the watermarks can be recognized
+            SearchControls ctls = new SearchControls();
+            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            eventDirContext.addNamingListener(getBase(), NodeTreeAccess.NODE_TREE_FILTER, ctls, this);
+            active = true;
+            log.info("listening for node registry changes under " + getBase());
+        } catch (NamingException ex) {
+            log.error("unable to start the node registry change listener: " + ex.getMessage(), ex);
+            release();
+        }
+        return active;
+    }
+
+    /**
+     * stop listening for changes and return the LDAP Directory Context to the pool
+     */
+    public synchronized void stop() {
+        if (eventDirContext != null) {
+            try {
+                eventDirContext.removeNamingListener(this);
+            } catch (NamingException ex) {
+                log.warn("problem removing the node registry change listener: " + ex.getMessage());
+            }
+        }
+        release();
+    }
+
+    /**
+     * @return true while changes are being received
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public void objectAdded(NamingEvent evt) {
+        recordEntry(evt.getNewBinding());
+        handleEvent(evt);
+    }
+
+    @Override
+    public void objectRemoved(NamingEvent evt) {
+        forgetEntry(evt.getOldBinding());
+        forgetEntry(evt.getNewBinding());
+        handleEvent(evt);
+    }
+
+    @Override
+    public void objectRenamed(NamingEvent evt) {
+        forgetEntry(evt.getOldBinding());
+        recordEntry(evt.getNewBinding());
+        handleEvent(evt);
+    }
+
+    @Override
+    public void objectChanged(NamingEvent evt) {
+        if (!recordEntry(evt.getNewBinding())) {
+            if (log.isDebugEnabled()) {
+                log.debug("ignoring watermark change of " + evt.getNewBinding().getName());
+            }
+            return;
+        }
+        handleEvent(evt);
+    }
+
+    /*
+     * the server or the connection failed, the JNDI provider has already
+     * deregistered the listener
+     */
+    @Override
+    public void namingExceptionThrown(NamingExceptionEvent evt) {
+        log.error("node registry change listener failed, node registry changes will be polled: "
+                + evt.getException().getMessage(), evt.getException());
+        synchronized (this) {
+            release();
+        }
+        nodeChangeHandler.changeListenerFailed(evt.getException());
+    }
+
+    /**
+     * report every node affected by the event to the handler. Renames affect
+     * both the old and the new node.
+     *
+     * @param evt
+     */
+    protected void handleEvent(NamingEvent evt) {
+        Set<String> nodeIds = new LinkedHashSet<String>();
+        addNodeId(nodeIds, evt.getOldBinding());
+        addNodeId(nodeIds, evt.getNewBinding());
+        if (nodeIds.isEmpty()) {
+            log.warn("unable to determine the node of a change event of type " + evt.getType());
+            return;
+        }
+        for (String nodeId : nodeIds) {
+            if (log.isDebugEnabled()) {
+                log.debug("node registry change of type " + evt.getType() + " for " + nodeId);
+            }
+            nodeChangeHandler.nodeChanged(nodeId);
+        }
+    }
+
+    /**
+     * record the attributes of the entry, without the watermarks, and compare them to
+     * the attributes recorded at the previous event of the entry
+     *
+     * @param binding the entry as returned by the persistent search
+     * @return false if only the watermarks of the entry have changed
+     */
+    protected boolean recordEntry(Binding binding) {
+        if (!(binding instanceof SearchResult) || ((SearchResult) binding).getAttributes() == null) {
+            return true;
+        }
+        Attributes attributes = (Attributes) ((SearchResult) binding).getAttributes().clone();
+        attributes.remove(NodeAccess.NODE_LAST_HARVESTED);
+        attributes.remove(NodeAccess.LOG_LAST_AGGREGATED);
+        Attributes previous = entryAttributes.put(binding.getName(), attributes);
+        return previous == null || !previous.equals(attributes);
+    }
+
+    private void forgetEntry(Binding binding) {
+        if (binding != null) {
+            entryAttributes.remove(binding.getName());
+        }
+    }
+
+    private void addNodeId(Set<String> nodeIds, Binding binding) {
+        if (binding == null) {
+            return;
+        }
+        String nodeId = NodeTreeAccess.getNodeId(binding.getName());
+        if (nodeId != null) {
+            nodeIds.add(nodeId);
+        }
+    }
+
+    /*
+     * must be called while synchronized on the listener
+     */
+    private void release() {
+        active = false;
+        entryAttributes.clear();
+        if (eventDirContext != null) {
+            try {
+                eventDirContext.close();
+            } catch (NamingException ex) {
+                log.warn("problem closing the event context: " + ex.getMessage());
+            }
+            eventDirContext = null;
+        }
+        if (dirContext != null) {
+            dirContextProvider.returnDirContext(dirContext);
+            dirContext = null;
+        }
+    }
+}
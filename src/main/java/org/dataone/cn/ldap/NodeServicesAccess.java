@@ -28,6 +28,7 @@ import java.util.HashMap;
 import java.util.List;
 import javax.naming.CommunicationException;
 import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
@@ -125,8 +126,7 @@ public class NodeServicesAccess extends LDAPService {
         List<Service> allServices = new ArrayList<Service>();
         try {
 
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            SearchControls ctls = SearchProjection.NODE_SERVICE.subtreeSearchControls();
             
             NamingEnumeration<SearchResult> results =
                     ctx.search(getBase(), String.format("(&(objectClass=%s)(%s=%s))",
@@ -134,21 +134,8 @@ public class NodeServicesAccess extends LDAPService {
                     
             while (results != null && results.hasMore()) {
                 SearchResult si = results.next();
-                String nodeDn = si.getNameInNamespace();
-
-                //return dn;
-                // or we could double check
-                HashMap<String, String> attributesMap = new HashMap<String, String>();
-                Attributes attributes = si.getAttributes();
-                NamingEnumeration<? extends Attribute> values = attributes.getAll();
-                while (values.hasMore()) {
-                    Attribute attribute = values.next();
-                    String attributeName = attribute.getID().toLowerCase();
-                    String attributeValue = (String) attribute.get();
-                    attributesMap.put(attributeName, attributeValue);
-                }
-
-                allServices.add(this.mapService(attributesMap));
+
+                allServices.add(this.mapService(si.getAttributes()));
             }
         } catch (CommunicationException ex) {
             log.error("LDAP Service is unresponsive " + nodeIdentifier, ex);
@@ -185,6 +172,28 @@ public class NodeServicesAccess extends LDAPService {
         return serviceAttributes;
     }
 
+    /**
+     * from the Attributes of a d1NodeService entry returned from an LDAP query,
+     * fill out a Node Service object
+     * ServiceMethodRestrictions are not included
+     *
+     * @param attributes
+     * @return Service
+     * @throws NamingException
+     * 
+     */
+    protected Service mapService(Attributes attributes) throws NamingException {
+        HashMap<String, String> attributesMap = new HashMap<String, String>();
+        NamingEnumeration<? extends Attribute> values = attributes.getAll();
+        while (values.hasMore()) {
+            Attribute attribute = values.next();
+            String attributeName = attribute.getID().toLowerCase();
+            String attributeValue = (String) attribute.get();
+            attributesMap.put(attributeName, attributeValue);
+        }
+        return this.mapService(attributesMap);
+    }
+
     /**
      * from the provided attributeMap returned from an LDAP query,
      * fill out a Node Service object
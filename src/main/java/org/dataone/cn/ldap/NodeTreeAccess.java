@@ -0,0 +1,540 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import javax.naming.CommunicationException;
+import javax.naming.InvalidNameException;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.NotFound;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Service;
+import org.dataone.service.types.v1.ServiceMethodRestriction;
+import org.dataone.service.types.v1.Services;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.types.v2.Property;
+
+/**
+ * Provides Access to retrieve complete Nodes from LDAP. A Node is stored as a
+ * d1Node entry with d1NodeService, d1ServiceMethodRestriction and d1NodeProperty
+ * entries beneath it. This class retrieves all of those entries with a single
+ * subtree search and joins them in memory by their parent DN, so the number of
+ * round trips does not depend on the number of nodes or services.
+ *
+ * @author waltz
+ */
+public class NodeTreeAccess extends LDAPService {
+
+    public static Log log = LogFactory.getLog(NodeTreeAccess.class);
+
+    public static final String NODE_OBJECT_CLASS_ID = "d1Node";
+
+    /* every entry type that belongs to a node subtree */
+    static final String NODE_CHILDREN_FILTER = String.format("(objectClass=%s)(objectClass=%s)(objectClass=%s)",
+            NodeServicesAccess.OBJECT_CLASS_ID,
+            ServiceMethodRestrictionsAccess.OBJECT_CLASS_ID,
+            NodePropertyAccess.OBJECT_CLASS_ID);
+
+    static final String NODE_TREE_FILTER = String.format("(|(objectClass=%s)%s)",
+            NODE_OBJECT_CLASS_ID, NODE_CHILDREN_FILTER);
+
+    static final String APPROVED_NODE_TREE_FILTER = String.format("(|(&(objectClass=%s)(%s=TRUE))%s)",
+            NODE_OBJECT_CLASS_ID, NodeAccess.NODE_APPROVED, NODE_CHILDREN_FILTER);
+
+    static final String APPROVED_NODE_FILTER = String.format("(&(objectClass=%s)(%s=TRUE))",
+            NODE_OBJECT_CLASS_ID, NodeAccess.NODE_APPROVED);
+
+    static final String NODE_CHILDREN_TREE_FILTER = String.format("(|%s)", NODE_CHILDREN_FILTER);
+
+    static final String PENDING_NODE_TREE_FILTER = String.format("(|(&(objectClass=%s)(%s=FALSE))%s)",
+            NODE_OBJECT_CLASS_ID, NodeAccess.NODE_APPROVED, NODE_CHILDREN_FILTER);
+
+    /* operational attributes maintained by the server */
+    static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+    static final String CREATE_TIMESTAMP = "createTimestamp";
+
+    /* every node is stored as cn=nodeId,dc=dataone,dc=org */
+    private static final String NODE_RDN_TYPE = "cn";
+
+    private static NodeAccess nodeAccess = new NodeAccess();
+    private static NodeServicesAccess nodeServicesAccess = new NodeServicesAccess();
+    private static NodePropertyAccess nodePropertyAccess = new NodePropertyAccess();
+    private static ServiceMethodRestrictionsAccess serviceMethodRestrictionsAccess = new ServiceMethodRestrictionsAccess();
+
+    public NodeTreeAccess() {
+        // we need to use a different base for the ids
+        this.setBase(Settings.getConfiguration().getString("nodeRegistry.ldap.base"));
+    }
+
+    /**
+     * return a list of Nodes that are marked approved in LDAP, fully populated with
+     * their services, service method restrictions and properties.
+     *
+     * One subtree search is issued under the base for the approved d1Node entries
+     * and all child entries. Child entries of unapproved nodes are returned
+     * by the search as well, but are discarded since they have no parent in the results.
+     *
+     * @return List<Node>
+     * @throws ServiceFailure
+     *
+     */
+    protected List<Node> getApprovedNodeList(DirContext ctx) throws ServiceFailure {
+        return getNodeList(ctx, APPROVED_NODE_TREE_FILTER, "Approved");
+    }
+
+    /**
+     * return a list of Nodes that have been registered but not yet approved,
+     * fully populated with their services, service method restrictions and properties.
+     *
+     * One subtree search is issued under the base, the same way as for the approved nodes.
+     *
+     * @return List<Node>
+     * @throws ServiceFailure
+     *
+     */
+    protected List<Node> getPendingNodeList(DirContext ctx) throws ServiceFailure {
+        return getNodeList(ctx, PENDING_NODE_TREE_FILTER, "Pending");
+    }
+
+    /**
+     * hand the Nodes that are marked approved in LDAP to the visitor one at a time,
+     * fully populated with their services, service method restrictions and properties.
+     *
+     * The d1Node entries are read with a paged search, and the child entries of each
+     * node are only read by a search of its subtree when the node is about to be visited,
+     * so no more than a page of node entries is held in memory and the first node is
+     * visited once the first page is read. This takes a search per node, so it is meant
+     * for consumers that handle one node at a time rather than for building a NodeList.
+     *
+     * @param visitor
+     * @throws ServiceFailure
+     *
+     */
+    protected void forEachApprovedNode(final DirContext ctx, final NodeVisitor visitor) throws ServiceFailure {
+        try {
+            SearchControls ctls = SearchProjection.NODE.subtreeSearchControls();
+            final SearchControls childCtls = SearchProjection.NODE_TREE.subtreeSearchControls();
+
+            PagedSearch.search(ctx, getBase(), APPROVED_NODE_FILTER, ctls, new PagedSearch.PageHandler() {
+                @Override
+                public boolean handlePage(List<SearchResult> page) throws NamingException, ServiceFailure {
+                    for (SearchResult nodeEntry : page) {
+                        if (!visitor.visit(readNode(ctx, nodeEntry, childCtls))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            });
+        } catch (CommunicationException ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("-1", "LDAP Service is unresponsive");
+        } catch (ServiceFailure ex) {
+            throw ex;
+        } catch (Exception e) {
+            log.error("Problem walking Approved Node subtrees", e);
+            throw new ServiceFailure("-1", e.getMessage());
+        }
+    }
+
+    /*
+     * join a d1Node entry with the entries of its subtree
+     */
+    private Node readNode(DirContext ctx, SearchResult nodeEntry, SearchControls ctls) throws NamingException {
+        List<SearchResult> entries = new ArrayList<SearchResult>();
+        entries.add(nodeEntry);
+        NamingEnumeration<SearchResult> results = ctx.search(nodeEntry.getNameInNamespace(),
+                NODE_CHILDREN_TREE_FILTER, ctls);
+        try {
+            while (results.hasMore()) {
+                entries.add(results.next());
+            }
+        } finally {
+            results.close();
+        }
+        return assembleNodes(entries).get(0);
+    }
+
+    /*
+     * search the subtrees of the nodes selected by the filter
+     */
+    private List<Node> getNodeList(DirContext ctx, String nodeTreeFilter, String description) throws ServiceFailure {
+        try {
+            SearchControls ctls = SearchProjection.NODE_TREE.subtreeSearchControls();
+
+            // the entries of a node may be returned in different pages, so the
+            // nodes are joined once all of the pages are read
+            final List<SearchResult> entries = new ArrayList<SearchResult>();
+            PagedSearch.search(ctx, getBase(), nodeTreeFilter, ctls, new PagedSearch.PageHandler() {
+                @Override
+                public boolean handlePage(List<SearchResult> page) {
+                    entries.addAll(page);
+                    return true;
+                }
+            });
+            return assembleNodes(entries);
+        } catch (CommunicationException ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("-1", "LDAP Service is unresponsive");
+        } catch (Exception e) {
+            log.error("Problem searching " + description + " Node subtrees for Nodelist", e);
+            throw new ServiceFailure("-1", e.getMessage());
+        }
+    }
+
+    /**
+     * retrieve a complete DataONE Node, including its services, service method
+     * restrictions and properties, from LDAP. The node need not be approved.
+     *
+     * A single subtree search rooted at the DN of the node returns the node
+     * entry and all of its child entries.
+     *
+     * @param nodeReference
+     * @return Node
+     * @throws NotFound
+     * @throws NamingException
+     * @throws NameNotFoundException
+     *
+     */
+    protected Node getNode(DirContext ctx, NodeReference nodeReference) throws NotFound, NamingException, NameNotFoundException {
+        SearchControls ctls = SearchProjection.NODE_TREE.subtreeSearchControls();
+
+        List<Node> nodes;
+        NamingEnumeration<SearchResult> results = ctx.search(nodeAccess.buildNodeDN(nodeReference), NODE_TREE_FILTER, ctls);
+        try {
+            nodes = assembleNodes(results);
+        } finally {
+            results.close();
+        }
+        log.debug("Retrieved Node subtree for: " + nodeReference.getValue());
+        if (nodes.isEmpty()) {
+            throw new NotFound("4801", nodeReference.getValue() + " not found on the server");
+        }
+        return nodes.get(0);
+    }
+
+    /**
+     * return the identifiers of the nodes that have an entry in their subtree which was
+     * created or modified at or after the given time. Only the names of the entries are
+     * retrieved. Entries that were removed are not found, see getApprovedNodeEntryCounts.
+     *
+     * @param since
+     * @return Set<String> of node identifiers
+     * @throws ServiceFailure
+     *
+     */
+    protected Set<String> getModifiedNodeIds(DirContext ctx, Date since) throws ServiceFailure {
+        SimpleDateFormat generalizedTimeFormat = new SimpleDateFormat("yyyyMMddHHmmss'Z'");
+        generalizedTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String generalizedTime = generalizedTimeFormat.format(since);
+        // some servers only set createTimestamp when an entry is added
+        String filter = String.format("(&%s(|(%s>=%s)(%s>=%s)))", NODE_TREE_FILTER,
+                MODIFY_TIMESTAMP, generalizedTime, CREATE_TIMESTAMP, generalizedTime);
+        final Set<String> nodeIds = new LinkedHashSet<String>();
+        try {
+            SearchControls ctls = SearchProjection.ENTRY_NAME.subtreeSearchControls();
+
+            PagedSearch.search(ctx, getBase(), filter, ctls, new PagedSearch.PageHandler() {
+                @Override
+                public boolean handlePage(List<SearchResult> page) throws NamingException {
+                    for (SearchResult si : page) {
+                        String nodeId = getNodeId(si.getNameInNamespace());
+                        if (nodeId != null) {
+                            nodeIds.add(nodeId);
+                        }
+                    }
+                    return true;
+                }
+            });
+        } catch (CommunicationException ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("-1", "LDAP Service is unresponsive");
+        } catch (Exception e) {
+            log.error("Problem searching for Nodes modified since " + generalizedTime, e);
+            throw new ServiceFailure("-1", e.getMessage());
+        }
+        if (log.isDebugEnabled())
+            log.debug(nodeIds.size() + " nodes modified since " + generalizedTime);
+        return nodeIds;
+    }
+
+    /**
+     * retrieve the approved Nodes among the given node identifiers, fully populated.
+     * A subtree search is issued for each node, so this is meant for a small number
+     * of nodes. Nodes that do not exist or are not approved are absent from the result.
+     *
+     * @param nodeIds
+     * @return Map<String, Node> keyed by node identifier
+     * @throws ServiceFailure
+     *
+     */
+    protected Map<String, Node> getApprovedNodes(DirContext ctx, Collection<String> nodeIds) throws ServiceFailure {
+        Map<String, Node> approvedNodes = new HashMap<String, Node>();
+        SearchControls ctls = SearchProjection.NODE_TREE.subtreeSearchControls();
+        for (String nodeId : nodeIds) {
+            NodeReference nodeReference = new NodeReference();
+            nodeReference.setValue(nodeId);
+            try {
+                NamingEnumeration<SearchResult> results = ctx.search(nodeAccess.buildNodeDN(nodeReference),
+                        APPROVED_NODE_TREE_FILTER, ctls);
+                try {
+                    // the children of an unapproved node are discarded by assembleNodes
+                    List<Node> nodes = assembleNodes(results);
+                    if (!nodes.isEmpty()) {
+                        approvedNodes.put(nodeId, nodes.get(0));
+                    }
+                } finally {
+                    results.close();
+                }
+            } catch (NameNotFoundException ex) {
+                log.debug("Node " + nodeId + " no longer exists");
+            } catch (CommunicationException ex) {
+                log.error(ex.getMessage(), ex);
+                throw new ServiceFailure("-1", "LDAP Service is unresponsive");
+            } catch (Exception e) {
+                log.error("Problem searching Node subtree of " + nodeId, e);
+                throw new ServiceFailure("-1", e.getMessage());
+            }
+        }
+        return approvedNodes;
+    }
+
+    /**
+     * count the entries in the subtree of every approved node, the node entry included.
+     * Only the objectClass of each entry is retrieved, so this is much cheaper than
+     * loading the nodes, and can be compared to the nodes held in memory to detect
+     * entries that were removed.
+     *
+     * @return Map<String, Integer> of entry counts keyed by node identifier
+     * @throws ServiceFailure
+     *
+     */
+    protected Map<String, Integer> getApprovedNodeEntryCounts(DirContext ctx) throws ServiceFailure {
+        final Set<String> approvedNodeIds = new HashSet<String>();
+        final Map<String, Integer> entryCounts = new HashMap<String, Integer>();
+        try {
+            SearchControls ctls = SearchProjection.OBJECT_CLASS.subtreeSearchControls();
+
+            PagedSearch.search(ctx, getBase(), APPROVED_NODE_TREE_FILTER, ctls, new PagedSearch.PageHandler() {
+                @Override
+                public boolean handlePage(List<SearchResult> page) throws NamingException {
+                    for (SearchResult si : page) {
+                        String nodeId = getNodeId(si.getNameInNamespace());
+                        if (nodeId == null) {
+                            continue;
+                        }
+                        if (hasObjectClass(si.getAttributes(), NODE_OBJECT_CLASS_ID)) {
+                            approvedNodeIds.add(nodeId);
+                        }
+                        Integer count = entryCounts.get(nodeId);
+                        entryCounts.put(nodeId, count == null ? 1 : count + 1);
+                    }
+                    return true;
+                }
+            });
+        } catch (CommunicationException ex) {
+            log.error(ex.getMessage(), ex);
+            throw new ServiceFailure("-1", "LDAP Service is unresponsive");
+        } catch (Exception e) {
+            log.error("Problem counting Approved Node subtree entries", e);
+            throw new ServiceFailure("-1", e.getMessage());
+        }
+        // the children of unapproved nodes match the filter as well
+        entryCounts.keySet().retainAll(approvedNodeIds);
+        return entryCounts;
+    }
+
+    /**
+     * Determine the identifier of the node that an entry belongs to. All entries of
+     * a node are beneath the node entry, so the node identifier is the value of the
+     * cn RDN closest to the root. The name may be absolute or relative to the base.
+     *
+     * @param entryName
+     * @return the node identifier, or null if the entry does not belong to a node
+     */
+    public static String getNodeId(String entryName) {
+        if (entryName == null) {
+            return null;
+        }
+        try {
+            // the rdns are ordered from the root
+            for (Rdn rdn : new LdapName(entryName).getRdns()) {
+                if (NODE_RDN_TYPE.equalsIgnoreCase(rdn.getType())) {
+                    return rdn.getValue().toString();
+                }
+            }
+        } catch (InvalidNameException ex) {
+            log.warn("unable to parse the name of entry: " + entryName);
+        }
+        return null;
+    }
+
+    /**
+     * read all of the entries of a search result and join them into fully populated Nodes
+     *
+     * @param results
+     * @return List<Node>
+     * @throws NamingException
+     *
+     */
+    protected List<Node> assembleNodes(NamingEnumeration<SearchResult> results) throws NamingException {
+        List<SearchResult> entries = new ArrayList<SearchResult>();
+        while (results != null && results.hasMore()) {
+            entries.add(results.next());
+        }
+        return assembleNodes(entries);
+    }
+
+    /**
+     * Join the d1Node, d1NodeService, d1ServiceMethodRestriction and d1NodeProperty
+     * entries read from one or more searches into fully populated Nodes. The entries may
+     * be returned in any order by the server, so they are joined on their parent DN.
+     * The order of the Nodes, Services and Properties follows the order in which the
+     * server returned them.
+     *
+     * @param entries
+     * @return List<Node>
+     * @throws NamingException
+     *
+     */
+    protected List<Node> assembleNodes(List<SearchResult> entries) throws NamingException {
+        Map<LdapName, Node> nodeMap = new LinkedHashMap<LdapName, Node>();
+        Map<LdapName, List<Service>> nodeServiceMap = new LinkedHashMap<LdapName, List<Service>>();
+        Map<LdapName, List<Property>> nodePropertyMap = new LinkedHashMap<LdapName, List<Property>>();
+        Map<LdapName, Service> serviceMap = new LinkedHashMap<LdapName, Service>();
+        Map<LdapName, LdapName> serviceParentMap = new LinkedHashMap<LdapName, LdapName>();
+        Map<LdapName, List<ServiceMethodRestriction>> serviceRestrictionMap = new LinkedHashMap<LdapName, List<ServiceMethodRestriction>>();
+
+        for (SearchResult si : entries) {
+            LdapName entryName = new LdapName(si.getNameInNamespace());
+            LdapName parentName = (LdapName) entryName.getPrefix(entryName.size() - 1);
+            Attributes attributes = si.getAttributes();
+            if (log.isTraceEnabled())
+                log.trace("Search result found for: " + entryName);
+
+            if (hasObjectClass(attributes, NODE_OBJECT_CLASS_ID)) {
+                nodeMap.put(entryName, nodeAccess.mapNode(attributes));
+            } else if (hasObjectClass(attributes, NodeServicesAccess.OBJECT_CLASS_ID)) {
+                serviceMap.put(entryName, nodeServicesAccess.mapService(attributes));
+                serviceParentMap.put(entryName, parentName);
+            } else if (hasObjectClass(attributes, ServiceMethodRestrictionsAccess.OBJECT_CLASS_ID)) {
+                getList(serviceRestrictionMap, parentName).add(
+                        serviceMethodRestrictionsAccess.mapServiceMethodRestriction(attributes));
+            } else if (hasObjectClass(attributes, NodePropertyAccess.OBJECT_CLASS_ID)) {
+                getList(nodePropertyMap, parentName).add(nodePropertyAccess.mapProperty(attributes));
+            } else {
+                log.warn("Unexpected entry in node subtree: " + entryName);
+            }
+        }
+
+        for (Map.Entry<LdapName, Service> serviceEntry : serviceMap.entrySet()) {
+            LdapName nodeName = serviceParentMap.get(serviceEntry.getKey());
+            if (!nodeMap.containsKey(nodeName)) {
+                continue;
+            }
+            Service service = serviceEntry.getValue();
+            List<ServiceMethodRestriction> restrictionList = serviceRestrictionMap.get(serviceEntry.getKey());
+            if (restrictionList == null) {
+                restrictionList = new ArrayList<ServiceMethodRestriction>();
+            }
+            service.setRestrictionList(restrictionList);
+            getList(nodeServiceMap, nodeName).add(service);
+        }
+
+        List<Node> allNodes = new ArrayList<Node>(nodeMap.size());
+        for (Map.Entry<LdapName, Node> nodeEntry : nodeMap.entrySet()) {
+            Node node = nodeEntry.getValue();
+            List<Service> serviceList = nodeServiceMap.get(nodeEntry.getKey());
+            if (serviceList != null && !serviceList.isEmpty()) {
+                Services services = new Services();
+                services.setServiceList(serviceList);
+                node.setServices(services);
+            }
+            List<Property> propertyList = nodePropertyMap.get(nodeEntry.getKey());
+            if (propertyList == null) {
+                propertyList = new ArrayList<Property>();
+            }
+            node.setPropertyList(propertyList);
+            allNodes.add(node);
+        }
+        if (log.isDebugEnabled())
+            log.debug("assembled " + allNodes.size() + " nodes with " + serviceMap.size() + " services");
+        return allNodes;
+    }
+
+    /*
+     * determine if the objectClass attribute of an entry contains the given value
+     */
+    private boolean hasObjectClass(Attributes attributes, String objectClass) throws NamingException {
+        Attribute objectClasses = attributes.get("objectClass");
+        if (objectClasses == null) {
+            return false;
+        }
+        NamingEnumeration<?> values = objectClasses.getAll();
+        try {
+            while (values.hasMore()) {
+                if (objectClass.equalsIgnoreCase((String) values.next())) {
+                    return true;
+                }
+            }
+        } finally {
+            values.close();
+        }
+        return false;
+    }
+
+    private static <T> List<T> getList(Map<LdapName, List<T>> map, LdapName key) {
+        List<T> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<T>();
+            map.put(key, list);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v2.Node;
+
+/**
+ * Receives the Nodes of the node registry one at a time, as they are read from LDAP.
+ *
+ * The visitor is called on the thread that walks the registry, while it holds a
+ * pooled LDAP context, so a visitor should not block for long.
+ *
+ * @author waltz
+ */
+public interface NodeVisitor {
+
+    /**
+     * @param node a fully populated Node
+     * @return true to continue with the next Node, false to end the walk
+     * @throws ServiceFailure to end the walk
+     */
+    boolean visit(Node node) throws ServiceFailure;
+}
@@ -0,0 +1,204 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.ServiceFailure;
+
+/**
+ * Runs a search with the Simple Paged Results control (RFC 2696) and hands the
+ * results to a PageHandler one page at a time, so that a search is not limited
+ * by the size limit of the server and no more than a page of results is held in memory.
+ *
+ * If the context is not an LdapContext or the server does not support the control,
+ * the search is run without it and its results are still handed over in pages.
+ *
+ * The request controls of the context are restored before each page is handed over,
+ * so the handler may issue other searches with the context, and the context is left
+ * as it was found when the search ends, since it is returned to the pool afterwards.
+ *
+ * @author waltz
+ */
+class PagedSearch {
+
+    public static Log log = LogFactory.getLog(PagedSearch.class);
+
+    /* RFC 2696 simple paged results */
+    public static final String PAGED_RESULTS_OID = PagedResultsControl.OID;
+
+    static final int PAGE_SIZE = Settings.getConfiguration().getInt("noderegistry.ldap.pageSize", 500);
+
+    /**
+     * receives the results of a search, one page at a time
+     */
+    interface PageHandler {
+
+        /**
+         * @param page
+         * @return true to continue with the next page, false to end the search
+         * @throws NamingException
+         * @throws ServiceFailure
+         */
+        boolean handlePage(List<SearchResult> page) throws NamingException, ServiceFailure;
+    }
+
+    private PagedSearch() {
+    }
+
+    /**
+     * search with the configured page size
+     *
+     * @see #search(DirContext, String, String, SearchControls, int, PageHandler)
+     */
+    static void search(DirContext ctx, String base, String filter, SearchControls ctls,
+            PageHandler handler) throws NamingException, ServiceFailure {
+        search(ctx, base, filter, ctls, PAGE_SIZE, handler);
+    }
+
+    /**
+     * search and hand the results over in pages of at most pageSize results
+     *
+     * @param ctx
+     * @param base
+     * @param filter
+     * @param ctls
+     * @param pageSize
+     * @param handler
+     * @throws NamingException
+     * @throws ServiceFailure if thrown by the handler
+     */
+    static void search(DirContext ctx, String base, String filter, SearchControls ctls, int pageSize,
+            PageHandler handler) throws NamingException, ServiceFailure {
+        if (pageSize > 0 && ctx instanceof LdapContext
+                && LdapControlSupport.isControlSupported(ctx, PAGED_RESULTS_OID)) {
+            pagedSearch((LdapContext) ctx, base, filter, ctls, pageSize, handler);
+        } else {
+            unpagedSearch(ctx, base, filter, ctls, pageSize > 0 ? pageSize : Integer.MAX_VALUE, handler);
+        }
+    }
+
+    private static void pagedSearch(LdapContext ctx, String base, String filter, SearchControls ctls,
+            int pageSize, PageHandler handler) throws NamingException, ServiceFailure {
+        Control[] requestControls = ctx.getRequestControls();
+        int pageCount = 0;
+        try {
+            byte[] cookie = null;
+            boolean proceed = true;
+            do {
+                ctx.setRequestControls(new Control[]{createControl(pageSize, cookie)});
+                List<SearchResult> page = new ArrayList<SearchResult>(pageSize);
+                NamingEnumeration<SearchResult> results = ctx.search(base, filter, ctls);
+                try {
+                    while (results.hasMore()) {
+                        page.add(results.next());
+                    }
+                } finally {
+                    results.close();
+                }
+                cookie = getCookie(ctx.getResponseControls());
+                pageCount++;
+                // pooled contexts must not keep the paging control
+                ctx.setRequestControls(requestControls);
+                proceed = handler.handlePage(page);
+            } while (proceed && cookie != null && cookie.length > 0);
+            if (!proceed && cookie != null && cookie.length > 0) {
+                abandon(ctx, base, filter, ctls, cookie);
+            }
+        } finally {
+            ctx.setRequestControls(requestControls);
+        }
+        if (log.isDebugEnabled())
+            log.debug("paged search of " + base + " for " + filter + " returned " + pageCount + " pages");
+    }
+
+    private static void unpagedSearch(DirContext ctx, String base, String filter, SearchControls ctls,
+            int pageSize, PageHandler handler) throws NamingException, ServiceFailure {
+        NamingEnumeration<SearchResult> results = ctx.search(base, filter, ctls);
+        try {
+            List<SearchResult> page = new ArrayList<SearchResult>();
+            while (results.hasMore()) {
+                page.add(results.next());
+                if (page.size() >= pageSize) {
+                    if (!handler.handlePage(page)) {
+                        return;
+                    }
+                    page = new ArrayList<SearchResult>();
+                }
+            }
+            if (!page.isEmpty()) {
+                handler.handlePage(page);
+            }
+        } finally {
+            results.close();
+        }
+    }
+
+    /*
+     * a page size of zero tells the server to release the results it holds for the cookie
+     */
+    private static void abandon(LdapContext ctx, String base, String filter, SearchControls ctls,
+            byte[] cookie) throws NamingException {
+        ctx.setRequestControls(new Control[]{createControl(0, cookie)});
+        ctx.search(base, filter, ctls).close();
+    }
+
+    private static Control createControl(int pageSize, byte[] cookie) throws NamingException {
+        try {
+            if (cookie == null) {
+                return new PagedResultsControl(pageSize, Control.CRITICAL);
+            }
+            return new PagedResultsControl(pageSize, cookie, Control.CRITICAL);
+        } catch (IOException ex) {
+            NamingException namingException = new NamingException("unable to encode the paged results control");
+            namingException.setRootCause(ex);
+            throw namingException;
+        }
+    }
+
+    private static byte[] getCookie(Control[] responseControls) {
+        if (responseControls != null) {
+            for (Control control : responseControls) {
+                if (control instanceof PagedResultsResponseControl) {
+                    return ((PagedResultsResponseControl) control).getCookie();
+                }
+            }
+        }
+        return null;
+    }
+}
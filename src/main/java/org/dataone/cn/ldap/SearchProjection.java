@@ -0,0 +1,134 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.naming.directory.SearchControls;
+
+/**
+ * The attributes that each search of the node registry asks the server to return.
+ *
+ * Without a list of returning attributes the server sends every attribute of every
+ * entry, including the subject and replication policy lists, even when only the
+ * node identifier is read. Each projection lists exactly the attributes read by the
+ * code that processes the search results, so a mapper that reads a new attribute
+ * must have the attribute added to its projection here.
+ *
+ * @author waltz
+ */
+public enum SearchProjection {
+
+    /* no attributes, only the names of the entries */
+    ENTRY_NAME(AttributeNames.NO_ATTRIBUTES),
+
+    OBJECT_CLASS(AttributeNames.OBJECT_CLASS),
+
+    NODE_ID(NodeAccess.NODE_ID),
+
+    NODE_ID_AND_BASEURL(NodeAccess.NODE_ID, NodeAccess.NODE_BASEURL),
+
+    /* the attributes read by NodeAccess.mapNode */
+    NODE(AttributeNames.NODE),
+
+    /* the attributes read by NodeAccess.getApprovedNode */
+    APPROVED_NODE(AttributeNames.union(AttributeNames.NODE, new String[]{NodeAccess.NODE_APPROVED})),
+
+    /* the attributes read by NodeServicesAccess.mapService */
+    NODE_SERVICE(AttributeNames.NODE_SERVICE),
+
+    /* the attributes read by ServiceMethodRestrictionsAccess.mapServiceMethodRestriction */
+    SERVICE_METHOD_RESTRICTION(AttributeNames.SERVICE_METHOD_RESTRICTION),
+
+    /* the attributes read by NodePropertyAccess.mapProperty */
+    NODE_PROPERTY(AttributeNames.NODE_PROPERTY),
+
+    /* every entry of a node subtree, as read by NodeTreeAccess.assembleNodes */
+    NODE_TREE(AttributeNames.union(AttributeNames.NODE, AttributeNames.NODE_SERVICE,
+            AttributeNames.SERVICE_METHOD_RESTRICTION, AttributeNames.NODE_PROPERTY));
+
+    /*
+     * enum constants may not refer to static fields of the enum in their arguments
+     */
+    private static final class AttributeNames {
+
+        static final String NO_ATTRIBUTES = "1.1";
+        static final String OBJECT_CLASS = "objectClass";
+
+        /* the attributes of the NodeAttribute table */
+        static final String[] NODE = union(new String[]{OBJECT_CLASS}, NodeAttribute.attributeNames());
+
+        static final String[] NODE_SERVICE = {
+            OBJECT_CLASS,
+            NodeServicesAccess.NODE_SERVICE_NAME,
+            NodeServicesAccess.NODE_SERVICE_VERSION,
+            NodeServicesAccess.NODE_SERVICE_AVAILABLE
+        };
+
+        static final String[] SERVICE_METHOD_RESTRICTION = {
+            OBJECT_CLASS,
+            ServiceMethodRestrictionsAccess.SERVICE_METHOD_NAME,
+            ServiceMethodRestrictionsAccess.SERVICE_ALLOWED_SUBJECT
+        };
+
+        static final String[] NODE_PROPERTY = {
+            OBJECT_CLASS,
+            NodePropertyAccess.NODE_PROPERTY_KEY,
+            NodePropertyAccess.NODE_PROPERTY_VALUE,
+            NodePropertyAccess.NODE_PROPERTY_TYPE
+        };
+
+        static String[] union(String[]... attributeLists) {
+            Set<String> union = new LinkedHashSet<String>();
+            for (String[] attributeList : attributeLists) {
+                union.addAll(Arrays.asList(attributeList));
+            }
+            return union.toArray(new String[union.size()]);
+        }
+    }
+
+    private final String[] attributes;
+
+    private SearchProjection(String... attributes) {
+        this.attributes = attributes;
+    }
+
+    /**
+     * @return a copy of the names of the returned attributes
+     */
+    public String[] getAttributes() {
+        return attributes.clone();
+    }
+
+    /**
+     * @return new subtree SearchControls that return the attributes of the projection
+     */
+    public SearchControls subtreeSearchControls() {
+        SearchControls ctls = new SearchControls();
+        ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        ctls.setReturningAttributes(attributes.clone());
+        return ctls;
+    }
+}
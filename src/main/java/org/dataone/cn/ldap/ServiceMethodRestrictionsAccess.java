@@ -35,7 +35,6 @@ import javax.naming.directory.BasicAttributes;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
-import javax.security.auth.x500.X500Principal;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dataone.configuration.Settings;
@@ -114,8 +113,7 @@ public class ServiceMethodRestrictionsAccess extends LDAPService {
     protected List<ServiceMethodRestriction> getServiceMethodRestrictionList(DirContext ctx, String nodeIdentifier, String serviceIdentifier) throws ServiceFailure {
         List<ServiceMethodRestriction> serviceMethodRestrictionList = new ArrayList<ServiceMethodRestriction>();
         try {
-            SearchControls ctls = new SearchControls();
-            ctls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+            SearchControls ctls = SearchProjection.SERVICE_METHOD_RESTRICTION.subtreeSearchControls();
 
             NamingEnumeration<SearchResult> results = ctx.search(
             		getBase(), 
@@ -130,19 +128,7 @@ public class ServiceMethodRestrictionsAccess extends LDAPService {
                 String nodeDn = si.getNameInNamespace();
                 log.trace("Search result found for: " + nodeDn);
 
-                //return dn;
-                // or we could double check
-                HashMap<String, NamingEnumeration> attributesMap = new HashMap<String, NamingEnumeration>();
-                Attributes attributes = si.getAttributes();
-                NamingEnumeration<? extends Attribute> values = attributes.getAll();
-                while (values.hasMore()) {
-                    Attribute attribute = values.next();
-                    String attributeName = attribute.getID().toLowerCase();
-                    NamingEnumeration<?> attributeValue = attribute.getAll();
-                    attributesMap.put(attributeName, attributeValue);
-                }
-
-                serviceMethodRestrictionList.add(this.mapServiceMethodRestriction(attributesMap));
+                serviceMethodRestrictionList.add(this.mapServiceMethodRestriction(si.getAttributes()));
             }
         } catch (CommunicationException ex) {
             log.error("LDAP Service is unresponsive " + nodeIdentifier, ex);
@@ -154,6 +140,27 @@ public class ServiceMethodRestrictionsAccess extends LDAPService {
         return serviceMethodRestrictionList;
     }
 
+    /**
+     * from the Attributes of a d1ServiceMethodRestriction entry returned from an LDAP query,
+     * fill out a Node Service Method Restriction object
+     *
+     * @param attributes
+     * @return ServiceMethodRestriction
+     * @throws NamingException
+     * 
+     */
+    protected ServiceMethodRestriction mapServiceMethodRestriction(Attributes attributes) throws NamingException {
+        HashMap<String, NamingEnumeration> attributesMap = new HashMap<String, NamingEnumeration>();
+        NamingEnumeration<? extends Attribute> values = attributes.getAll();
+        while (values.hasMore()) {
+            Attribute attribute = values.next();
+            String attributeName = attribute.getID().toLowerCase();
+            NamingEnumeration<?> attributeValue = attribute.getAll();
+            attributesMap.put(attributeName, attributeValue);
+        }
+        return this.mapServiceMethodRestriction(attributesMap);
+    }
+
     /**
      * from the provided attributeMap returned from an LDAP query,
      * fill out a Node Service Method Restriction object
@@ -172,17 +179,10 @@ public class ServiceMethodRestrictionsAccess extends LDAPService {
             List<Subject> subjectList = serviceMethodRestriction.getSubjectList();
 
             NamingEnumeration allowSubjects = attributesMap.get(SERVICE_ALLOWED_SUBJECT.toLowerCase());
+            SubjectNormalizer subjectNormalizer = SubjectNormalizer.getInstance();
             while (allowSubjects.hasMore()) {
                 Subject allowSubject = new Subject();
-                String subjectValue = (String) allowSubjects.next();
-                allowSubject.setValue(subjectValue);
-                try {
-	                X500Principal principal = new X500Principal(subjectValue);
-	                String standardizedName = principal.getName(X500Principal.RFC2253);
-	                allowSubject.setValue(standardizedName);
-                } catch (IllegalArgumentException iae) {
-                	//ignore
-                }
+                allowSubject.setValue(subjectNormalizer.forRead((String) allowSubjects.next()));
                 subjectList.add(allowSubject);
             }
         }
@@ -210,8 +210,9 @@ public class ServiceMethodRestrictionsAccess extends LDAPService {
 
         serviceAttributes.put(new BasicAttribute(SERVICE_METHOD_NAME, restrict.getMethodName()));
         if (restrict.getSubjectList() != null && !(restrict.getSubjectList().isEmpty())) {
+            SubjectNormalizer subjectNormalizer = SubjectNormalizer.getInstance();
             for (Subject subject : restrict.getSubjectList()) {
-                serviceAttributes.put(new BasicAttribute(SERVICE_ALLOWED_SUBJECT, subject.getValue()));
+                serviceAttributes.put(new BasicAttribute(SERVICE_ALLOWED_SUBJECT, subjectNormalizer.forWrite(subject.getValue())));
             }
         }
         return serviceAttributes;
@@ -0,0 +1,126 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.dataone.configuration.Settings;
+
+/**
+ * Standardizes subject DNs to their RFC 2253 form, as the mappers of node and
+ * service method restriction entries do for every subject they read.
+ *
+ * Parsing a DN is expensive and the registry holds a few hundred distinct subjects,
+ * so the standardized names are kept in a bounded, least recently used cache that
+ * is shared by all mappers. Values that are not DNs are returned as they are.
+ *
+ * Subjects are stored as they are sent unless noderegistry.subject.normalizeOnWrite
+ * is true, in which case the standardized name is stored and reads return the
+ * stored value without parsing it. Entries written before the mode was enabled
+ * keep their subjects as sent until the node is next updated.
+ *
+ * @author waltz
+ */
+final class SubjectNormalizer {
+
+    private static final SubjectNormalizer INSTANCE = new SubjectNormalizer(
+            Settings.getConfiguration().getInt("noderegistry.subjectCache.size", 1000),
+            Settings.getConfiguration().getBoolean("noderegistry.subject.normalizeOnWrite", false));
+
+    private final Map<String, String> standardizedNames;
+    private final boolean normalizeOnWrite;
+
+    /**
+     * @param maximumSize the number of subjects kept in the cache
+     * @param normalizeOnWrite if true subjects are standardized when written instead of when read
+     */
+    SubjectNormalizer(final int maximumSize, boolean normalizeOnWrite) {
+        this.standardizedNames = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maximumSize;
+            }
+        };
+        this.normalizeOnWrite = normalizeOnWrite;
+    }
+
+    /**
+     * @return the instance shared by all mappers
+     */
+    static SubjectNormalizer getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param subjectValue
+     * @return the RFC 2253 form of the DN, or the value itself if it is not a DN
+     */
+    String normalize(String subjectValue) {
+        String standardizedName;
+        synchronized (standardizedNames) {
+            standardizedName = standardizedNames.get(subjectValue);
+        }
+        if (standardizedName == null) {
+            // parsed outside of the lock, a subject may be parsed twice on first use
+            standardizedName = subjectValue;
+            try {
+                X500Principal principal = new X500Principal(subjectValue);
+                standardizedName = principal.getName(X500Principal.RFC2253);
+            } catch (IllegalArgumentException iae) {
+                // ignore
+            }
+            synchronized (standardizedNames) {
+                standardizedNames.put(subjectValue, standardizedName);
+            }
+        }
+        return standardizedName;
+    }
+
+    /**
+     * @param storedValue a subject as read from LDAP
+     * @return the subject to be set on the mapped object
+     */
+    String forRead(String storedValue) {
+        return normalizeOnWrite ? storedValue : normalize(storedValue);
+    }
+
+    /**
+     * @param subjectValue a subject as sent by the client
+     * @return the subject to be stored in LDAP
+     */
+    String forWrite(String subjectValue) {
+        return normalizeOnWrite ? normalize(subjectValue) : subjectValue;
+    }
+
+    /**
+     * @return the number of subjects in the cache
+     */
+    int size() {
+        synchronized (standardizedNames) {
+            return standardizedNames.size();
+        }
+    }
+}
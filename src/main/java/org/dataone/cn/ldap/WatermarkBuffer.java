@@ -0,0 +1,381 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.cn.ldap;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.configuration.Settings;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.util.DateTimeMarshaller;
+
+/**
+ * Buffers the harvest and log aggregation watermarks of nodes and writes them to
+ * LDAP in the background, so the LDAP write load does not grow with the number of
+ * batches processed by synchronization and log aggregation.
+ *
+ * The buffer is enabled with noderegistry.watermark.writeBehind=true and is flushed
+ * every noderegistry.watermark.flushInterval seconds, when flushWatermarks is called
+ * on the NodeFacade, and when the JVM shuts down. Repeated updates of a watermark are
+ * coalesced and only the newest value is written, with one modification per node.
+ * Advance-only updates are coalesced to the latest value, which is written advance-only
+ * so that it does not replace a later stored value.
+ * Buffered values are returned by reads immediately, including the harvest date of the
+ * Synchronization of the nodes mapped from LDAP. Nodes held by the node registry caches
+ * show the value buffered when they were loaded. A value that can not be written
+ * stays in the buffer and is retried at the next flush, unless a newer value replaced it.
+ * The values of a node that no longer exists are discarded.
+ *
+ * @author waltz
+ */
+class WatermarkBuffer implements Runnable {
+
+    public static Log log = LogFactory.getLog(WatermarkBuffer.class);
+
+    static final boolean ENABLED = Settings.getConfiguration().getBoolean("noderegistry.watermark.writeBehind", false);
+
+    /* the scheduler does not accept a zero delay */
+    private static final long MINIMUM_INTERVAL_MS = 1000L;
+
+    private final ConcurrentMap<Watermark, BufferedWatermark> pending = new ConcurrentHashMap<Watermark, BufferedWatermark>();
+    private final NodeAccess nodeAccess = new NodeAccess();
+    private final long flushIntervalMS;
+    private ScheduledExecutorService scheduler;
+
+    /*
+     * the watermark of a node, identified by the node and the attribute it is stored in
+     */
+    private static final class Watermark {
+
+        final String nodeIdentifier;
+        final String attributeName;
+
+        Watermark(String nodeIdentifier, String attributeName) {
+            this.nodeIdentifier = nodeIdentifier;
+            this.attributeName = attributeName;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Watermark)) {
+                return false;
+            }
+            Watermark other = (Watermark) obj;
+            return nodeIdentifier.equals(other.nodeIdentifier) && attributeName.equals(other.attributeName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * nodeIdentifier.hashCode() + attributeName.hashCode();
+        }
+    }
+
+    /**
+     * a buffered value, replaced by a new instance when it changes so that a flush
+     * only removes the instance it has written
+     */
+    static final class BufferedWatermark {
+
+        private final Date value;
+        private final boolean advanceOnly;
+
+        BufferedWatermark(Date value, boolean advanceOnly) {
+            this.value = new Date(value.getTime());
+            this.advanceOnly = advanceOnly;
+        }
+
+        /**
+         * @return the buffered value
+         */
+        Date getValue() {
+            return new Date(value.getTime());
+        }
+
+        /**
+         * @return true if the value only replaces an earlier stored value when it is written
+         */
+        boolean isAdvanceOnly() {
+            return advanceOnly;
+        }
+
+        /**
+         * @param storedValue the value read from LDAP, may be null
+         * @return the value the watermark will have once the buffered value is written
+         */
+        Date resolve(Date storedValue) {
+            if (advanceOnly && storedValue != null && storedValue.after(value)) {
+                return storedValue;
+            }
+            return getValue();
+        }
+    }
+
+    /* created on first use, only when the buffer is enabled */
+    private static class InstanceHolder {
+        private static final WatermarkBuffer INSTANCE = new WatermarkBuffer(
+                Settings.getConfiguration().getLong("noderegistry.watermark.flushInterval", 30L) * 1000L);
+        static {
+            INSTANCE.start();
+        }
+    }
+
+    WatermarkBuffer(long flushIntervalMS) {
+        this.flushIntervalMS = Math.max(flushIntervalMS, MINIMUM_INTERVAL_MS);
+    }
+
+    /**
+     * @return the buffer shared by all NodeAccess instances, flushing in the background
+     */
+    static WatermarkBuffer getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * flush at every flush interval and when the JVM shuts down
+     */
+    synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        log.info("starting watermark write-behind, flushing every " + flushIntervalMS + " ms");
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WatermarkBuffer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(this, flushIntervalMS, flushIntervalMS, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this, "WatermarkBuffer-shutdown"));
+    }
+
+    /**
+     * buffer a new value of a watermark, replacing any value not yet written
+     *
+     * @param nodeIdentifier
+     * @param attributeName
+     * @param value
+     */
+    void put(String nodeIdentifier, String attributeName, Date value) {
+        pending.put(new Watermark(nodeIdentifier, attributeName), new BufferedWatermark(value, false));
+    }
+
+    /**
+     * Advance the buffered value of a watermark to the given value, unless the buffered
+     * value is later. If no value is buffered, the given value is buffered advance-only:
+     * it is not written if the stored value is later by then.
+     *
+     * @param nodeIdentifier
+     * @param attributeName
+     * @param value
+     * @return true if the given value is now buffered, false if the buffered value is later
+     */
+    boolean advance(String nodeIdentifier, String attributeName, Date value) {
+        Watermark watermark = new Watermark(nodeIdentifier, attributeName);
+        while (true) {
+            BufferedWatermark buffered = pending.get(watermark);
+            if (buffered == null) {
+                if (pending.putIfAbsent(watermark, new BufferedWatermark(value, true)) == null) {
+                    return true;
+                }
+            } else if (buffered.value.after(value)) {
+                return false;
+            } else if (buffered.value.equals(value)
+                    || pending.replace(watermark, buffered, new BufferedWatermark(value, buffered.advanceOnly))) {
+                return true;
+            }
+            // written or replaced concurrently, look again
+        }
+    }
+
+    /**
+     * @param nodeIdentifier
+     * @param attributeName
+     * @return the buffered value of the watermark, null if there is none
+     */
+    Date get(String nodeIdentifier, String attributeName) {
+        BufferedWatermark buffered = pending.get(new Watermark(nodeIdentifier, attributeName));
+        return buffered == null ? null : buffered.getValue();
+    }
+
+    /**
+     * @param nodeIdentifier
+     * @param attributeName
+     * @return the buffered watermark, null if there is none
+     */
+    BufferedWatermark getBuffered(String nodeIdentifier, String attributeName) {
+        return pending.get(new Watermark(nodeIdentifier, attributeName));
+    }
+
+    /**
+     * replace the harvest date of a node read from LDAP with the buffered value, if there is one
+     *
+     * @param node a node with a Synchronization
+     */
+    void overlay(Node node) {
+        BufferedWatermark lastHarvested = getBuffered(node.getIdentifier().getValue(), NodeAccess.NODE_LAST_HARVESTED);
+        if (lastHarvested != null) {
+            node.getSynchronization().setLastHarvested(lastHarvested.resolve(node.getSynchronization().getLastHarvested()));
+        }
+    }
+
+    /**
+     * discard the buffered watermarks of a node, for instance once it has been deleted
+     *
+     * @param nodeIdentifier
+     */
+    void remove(String nodeIdentifier) {
+        for (Watermark watermark : pending.keySet()) {
+            if (watermark.nodeIdentifier.equals(nodeIdentifier)) {
+                pending.remove(watermark);
+            }
+        }
+    }
+
+    /**
+     * @return the number of buffered watermarks
+     */
+    int size() {
+        return pending.size();
+    }
+
+    @Override
+    public void run() {
+        try {
+            flush();
+        } catch (Exception ex) {
+            log.error("watermark flush failed: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * write the buffered watermarks with a context borrowed from the pool
+     */
+    void flush() throws Exception {
+        if (pending.isEmpty()) {
+            return;
+        }
+        DirContextProvider dirContextProvider = DirContextProvider.getInstance();
+        DirContext dirContext = dirContextProvider.borrowDirContext();
+        if (dirContext == null) {
+            log.warn("Context is null, the buffered watermarks are written at the next flush");
+            return;
+        }
+        try {
+            flush(dirContext);
+        } finally {
+            dirContextProvider.returnDirContext(dirContext);
+        }
+    }
+
+    /**
+     * write the buffered watermarks, one modification per node for the values that
+     * replace the stored ones, and one advance-only modification per advance-only value
+     *
+     * @param ctx
+     * @return the number of nodes written
+     */
+    int flush(DirContext ctx) {
+        Map<String, List<Map.Entry<Watermark, BufferedWatermark>>> nodeWatermarks = new LinkedHashMap<String, List<Map.Entry<Watermark, BufferedWatermark>>>();
+        for (Map.Entry<Watermark, BufferedWatermark> entry : pending.entrySet()) {
+            List<Map.Entry<Watermark, BufferedWatermark>> watermarks = nodeWatermarks.get(entry.getKey().nodeIdentifier);
+            if (watermarks == null) {
+                watermarks = new ArrayList<Map.Entry<Watermark, BufferedWatermark>>();
+                nodeWatermarks.put(entry.getKey().nodeIdentifier, watermarks);
+            }
+            // the entries of a ConcurrentHashMap do not follow later changes of the map
+            watermarks.add(entry);
+        }
+
+        int written = 0;
+        for (Map.Entry<String, List<Map.Entry<Watermark, BufferedWatermark>>> node : nodeWatermarks.entrySet()) {
+            List<ModificationItem> mods = new ArrayList<ModificationItem>();
+            List<Map.Entry<Watermark, BufferedWatermark>> replaced = new ArrayList<Map.Entry<Watermark, BufferedWatermark>>();
+            List<Map.Entry<Watermark, BufferedWatermark>> advanced = new ArrayList<Map.Entry<Watermark, BufferedWatermark>>();
+            for (Map.Entry<Watermark, BufferedWatermark> watermark : node.getValue()) {
+                if (watermark.getValue().advanceOnly) {
+                    advanced.add(watermark);
+                } else {
+                    // a replace creates the attribute if the entry does not have it yet
+                    mods.add(new ModificationItem(DirContext.REPLACE_ATTRIBUTE, new BasicAttribute(
+                            watermark.getKey().attributeName, DateTimeMarshaller.serializeDateToUTC(watermark.getValue().value))));
+                    replaced.add(watermark);
+                }
+            }
+            NodeReference nodeReference = new NodeReference();
+            nodeReference.setValue(node.getKey());
+            String dnNodeIdentifier = nodeAccess.buildNodeDN(nodeReference);
+            try {
+                if (!mods.isEmpty()) {
+                    ctx.modifyAttributes(dnNodeIdentifier, mods.toArray(new ModificationItem[mods.size()]));
+                    removeWritten(replaced);
+                }
+                for (Map.Entry<Watermark, BufferedWatermark> watermark : advanced) {
+                    nodeAccess.writeWatermark(ctx, nodeReference, watermark.getKey().attributeName,
+                            watermark.getValue().value, true);
+                    pending.remove(watermark.getKey(), watermark.getValue());
+                }
+            } catch (NameNotFoundException ex) {
+                log.warn("discarding the watermarks of " + dnNodeIdentifier + ", the node no longer exists");
+                removeWritten(node.getValue());
+                continue;
+            } catch (NamingException ex) {
+                log.error("Problem writing the watermarks of " + dnNodeIdentifier + ", retrying at the next flush", ex);
+                continue;
+            }
+            written++;
+        }
+        if (written > 0) {
+            log.debug("flushed the watermarks of " + written + " nodes");
+        }
+        return written;
+    }
+
+    /*
+     * remove the written values, keeping values buffered while the flush was running
+     */
+    private void removeWritten(List<Map.Entry<Watermark, BufferedWatermark>> watermarks) {
+        for (Map.Entry<Watermark, BufferedWatermark> watermark : watermarks) {
+            pending.remove(watermark.getKey(), watermark.getValue());
+        }
+    }
+}
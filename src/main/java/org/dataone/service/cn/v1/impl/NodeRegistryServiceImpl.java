@@ -22,7 +22,15 @@
 
 package org.dataone.service.cn.v1.impl;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.dataone.configuration.Settings;
 import org.dataone.service.cn.v1.NodeRegistryService;
+import org.dataone.service.cn.v2.impl.NodeListPayload;
+import org.dataone.service.cn.v2.impl.NodeListPayloadCache;
+import org.dataone.service.cn.v2.impl.NodeListSnapshot;
 import org.dataone.service.exceptions.IdentifierNotUnique;
 import org.dataone.service.exceptions.InvalidRequest;
 import org.dataone.service.exceptions.NotFound;
@@ -31,7 +39,6 @@ import org.dataone.service.exceptions.ServiceFailure;
 import org.dataone.service.types.v1.Node;
 import org.dataone.service.types.v1.NodeList;
 import org.dataone.service.types.v1.NodeReference;
-import org.dataone.service.types.v2.TypeFactory;
 
 /**
  * Though this is an implementation based on the CNRegister interface.
@@ -58,8 +65,47 @@ import org.dataone.service.types.v2.TypeFactory;
  */
 public class NodeRegistryServiceImpl implements NodeRegistryService {
 
+    // shares the caches, the background refresher and the change listener of the v2 service
     private org.dataone.service.cn.v2.impl.NodeRegistryServiceImpl impl = new org.dataone.service.cn.v2.impl.NodeRegistryServiceImpl();
 
+    static final boolean NODELIST_PAYLOAD_GZIP = Settings.getConfiguration().getBoolean("noderegistry.nodeListPayload.gzip", true);
+    private final NodeListPayloadCache nodeListPayloadCache = new NodeListPayloadCache(
+            new NodeListPayloadCache.PayloadBuilder() {
+                @Override
+                public NodeListPayload build(NodeListSnapshot snapshot) throws ServiceFailure {
+                    return NodeListPayload.create(getConvertedNodeList(snapshot), snapshot.getVersion(),
+                            NODELIST_PAYLOAD_GZIP);
+                }
+            });
+
+    /*
+     * v1 conversions of the v2 data, reused until the v2 data they were converted from changes
+     */
+    private final AtomicReference<ConvertedNodeList> convertedNodeList = new AtomicReference<ConvertedNodeList>();
+    private final Map<String, ConvertedNode> convertedNodeMap = new ConcurrentHashMap<String, ConvertedNode>();
+
+    private static class ConvertedNodeList {
+
+        final long version;
+        final NodeList nodeList;
+
+        ConvertedNodeList(long version, NodeList nodeList) {
+            this.version = version;
+            this.nodeList = nodeList;
+        }
+    }
+
+    private static class ConvertedNode {
+
+        final org.dataone.service.types.v2.Node v2Node;
+        final Node node;
+
+        ConvertedNode(org.dataone.service.types.v2.Node v2Node, Node node) {
+            this.v2Node = v2Node;
+            this.node = node;
+        }
+    }
+
     
     /*
      * Retreive a list of nodes that have been registered and approved
@@ -73,32 +119,42 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
      */
     @Override
     public NodeList listNodes() throws NotImplemented, ServiceFailure {
-        
-        
-    	NodeList nodeList = null;
-        org.dataone.service.types.v2.NodeList nodes = impl.listNodes();
-        
-        // TODO: which is the better approach for serializing the structures?
-        // can we just convert the NodeList without iterating?
-        try {
-        	nodeList = TypeFactory.convertTypeFromType(nodes, NodeList.class);
-        } catch (Exception e) {
-        	
-        	// or do we need to iterate over the nodes and convert one by one?
-        	nodeList = new NodeList();
-        	for (org.dataone.service.types.v2.Node n: nodes.getNodeList()) {
-        		Node currentNode = null;
-    			try {
-    				currentNode = TypeFactory.convertTypeFromType(n, Node.class);
-    			} catch (Exception ee) {
-    				throw new ServiceFailure("0000", ee.getMessage());
-    			}
-        		nodeList.addNode(currentNode);
-        	}
-		}
-
-        return nodeList;
+        return getConvertedNodeList(impl.getNodeListSnapshot());
     }
+
+    /*
+     * return the v1 conversion of the snapshot's NodeList, converting it only
+     * once for every version of the snapshot. The returned NodeList is shared
+     * and must not be modified
+     */
+    private NodeList getConvertedNodeList(NodeListSnapshot snapshot) {
+        ConvertedNodeList converted = convertedNodeList.get();
+        if (converted != null && converted.version == snapshot.getVersion()) {
+            return converted.nodeList;
+        }
+        ConvertedNodeList newConverted = new ConvertedNodeList(snapshot.getVersion(), NodeTypeConverter.toV1(snapshot.getNodeList()));
+        // never replace the conversion of a newer snapshot, built concurrently
+        while (!convertedNodeList.compareAndSet(converted, newConverted)) {
+            converted = convertedNodeList.get();
+            if (converted != null && converted.version >= newConverted.version) {
+                break;
+            }
+        }
+        return newConverted.nodeList;
+    }
+
+    /**
+     * Return the serialized v1 XML of the current NodeList, with its ETag. The payload
+     * is built once for every version of the v2 NodeList snapshot.
+     *
+     * @return the NodeListPayload of the current snapshot
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    public NodeListPayload getNodeListPayload() throws NotImplemented, ServiceFailure {
+        return nodeListPayloadCache.get(impl.getNodeListSnapshot());
+    }
+
     /*
      * Retreive a list of nodes that have been registered but not approved
      * with the DataONE infrastructure.
@@ -111,31 +167,7 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
      */
     @Override
     public NodeList listPendingNodes() throws NotImplemented, ServiceFailure, NotFound {
-        
-        
-    	NodeList nodeList = null;
-        org.dataone.service.types.v2.NodeList nodes = impl.listPendingNodes();
-        
-        // TODO: which is the better approach for serializing the structures?
-        // can we just convert the NodeList without iterating?
-        try {
-        	nodeList = TypeFactory.convertTypeFromType(nodes, NodeList.class);
-        } catch (Exception e) {
-        	
-        	// or do we need to iterate over the nodes and convert one by one?
-        	nodeList = new NodeList();
-        	for (org.dataone.service.types.v2.Node n: nodes.getNodeList()) {
-        		Node currentNode = null;
-    			try {
-    				currentNode = TypeFactory.convertTypeFromType(n, Node.class);
-    			} catch (Exception ee) {
-    				throw new ServiceFailure("0000", ee.getMessage());
-    			}
-        		nodeList.addNode(currentNode);
-        	}
-		}
-
-        return nodeList;
+        return NodeTypeConverter.toV1(impl.listPendingNodes());
     }
     /*
      * Retreive a node that have been registered
@@ -152,14 +184,20 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
     @Override
     public Node getNodeCapabilities(NodeReference nodeIdentifier) throws ServiceFailure, NotFound {
 
-    	Node node = null;
-    	try {
-        	node = TypeFactory.convertTypeFromType(impl.getNodeCapabilities(nodeIdentifier), Node.class);
-        } catch (Exception e) {
-        	e.printStackTrace();
-			throw new ServiceFailure("0000", e.getClass().getSimpleName() + ":" + e.getMessage());        	
+        org.dataone.service.types.v2.Node v2Node = null;
+        try {
+            v2Node = impl.getNodeCapabilities(nodeIdentifier);
+        } catch (NotFound ex) {
+            convertedNodeMap.remove(nodeIdentifier.getValue());
+            throw ex;
         }
-
+        // the v2 impl returns the same instance until the node is reloaded
+        ConvertedNode converted = convertedNodeMap.get(nodeIdentifier.getValue());
+        if (converted != null && converted.v2Node == v2Node) {
+            return converted.node;
+        }
+        Node node = NodeTypeConverter.toV1(v2Node);
+        convertedNodeMap.put(nodeIdentifier.getValue(), new ConvertedNode(v2Node, node));
         return node;
     }
 
@@ -180,13 +218,7 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
 
     @Override
     public NodeReference register(Node node) throws ServiceFailure, InvalidRequest, IdentifierNotUnique, NotImplemented  {
-    	org.dataone.service.types.v2.Node currentNode = null;
-    	try {
-    		currentNode = TypeFactory.convertTypeFromType(node, org.dataone.service.types.v2.Node.class);
-        } catch (Exception e) {
-			throw new ServiceFailure("0000", e.getMessage());        	
-        }
-		return impl.register(currentNode);
+		return impl.register(NodeTypeConverter.toV2(node));
 
     }
     /*
@@ -206,14 +238,7 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
 
     @Override
     public boolean updateNodeCapabilities(NodeReference nodeid, Node node) throws NotImplemented, ServiceFailure, InvalidRequest, NotFound {
-    	org.dataone.service.types.v2.Node currentNode = null;
-    	try {
-    		currentNode = TypeFactory.convertTypeFromType(node, org.dataone.service.types.v2.Node.class);
-        } catch (Exception e) {
-        	e.printStackTrace();
-			throw new ServiceFailure("0000", e.getClass().getSimpleName() + ":" + e.getMessage());        	
-        }
-		return impl.updateNodeCapabilities(nodeid, currentNode);
+		return impl.updateNodeCapabilities(nodeid, NodeTypeConverter.toV2(node));
     }
     /*
      * TODO: completed details of this function as a service representation
@@ -231,6 +256,7 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
     @Override
     public void deleteNode(NodeReference nodeReference) throws ServiceFailure {
 		impl.deleteNode(nodeReference);
+		convertedNodeMap.remove(nodeReference.getValue());
     }
     /*
      * TODO: completed details of this function as a service representation
@@ -0,0 +1,237 @@
+/**
+ * This work was created by participants in the DataONE project, and is
+ * jointly copyrighted by participating institutions in DataONE. For
+ * more information on DataONE, see our web site at http://dataone.org.
+ *
+ *   Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * $Id$
+ */
+
+package org.dataone.service.cn.v1.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.dataone.service.types.v1.Node;
+import org.dataone.service.types.v1.NodeList;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.NodeReplicationPolicy;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Ping;
+import org.dataone.service.types.v1.Schedule;
+import org.dataone.service.types.v1.Service;
+import org.dataone.service.types.v1.ServiceMethodRestriction;
+import org.dataone.service.types.v1.Services;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v1.Synchronization;
+
+/**
+ * Converts Nodes between the v1 and v2 types field by field, replacing the generic
+ * TypeFactory conversion for the types of the node registry.
+ *
+ * The converted Node shares no mutable object with the source Node: the services,
+ * restrictions, synchronization, ping, replication policy and subjects are all copied.
+ * v1 Nodes have no properties, so the v2 properties are dropped when converting to v1
+ * and a Node converted to v2 has an empty property list.
+ *
+ * @author waltz
+ */
+final class NodeTypeConverter {
+
+    private NodeTypeConverter() {
+    }
+
+    /**
+     * @param nodeList a v2 NodeList
+     * @return the v1 NodeList
+     */
+    static NodeList toV1(org.dataone.service.types.v2.NodeList nodeList) {
+        List<Node> nodes = new ArrayList<Node>(nodeList.sizeNodeList());
+        for (org.dataone.service.types.v2.Node node : nodeList.getNodeList()) {
+            nodes.add(toV1(node));
+        }
+        NodeList v1NodeList = new NodeList();
+        v1NodeList.setNodeList(nodes);
+        return v1NodeList;
+    }
+
+    /**
+     * @param node a v2 Node
+     * @return the v1 Node
+     */
+    static Node toV1(org.dataone.service.types.v2.Node node) {
+        if (node == null) {
+            return null;
+        }
+        Node v1Node = new Node();
+        v1Node.setIdentifier(copy(node.getIdentifier()));
+        v1Node.setName(node.getName());
+        v1Node.setDescription(node.getDescription());
+        v1Node.setBaseURL(node.getBaseURL());
+        v1Node.setServices(copy(node.getServices()));
+        v1Node.setSynchronization(copy(node.getSynchronization()));
+        v1Node.setNodeReplicationPolicy(copy(node.getNodeReplicationPolicy()));
+        v1Node.setPing(copy(node.getPing()));
+        v1Node.setSubjectList(copySubjects(node.getSubjectList()));
+        v1Node.setContactSubjectList(copySubjects(node.getContactSubjectList()));
+        v1Node.setReplicate(node.isReplicate());
+        v1Node.setSynchronize(node.isSynchronize());
+        v1Node.setType(node.getType());
+        v1Node.setState(node.getState());
+        return v1Node;
+    }
+
+    /**
+     * @param node a v1 Node
+     * @return the v2 Node, with an empty property list
+     */
+    static org.dataone.service.types.v2.Node toV2(Node node) {
+        if (node == null) {
+            return null;
+        }
+        org.dataone.service.types.v2.Node v2Node = new org.dataone.service.types.v2.Node();
+        v2Node.setIdentifier(copy(node.getIdentifier()));
+        v2Node.setName(node.getName());
+        v2Node.setDescription(node.getDescription());
+        v2Node.setBaseURL(node.getBaseURL());
+        v2Node.setServices(copy(node.getServices()));
+        v2Node.setSynchronization(copy(node.getSynchronization()));
+        v2Node.setNodeReplicationPolicy(copy(node.getNodeReplicationPolicy()));
+        v2Node.setPing(copy(node.getPing()));
+        v2Node.setSubjectList(copySubjects(node.getSubjectList()));
+        v2Node.setContactSubjectList(copySubjects(node.getContactSubjectList()));
+        v2Node.setReplicate(node.isReplicate());
+        v2Node.setSynchronize(node.isSynchronize());
+        v2Node.setType(node.getType());
+        v2Node.setState(node.getState());
+        return v2Node;
+    }
+
+    private static NodeReference copy(NodeReference nodeReference) {
+        if (nodeReference == null) {
+            return null;
+        }
+        NodeReference copy = new NodeReference();
+        copy.setValue(nodeReference.getValue());
+        return copy;
+    }
+
+    private static Services copy(Services services) {
+        if (services == null) {
+            return null;
+        }
+        List<Service> serviceList = new ArrayList<Service>(services.sizeServiceList());
+        for (Service service : services.getServiceList()) {
+            Service copy = new Service();
+            copy.setName(service.getName());
+            copy.setVersion(service.getVersion());
+            copy.setAvailable(service.getAvailable());
+            if (service.getRestrictionList() != null) {
+                List<ServiceMethodRestriction> restrictionList = new ArrayList<ServiceMethodRestriction>(
+                        service.getRestrictionList().size());
+                for (ServiceMethodRestriction restriction : service.getRestrictionList()) {
+                    ServiceMethodRestriction restrictionCopy = new ServiceMethodRestriction();
+                    restrictionCopy.setMethodName(restriction.getMethodName());
+                    restrictionCopy.setSubjectList(copySubjects(restriction.getSubjectList()));
+                    restrictionList.add(restrictionCopy);
+                }
+                copy.setRestrictionList(restrictionList);
+            }
+            serviceList.add(copy);
+        }
+        Services copy = new Services();
+        copy.setServiceList(serviceList);
+        return copy;
+    }
+
+    private static Synchronization copy(Synchronization synchronization) {
+        if (synchronization == null) {
+            return null;
+        }
+        Synchronization copy = new Synchronization();
+        Schedule schedule = synchronization.getSchedule();
+        if (schedule != null) {
+            Schedule scheduleCopy = new Schedule();
+            scheduleCopy.setSec(schedule.getSec());
+            scheduleCopy.setMin(schedule.getMin());
+            scheduleCopy.setHour(schedule.getHour());
+            scheduleCopy.setMday(schedule.getMday());
+            scheduleCopy.setMon(schedule.getMon());
+            scheduleCopy.setWday(schedule.getWday());
+            scheduleCopy.setYear(schedule.getYear());
+            copy.setSchedule(scheduleCopy);
+        }
+        copy.setLastHarvested(copy(synchronization.getLastHarvested()));
+        copy.setLastCompleteHarvest(copy(synchronization.getLastCompleteHarvest()));
+        return copy;
+    }
+
+    private static NodeReplicationPolicy copy(NodeReplicationPolicy policy) {
+        if (policy == null) {
+            return null;
+        }
+        NodeReplicationPolicy copy = new NodeReplicationPolicy();
+        // BigIntegers are immutable
+        copy.setMaxObjectSize(policy.getMaxObjectSize());
+        copy.setSpaceAllocated(policy.getSpaceAllocated());
+        if (policy.getAllowedNodeList() != null) {
+            List<NodeReference> allowedNodeList = new ArrayList<NodeReference>(policy.getAllowedNodeList().size());
+            for (NodeReference allowedNode : policy.getAllowedNodeList()) {
+                allowedNodeList.add(copy(allowedNode));
+            }
+            copy.setAllowedNodeList(allowedNodeList);
+        }
+        if (policy.getAllowedObjectFormatList() != null) {
+            List<ObjectFormatIdentifier> allowedObjectFormatList = new ArrayList<ObjectFormatIdentifier>(
+                    policy.getAllowedObjectFormatList().size());
+            for (ObjectFormatIdentifier allowedObjectFormat : policy.getAllowedObjectFormatList()) {
+                ObjectFormatIdentifier formatCopy = new ObjectFormatIdentifier();
+                formatCopy.setValue(allowedObjectFormat.getValue());
+                allowedObjectFormatList.add(formatCopy);
+            }
+            copy.setAllowedObjectFormatList(allowedObjectFormatList);
+        }
+        return copy;
+    }
+
+    private static Ping copy(Ping ping) {
+        if (ping == null) {
+            return null;
+        }
+        Ping copy = new Ping();
+        copy.setSuccess(ping.getSuccess());
+        copy.setLastSuccess(copy(ping.getLastSuccess()));
+        return copy;
+    }
+
+    private static Date copy(Date date) {
+        return date == null ? null : new Date(date.getTime());
+    }
+
+    private static List<Subject> copySubjects(List<Subject> subjects) {
+        if (subjects == null) {
+            return null;
+        }
+        List<Subject> copy = new ArrayList<Subject>(subjects.size());
+        for (Subject subject : subjects) {
+            Subject subjectCopy = new Subject();
+            subjectCopy.setValue(subject.getValue());
+            copy.add(subjectCopy);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2;
+
+import org.dataone.service.exceptions.BaseException;
+import org.dataone.service.types.v1.NodeReference;
+
+/**
+ * The outcome of registering one Node of a batch with NodeRegistryService.registerAll.
+ *
+ * A registered Node has no exception. A Node that was rejected or failed to be created
+ * carries the exception that NodeRegistryService.register would have thrown for it.
+ *
+ * @author waltz
+ */
+public class NodeRegistrationResult {
+
+    private final NodeReference nodeReference;
+    private final BaseException exception;
+
+    public NodeRegistrationResult(NodeReference nodeReference, BaseException exception) {
+        this.nodeReference = nodeReference;
+        this.exception = exception;
+    }
+
+    /**
+     * @return the identifier of the Node, may be null if the submitted Node had none
+     */
+    public NodeReference getNodeReference() {
+        return nodeReference;
+    }
+
+    /**
+     * @return true if the Node was created
+     */
+    public boolean isRegistered() {
+        return exception == null;
+    }
+
+    /**
+     * @return the reason the Node was not registered, or null if it was
+     */
+    public BaseException getException() {
+        return exception;
+    }
+}
@@ -6,6 +6,9 @@
 
 package org.dataone.service.cn.v2;
 
+import java.util.Collection;
+import java.util.List;
+
 import org.dataone.service.exceptions.IdentifierNotUnique;
 import org.dataone.service.exceptions.InvalidRequest;
 import org.dataone.service.exceptions.NotFound;
@@ -81,6 +84,23 @@ public interface NodeRegistryService {
      */
     NodeReference register(Node node) throws ServiceFailure, InvalidRequest, IdentifierNotUnique, NotImplemented;
 
+    /*
+     * Create a batch of new nodes in the system. Each node is validated as by register,
+     * against the registered node identifiers and baseURLs, and
+     * against the nodes that precede it in the batch.
+     *
+     * A node that fails validation or creation does not prevent the others from being
+     * registered. The results are returned in the iteration order of the nodes.
+     *
+     * @author waltz
+     * @param Collection<Node> The Nodes to be registered
+     * @return The outcome of the registration of each Node
+     * @throws ServiceFailure if the registered nodes could not be listed
+     * @throws NotImplemented
+     *
+     */
+    List<NodeRegistrationResult> registerAll(Collection<Node> nodes) throws ServiceFailure, NotImplemented;
+
     /*
      * Update any attribute of a node with the exception of the Node Identifier
      *
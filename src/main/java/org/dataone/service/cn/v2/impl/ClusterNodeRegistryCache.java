@@ -0,0 +1,428 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2.impl;
+
+import java.io.FileNotFoundException;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.service.exceptions.NotFound;
+import org.dataone.service.exceptions.NotImplemented;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.types.v2.NodeList;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.config.FileSystemXmlConfig;
+import com.hazelcast.config.NearCacheConfig;
+import com.hazelcast.config.XmlConfigBuilder;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+import com.hazelcast.core.ILock;
+import com.hazelcast.core.IMap;
+
+/**
+ * Holds the approved NodeList and the node capabilities in distributed Hazelcast maps,
+ * so that the Coordinating Nodes of a cluster share one copy of the node registry
+ * instead of each refreshing their own from LDAP.
+ *
+ * The NodeList is refreshed from LDAP by a single member at a time, the one that holds
+ * the cluster wide refresh lock. While it refreshes, the other members are served the
+ * previous NodeList from the map; they only wait if there is no NodeList in the cluster yet,
+ * or if it has become older than the maximum staleness. A member that cannot obtain the lock
+ * within the lock timeout, because the member holding it is stuck, loads and publishes the
+ * NodeList itself.
+ * Nodes are read through the map: a node missing from the map is loaded from LDAP by one
+ * member while holding the lock of its key, and expires from the map after its time to live.
+ *
+ * Both maps are configured with a near cache that is invalidated when an entry changes,
+ * so repeated reads are served from the memory of the member without a network round trip.
+ * The near cache has to be configured before the Hazelcast instance is created, see
+ * newHazelcastInstance.
+ *
+ * @author waltz
+ */
+class ClusterNodeRegistryCache {
+
+    public static Log log = LogFactory.getLog(ClusterNodeRegistryCache.class);
+
+    static final String NODES_MAP = "hzNodeRegistryNodes";
+    static final String NODELIST_MAP = "hzNodeRegistryNodeList";
+    static final String REFRESH_LOCK = "hzNodeRegistryRefreshLock";
+
+    private static final String APPROVED_NODELIST_KEY = "approved";
+
+    /**
+     * Loads the approved NodeList from the backing store
+     */
+    interface NodeListLoader {
+
+        NodeList load() throws NotImplemented, ServiceFailure;
+    }
+
+    private final HazelcastInstance hazelcast;
+    private final IMap<String, Node> nodes;
+    private final IMap<String, ClusterNodeList> nodeLists;
+    private final ILock refreshLock;
+    private final NodeListLoader nodeListLoader;
+    private final NodeCapabilitiesCache.NodeLoader nodeLoader;
+    private final long nodeTimeToLiveMS;
+    private final long refreshLockTimeoutMS;
+
+    /*
+     * the snapshot last served by this member, reused while the cluster
+     * holds the same version so that derived representations remain valid
+     */
+    private final AtomicReference<NodeListSnapshot> localSnapshot = new AtomicReference<NodeListSnapshot>();
+
+    /**
+     * @param hazelcast a member of the cluster, configured with configureNearCache
+     * @param nodeListLoader loads the approved NodeList from LDAP
+     * @param nodeLoader loads a single node from LDAP
+     * @param nodeTimeToLiveMS milliseconds after which a node expires from the map,
+     *            nodes are not held in the map if it is not positive
+     * @param refreshLockTimeoutMS milliseconds to wait for the refresh lock once the
+     *            NodeList is older than the maximum staleness
+     */
+    ClusterNodeRegistryCache(HazelcastInstance hazelcast, NodeListLoader nodeListLoader,
+            NodeCapabilitiesCache.NodeLoader nodeLoader, long nodeTimeToLiveMS, long refreshLockTimeoutMS) {
+        this.hazelcast = hazelcast;
+        this.nodes = hazelcast.getMap(NODES_MAP);
+        this.nodeLists = hazelcast.getMap(NODELIST_MAP);
+        this.refreshLock = hazelcast.getLock(REFRESH_LOCK);
+        this.nodeListLoader = nodeListLoader;
+        this.nodeLoader = nodeLoader;
+        this.nodeTimeToLiveMS = nodeTimeToLiveMS;
+        this.refreshLockTimeoutMS = refreshLockTimeoutMS;
+    }
+
+    /**
+     * Create a Hazelcast member from the configuration file, or from the default
+     * hazelcast.xml lookup of Hazelcast if no file is given, with the near caches
+     * of the node registry maps added to it.
+     *
+     * @param configFile path to a Hazelcast XML configuration, may be null
+     * @param nearCacheTimeToLiveSeconds
+     * @param nearCacheMaxSize
+     * @return a started Hazelcast member
+     * @throws ServiceFailure if the configuration file does not exist
+     */
+    static HazelcastInstance newHazelcastInstance(String configFile, int nearCacheTimeToLiveSeconds,
+            int nearCacheMaxSize) throws ServiceFailure {
+        Config config;
+        if (configFile == null || configFile.trim().isEmpty()) {
+            config = new XmlConfigBuilder().build();
+        } else {
+            try {
+                config = new FileSystemXmlConfig(configFile);
+            } catch (FileNotFoundException ex) {
+                throw new ServiceFailure("-1", "Hazelcast configuration " + configFile + " not found");
+            }
+        }
+        configureNearCache(config, nearCacheTimeToLiveSeconds, nearCacheMaxSize);
+        return Hazelcast.newHazelcastInstance(config);
+    }
+
+    /**
+     * add a near cache to the node registry maps of the configuration. Near cached
+     * entries are invalidated when they change anywhere in the cluster, the time to
+     * live bounds their staleness should an invalidation be missed
+     *
+     * @param config
+     * @param timeToLiveSeconds
+     * @param maxSize
+     * @return the configuration
+     */
+    static Config configureNearCache(Config config, int timeToLiveSeconds, int maxSize) {
+        for (String mapName : new String[] { NODES_MAP, NODELIST_MAP }) {
+            NearCacheConfig nearCacheConfig = new NearCacheConfig();
+            nearCacheConfig.setTimeToLiveSeconds(timeToLiveSeconds);
+            nearCacheConfig.setMaxSize(maxSize);
+            nearCacheConfig.setEvictionPolicy("LRU");
+            nearCacheConfig.setInvalidateOnChange(true);
+            config.getMapConfig(mapName).setNearCacheConfig(nearCacheConfig);
+        }
+        return config;
+    }
+
+    /**
+     * Return the NodeList held by the cluster, refreshing it from LDAP if it is older than
+     * maxAgeMS. Only one member refreshes at a time, the others are served the current
+     * NodeList in the meantime, unless it is older than maxStalenessMS. They then wait for
+     * the refresh lock, and load the NodeList without it if it is not released within the
+     * lock timeout.
+     *
+     * @param maxAgeMS
+     * @param maxStalenessMS
+     * @return the current NodeListSnapshot
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    NodeListSnapshot getNodeListSnapshot(long maxAgeMS, long maxStalenessMS) throws NotImplemented,
+            ServiceFailure {
+        ClusterNodeList clusterNodeList = nodeLists.get(APPROVED_NODELIST_KEY);
+        if (clusterNodeList == null) {
+            // nothing to serve, wait for whichever member is loading it
+            refreshLock.lock();
+            try {
+                clusterNodeList = loadIfExpired(maxAgeMS);
+            } finally {
+                refreshLock.unlock();
+            }
+        } else if (clusterNodeList.isExpired(maxAgeMS)) {
+            if (refreshLock.tryLock()) {
+                try {
+                    clusterNodeList = loadIfExpired(maxAgeMS);
+                } finally {
+                    refreshLock.unlock();
+                }
+            } else if (clusterNodeList.getAgeMS() >= maxStalenessMS) {
+                clusterNodeList = loadWhenStale(maxAgeMS, maxStalenessMS);
+            }
+        }
+        return toSnapshot(clusterNodeList);
+    }
+
+    /**
+     * Refresh the NodeList of the cluster from LDAP, used by the background refresher of
+     * every member. The refresh is skipped if another member is refreshing, or refreshed
+     * less than minimumAgeMS ago.
+     *
+     * @param minimumAgeMS
+     * @return true if this member refreshed the NodeList
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    boolean refreshNodeList(long minimumAgeMS) throws NotImplemented, ServiceFailure {
+        if (!refreshLock.tryLock()) {
+            return false;
+        }
+        try {
+            ClusterNodeList current = nodeLists.get(APPROVED_NODELIST_KEY);
+            if (current != null && !current.isExpired(minimumAgeMS)) {
+                return false;
+            }
+            load(current);
+            return true;
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Reload every node held in the map from LDAP, used by the background refresher. Only
+     * the member that holds the refresh lock reloads the nodes. Nodes that no longer exist
+     * are removed from the map.
+     */
+    void refreshNodes() {
+        if (!refreshLock.tryLock()) {
+            return;
+        }
+        try {
+            for (String nodeId : nodes.keySet()) {
+                try {
+                    nodes.put(nodeId, nodeLoader.load(nodeId), nodeTimeToLiveMS, TimeUnit.MILLISECONDS);
+                } catch (NotFound ex) {
+                    log.info("node " + nodeId + " is no longer registered, removing from the cluster");
+                    nodes.remove(nodeId);
+                } catch (ServiceFailure ex) {
+                    log.error("refresh of node " + nodeId + " failed: " + ex.getMessage());
+                }
+            }
+        } finally {
+            refreshLock.unlock();
+        }
+    }
+
+    /**
+     * Return the node held by the cluster, loading it from LDAP if it is not in the map.
+     * Concurrent loads of the same node anywhere in the cluster are serialized on the
+     * lock of its key, so only one of them reads LDAP. Failed loads are not cached.
+     *
+     * @param nodeId
+     * @return Node
+     * @throws ServiceFailure
+     * @throws NotFound
+     */
+    Node getNode(String nodeId) throws ServiceFailure, NotFound {
+        Node node = nodes.get(nodeId);
+        if (node != null) {
+            return node;
+        }
+        nodes.lock(nodeId);
+        try {
+            node = nodes.get(nodeId);
+            if (node == null) {
+                node = nodeLoader.load(nodeId);
+                if (node == null) {
+                    throw new ServiceFailure("4803", "could not retrieve " + nodeId + " from the node registry");
+                }
+                // a time to live of 0 would keep the node in the map forever
+                if (nodeTimeToLiveMS > 0L) {
+                    nodes.put(nodeId, node, nodeTimeToLiveMS, TimeUnit.MILLISECONDS);
+                }
+            }
+            return node;
+        } finally {
+            nodes.unlock(nodeId);
+        }
+    }
+
+    /**
+     * remove the node from the cluster so that the next request reloads it
+     *
+     * @param nodeId
+     */
+    void invalidate(String nodeId) {
+        nodes.remove(nodeId);
+    }
+
+    /**
+     * force the NodeList to be refreshed by the next caller on any member, callers
+     * continue to be served the current NodeList until it is refreshed
+     */
+    void invalidateNodeList() {
+        ClusterNodeList current = nodeLists.get(APPROVED_NODELIST_KEY);
+        if (current != null && !current.invalidated) {
+            // do not overwrite a NodeList refreshed in the meantime
+            nodeLists.replace(APPROVED_NODELIST_KEY, current, current.invalidate());
+        }
+    }
+
+    /**
+     * shut down the Hazelcast member, this member leaves the cluster
+     */
+    void shutdown() {
+        hazelcast.getLifecycleService().shutdown();
+    }
+
+    /*
+     * the NodeList is too stale to serve and another member holds the refresh lock,
+     * which may be stuck on LDAP
+     */
+    private ClusterNodeList loadWhenStale(long maxAgeMS, long maxStalenessMS) throws NotImplemented,
+            ServiceFailure {
+        log.warn("cluster nodelist is older than " + maxStalenessMS + " ms, waiting for the refresh lock");
+        boolean locked;
+        try {
+            locked = refreshLock.tryLock(refreshLockTimeoutMS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServiceFailure("-1", "interrupted while waiting for the cluster nodelist refresh");
+        }
+        if (locked) {
+            try {
+                return loadIfExpired(maxAgeMS);
+            } finally {
+                refreshLock.unlock();
+            }
+        }
+        ClusterNodeList current = nodeLists.get(APPROVED_NODELIST_KEY);
+        if (current != null && current.getAgeMS() < maxStalenessMS) {
+            // published by another member that gave up waiting
+            return current;
+        }
+        log.error("cluster nodelist refresh lock not released within " + refreshLockTimeoutMS
+                + " ms, loading the nodelist without it");
+        return load(current);
+    }
+
+    /*
+     * Must be called while holding the refreshLock
+     */
+    private ClusterNodeList loadIfExpired(long maxAgeMS) throws NotImplemented, ServiceFailure {
+        ClusterNodeList current = nodeLists.get(APPROVED_NODELIST_KEY);
+        if (current != null && !current.isExpired(maxAgeMS)) {
+            // refreshed by another member while waiting for the lock
+            return current;
+        }
+        return load(current);
+    }
+
+    /*
+     * load the approved NodeList from LDAP and publish it to the cluster, unless a member
+     * that gave up waiting for the refresh lock has published a newer version in the meantime.
+     * Called while holding the refreshLock, or once the lock timeout has passed
+     */
+    private ClusterNodeList load(ClusterNodeList current) throws NotImplemented, ServiceFailure {
+        NodeList nodeList = nodeListLoader.load();
+        while (true) {
+            ClusterNodeList present = nodeLists.get(APPROVED_NODELIST_KEY);
+            if (present != null && current != null && present.version != current.version) {
+                return present;
+            }
+            // the first version is taken from the clock so that a restarted cluster
+            // does not reuse the versions, and ETags, of its previous NodeLists
+            long version = present == null ? System.currentTimeMillis() : present.version + 1;
+            ClusterNodeList clusterNodeList = new ClusterNodeList(nodeList, version, System.currentTimeMillis(), false);
+            // an invalidation replaces the present NodeList without changing its version
+            if (present == null ? nodeLists.putIfAbsent(APPROVED_NODELIST_KEY, clusterNodeList) == null
+                    : nodeLists.replace(APPROVED_NODELIST_KEY, present, clusterNodeList)) {
+                log.info("cluster nodelist refresh: published version " + version + " with "
+                        + nodeList.sizeNodeList() + " nodes");
+                return clusterNodeList;
+            }
+        }
+    }
+
+    private NodeListSnapshot toSnapshot(ClusterNodeList clusterNodeList) {
+        NodeListSnapshot snapshot = localSnapshot.get();
+        if (snapshot != null && snapshot.getVersion() == clusterNodeList.version) {
+            return snapshot;
+        }
+        snapshot = new NodeListSnapshot(clusterNodeList.nodeList, clusterNodeList.version);
+        localSnapshot.set(snapshot);
+        return snapshot;
+    }
+
+    /*
+     * the NodeList as it is held in the cluster. Members compare the wall clock
+     * time it was loaded, since System.nanoTime is not comparable between hosts
+     */
+    static final class ClusterNodeList implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final NodeList nodeList;
+        final long version;
+        final long loadedMillis;
+        final boolean invalidated;
+
+        ClusterNodeList(NodeList nodeList, long version, long loadedMillis, boolean invalidated) {
+            this.nodeList = nodeList;
+            this.version = version;
+            this.loadedMillis = loadedMillis;
+            this.invalidated = invalidated;
+        }
+
+        boolean isExpired(long maxAgeMS) {
+            return invalidated || getAgeMS() >= maxAgeMS;
+        }
+
+        long getAgeMS() {
+            return System.currentTimeMillis() - loadedMillis;
+        }
+
+        ClusterNodeList invalidate() {
+            return new ClusterNodeList(nodeList, version, loadedMillis, true);
+        }
+    }
+}
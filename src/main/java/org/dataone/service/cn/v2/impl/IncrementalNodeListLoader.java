@@ -0,0 +1,242 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.cn.ldap.NodeFacade;
+import org.dataone.service.exceptions.NotImplemented;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.Service;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.types.v2.NodeList;
+
+/**
+ * Refreshes the approved NodeList by loading only the nodes that changed since the
+ * previous refresh, instead of the whole registry.
+ *
+ * Changed nodes are found by the modifyTimestamp and createTimestamp of their entries.
+ * The time of the previous refresh is taken from the local clock, less an overlap that
+ * absorbs clock skew between this host and the LDAP server, so a node modified near a
+ * refresh may be loaded twice but is not missed.
+ *
+ * Removing an entry leaves no timestamp behind, so at every reconcile interval the number
+ * of entries of each approved node in LDAP is compared to the nodes held in memory, and
+ * nodes that differ are reloaded or dropped. Nodes deleted or updated through the node
+ * registry are named with reloadNode, and are reloaded or dropped at the next refresh
+ * without waiting for the reconcile.
+ *
+ * The harvest and log aggregation watermarks are attributes of the node entry, so every
+ * write of a watermark moves its modifyTimestamp, and the node is reloaded at the next
+ * refresh. The harvest date is part of the NodeList, the log aggregation date is not.
+ * Nodes being harvested are therefore reloaded at every refresh, unless their watermarks
+ * are buffered with noderegistry.watermark.writeBehind, in which case they are reloaded
+ * at most once per flush interval.
+ *
+ * Instances are not thread safe, calls must be serialized by the caller, except for
+ * reloadNode which may be called at any time.
+ *
+ * @author waltz
+ */
+class IncrementalNodeListLoader {
+
+    public static Log log = LogFactory.getLog(IncrementalNodeListLoader.class);
+
+    private final NodeFacade nodeFacade;
+    private final long overlapMS;
+    private final long reconcileIntervalNanos;
+
+    private Date lastRefreshDate = null;
+    private long lastReconcileNanos;
+
+    /* the nodes named by reloadNode since the previous refresh */
+    private final Set<String> requestedNodeIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    IncrementalNodeListLoader(NodeFacade nodeFacade, long overlapMS, long reconcileIntervalMS) {
+        this.nodeFacade = nodeFacade;
+        this.overlapMS = overlapMS;
+        this.reconcileIntervalNanos = reconcileIntervalMS * 1000000L;
+    }
+
+    /**
+     * load the complete approved NodeList, and start tracking changes from now on
+     *
+     * @return NodeList
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    NodeList loadAll() throws NotImplemented, ServiceFailure {
+        Date refreshDate = new Date(System.currentTimeMillis() - overlapMS);
+        requestedNodeIds.clear();
+        NodeList nodeList = nodeFacade.getApprovedNodeList();
+        lastRefreshDate = refreshDate;
+        lastReconcileNanos = System.nanoTime();
+        return nodeList;
+    }
+
+    /**
+     * load the nodes that changed since the previous refresh and patch them into
+     * a copy of the current NodeList. The current NodeList is not modified.
+     *
+     * @param currentNodeList
+     * @return the patched NodeList, or null if nothing has changed
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    NodeList loadChanges(NodeList currentNodeList) throws NotImplemented, ServiceFailure {
+        if (lastRefreshDate == null) {
+            return loadAll();
+        }
+        Date refreshDate = new Date(System.currentTimeMillis() - overlapMS);
+        Set<String> reloadNodeIds = new HashSet<String>(requestedNodeIds);
+        requestedNodeIds.removeAll(reloadNodeIds);
+        boolean loaded = false;
+        Set<String> changedNodeIds;
+        long now = System.nanoTime();
+        boolean reconciled = false;
+        NodeList nodeList = null;
+        try {
+            changedNodeIds = new LinkedHashSet<String>(nodeFacade.getModifiedNodeIds(lastRefreshDate));
+            changedNodeIds.addAll(reloadNodeIds);
+            if (now - lastReconcileNanos >= reconcileIntervalNanos) {
+                Map<String, Integer> entryCounts = nodeFacade.getApprovedNodeEntryCounts();
+                changedNodeIds.addAll(findInconsistentNodeIds(currentNodeList, entryCounts));
+                reconciled = true;
+            }
+
+            if (!changedNodeIds.isEmpty()) {
+                Map<String, Node> reloadedNodes = nodeFacade.getApprovedNodes(changedNodeIds);
+                nodeList = patchNodeList(currentNodeList, changedNodeIds, reloadedNodes);
+            }
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                // retried at the next refresh
+                requestedNodeIds.addAll(reloadNodeIds);
+            }
+        }
+        lastRefreshDate = refreshDate;
+        if (reconciled) {
+            lastReconcileNanos = now;
+        }
+        log.info("incremental nodelist refresh: " + changedNodeIds.size() + " nodes changed"
+                + (reconciled ? " (reconciled)" : ""));
+        return nodeList;
+    }
+
+    /**
+     * reload the node at the next refresh, or drop it from the NodeList if it has been
+     * deleted or is no longer approved. Removed entries are not found by their timestamps,
+     * so nodes deleted or updated through the node registry are named here
+     *
+     * @param nodeId
+     */
+    void reloadNode(String nodeId) {
+        requestedNodeIds.add(nodeId);
+    }
+
+    /**
+     * Build a new NodeList from the current one. Changed nodes are replaced in place by
+     * their reloaded version, or dropped if they were not reloaded because they no longer
+     * exist or are no longer approved. Reloaded nodes that were not in the current
+     * NodeList are appended.
+     *
+     * @param currentNodeList
+     * @param changedNodeIds
+     * @param reloadedNodes keyed by node identifier
+     * @return NodeList
+     */
+    static NodeList patchNodeList(NodeList currentNodeList, Set<String> changedNodeIds, Map<String, Node> reloadedNodes) {
+        List<Node> nodes = new ArrayList<Node>(currentNodeList.sizeNodeList() + reloadedNodes.size());
+        Set<String> patchedNodeIds = new HashSet<String>();
+        for (Node node : currentNodeList.getNodeList()) {
+            String nodeId = node.getIdentifier().getValue();
+            if (!changedNodeIds.contains(nodeId)) {
+                nodes.add(node);
+            } else if (reloadedNodes.containsKey(nodeId)) {
+                nodes.add(reloadedNodes.get(nodeId));
+                patchedNodeIds.add(nodeId);
+            }
+        }
+        for (Map.Entry<String, Node> reloadedNode : reloadedNodes.entrySet()) {
+            if (!patchedNodeIds.contains(reloadedNode.getKey())) {
+                nodes.add(reloadedNode.getValue());
+            }
+        }
+        NodeList nodeList = new NodeList();
+        nodeList.setNodeList(nodes);
+        return nodeList;
+    }
+
+    /**
+     * compare the nodes of the NodeList with the number of LDAP entries of each
+     * approved node
+     *
+     * @param currentNodeList
+     * @param entryCounts keyed by node identifier
+     * @return the identifiers of the nodes that are missing, extra or differ in size
+     */
+    static Set<String> findInconsistentNodeIds(NodeList currentNodeList, Map<String, Integer> entryCounts) {
+        Set<String> inconsistentNodeIds = new LinkedHashSet<String>();
+        Set<String> currentNodeIds = new HashSet<String>();
+        for (Node node : currentNodeList.getNodeList()) {
+            String nodeId = node.getIdentifier().getValue();
+            currentNodeIds.add(nodeId);
+            Integer entryCount = entryCounts.get(nodeId);
+            if (entryCount == null || entryCount != countEntries(node)) {
+                inconsistentNodeIds.add(nodeId);
+            }
+        }
+        for (String nodeId : entryCounts.keySet()) {
+            if (!currentNodeIds.contains(nodeId)) {
+                inconsistentNodeIds.add(nodeId);
+            }
+        }
+        return inconsistentNodeIds;
+    }
+
+    /**
+     * @param node
+     * @return the number of LDAP entries the node is stored in
+     */
+    static int countEntries(Node node) {
+        int count = 1;
+        if (node.getServices() != null) {
+            for (Service service : node.getServices().getServiceList()) {
+                count++;
+                if (service.getRestrictionList() != null) {
+                    count += service.getRestrictionList().size();
+                }
+            }
+        }
+        if (node.getPropertyList() != null) {
+            count += node.getPropertyList().size();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2.impl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dataone.service.exceptions.NotFound;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v2.Node;
+
+/**
+ * A bounded cache of Node capabilities keyed by the node identifier string.
+ *
+ * Entries expire a fixed time after they were loaded, measured with System.nanoTime.
+ * Concurrent requests for a node that is not cached are coalesced, so that only one
+ * of them loads the node while the others wait for its result. Requests for different
+ * nodes do not block each other. When the cache grows beyond its maximum size the
+ * least recently used entries are evicted.
+ *
+ * Failed loads are not cached; every thread waiting on a failed load receives the
+ * same exception.
+ *
+ * @author waltz
+ */
+public class NodeCapabilitiesCache {
+
+    public static Log log = LogFactory.getLog(NodeCapabilitiesCache.class);
+
+    /**
+     * Loads a Node from the backing store on a cache miss
+     */
+    public interface NodeLoader {
+
+        Node load(String nodeId) throws ServiceFailure, NotFound;
+    }
+
+    private final ConcurrentHashMap<String, CacheEntry> entries = new ConcurrentHashMap<String, CacheEntry>();
+    private final NodeLoader nodeLoader;
+    private volatile long expireAfterNanos;
+    private final int maximumSize;
+
+    /**
+     * @param nodeLoader loads nodes on a cache miss
+     * @param expireAfterMS milliseconds after which a loaded node is reloaded
+     * @param maximumSize maximum number of nodes held by the cache
+     */
+    public NodeCapabilitiesCache(NodeLoader nodeLoader, long expireAfterMS, int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1");
+        }
+        this.nodeLoader = nodeLoader;
+        this.expireAfterNanos = expireAfterMS * 1000000L;
+        this.maximumSize = maximumSize;
+    }
+
+    /**
+     * Return the cached Node for the identifier, loading it if it is not cached or
+     * has expired.
+     *
+     * @param nodeId
+     * @return Node
+     * @throws ServiceFailure
+     * @throws NotFound
+     */
+    public Node get(String nodeId) throws ServiceFailure, NotFound {
+        while (true) {
+            CacheEntry entry = entries.get(nodeId);
+            if (entry != null && !entry.isExpired(System.nanoTime(), expireAfterNanos)) {
+                // either loaded and fresh, or being loaded by another thread
+                return entry.await();
+            }
+            CacheEntry loadingEntry = new CacheEntry();
+            boolean loader = (entry == null) ? entries.putIfAbsent(nodeId, loadingEntry) == null
+                    : entries.replace(nodeId, entry, loadingEntry);
+            if (!loader) {
+                // another thread has started loading the node, wait on its entry instead
+                continue;
+            }
+            return load(nodeId, loadingEntry);
+        }
+    }
+
+    /**
+     * change the time after which loaded nodes expire, it applies to
+     * nodes already in the cache as well
+     *
+     * @param expireAfterMS
+     */
+    public void setExpireAfterMS(long expireAfterMS) {
+        this.expireAfterNanos = expireAfterMS * 1000000L;
+    }
+
+    /**
+     * remove the node from the cache so that the next request reloads it
+     *
+     * @param nodeId
+     */
+    public void invalidate(String nodeId) {
+        entries.remove(nodeId);
+    }
+
+    /**
+     * remove all nodes from the cache
+     */
+    public void invalidateAll() {
+        entries.clear();
+    }
+
+    /**
+     * Reload every cached node from the backing store. Nodes that are no longer found
+     * are removed; nodes that fail to load keep their current value.
+     */
+    public void refreshAll() {
+        for (String nodeId : entries.keySet()) {
+            try {
+                CacheEntry entry = new CacheEntry();
+                entry.complete(nodeLoader.load(nodeId));
+                entries.put(nodeId, entry);
+            } catch (NotFound ex) {
+                log.info("node " + nodeId + " is no longer registered, removing from cache");
+                entries.remove(nodeId);
+            } catch (ServiceFailure ex) {
+                log.error("refresh of node " + nodeId + " failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the number of nodes held by the cache, including nodes being loaded
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private Node load(String nodeId, CacheEntry loadingEntry) throws ServiceFailure, NotFound {
+        try {
+            Node node = nodeLoader.load(nodeId);
+            if (node == null) {
+                throw new ServiceFailure("4803", "could not retrieve " + nodeId + " from the node registry");
+            }
+            loadingEntry.complete(node);
+            evictIfNecessary();
+            return node;
+        } catch (ServiceFailure ex) {
+            loadingEntry.fail(ex);
+            entries.remove(nodeId, loadingEntry);
+            throw ex;
+        } catch (NotFound ex) {
+            loadingEntry.fail(ex);
+            entries.remove(nodeId, loadingEntry);
+            throw ex;
+        } catch (RuntimeException ex) {
+            loadingEntry.fail(new ServiceFailure("4803", "could not retrieve " + nodeId + ": " + ex.getMessage()));
+            entries.remove(nodeId, loadingEntry);
+            throw ex;
+        }
+    }
+
+    /*
+     * remove the least recently used loaded entries until the cache fits its maximum size.
+     * Only runs when the cache is full, so the linear scan is not on the hit path
+     */
+    private void evictIfNecessary() {
+        while (entries.size() > maximumSize) {
+            String eldestNodeId = null;
+            CacheEntry eldestEntry = null;
+            for (Map.Entry<String, CacheEntry> candidate : entries.entrySet()) {
+                CacheEntry entry = candidate.getValue();
+                if (entry.isLoaded() && (eldestEntry == null || entry.lastAccessNanos - eldestEntry.lastAccessNanos < 0)) {
+                    eldestNodeId = candidate.getKey();
+                    eldestEntry = entry;
+                }
+            }
+            if (eldestEntry == null) {
+                // everything left is still loading
+                return;
+            }
+            if (entries.remove(eldestNodeId, eldestEntry) && log.isDebugEnabled()) {
+                log.debug("evicted node " + eldestNodeId + " from the node cache");
+            }
+        }
+    }
+
+    /*
+     * a cached node, or a load of a node in progress
+     */
+    private static class CacheEntry {
+
+        private final CountDownLatch loaded = new CountDownLatch(1);
+        private volatile Node node;
+        private volatile Exception failure;
+        private volatile long loadedNanos;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        void complete(Node node) {
+            this.node = node;
+            this.loadedNanos = System.nanoTime();
+            loaded.countDown();
+        }
+
+        void fail(Exception failure) {
+            this.failure = failure;
+            loaded.countDown();
+        }
+
+        boolean isLoaded() {
+            return loaded.getCount() == 0;
+        }
+
+        /*
+         * an entry that is still loading is never expired, so callers wait for it
+         */
+        boolean isExpired(long nowNanos, long expireAfterNanos) {
+            return isLoaded() && (failure != null || nowNanos - loadedNanos >= expireAfterNanos);
+        }
+
+        Node await() throws ServiceFailure, NotFound {
+            try {
+                loaded.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ServiceFailure("4803", "interrupted while waiting for the node to be loaded");
+            }
+            if (failure instanceof NotFound) {
+                throw (NotFound) failure;
+            } else if (failure instanceof ServiceFailure) {
+                throw (ServiceFailure) failure;
+            }
+            lastAccessNanos = System.nanoTime();
+            return node;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPOutputStream;
+
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.util.TypeMarshaller;
+
+/**
+ * The serialized XML of a NodeList snapshot, optionally with a gzip compressed copy,
+ * and a strong ETag computed from the XML.
+ *
+ * A payload is built once per NodeList snapshot version and is never modified, so
+ * the REST layer may stream the bytes to any number of clients, and answer conditional
+ * requests from the ETag, without marshalling the NodeList again.
+ *
+ * @author waltz
+ */
+public final class NodeListPayload {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final byte[] xml;
+    private final byte[] gzip;
+    private final String eTag;
+    private final long version;
+
+    private NodeListPayload(byte[] xml, byte[] gzip, String eTag, long version) {
+        this.xml = xml;
+        this.gzip = gzip;
+        this.eTag = eTag;
+        this.version = version;
+    }
+
+    /**
+     * marshal the NodeList and build its payload
+     *
+     * @param nodeList a v1 or v2 NodeList
+     * @param version the version of the snapshot the NodeList belongs to
+     * @param compress if true a gzip compressed copy is built as well
+     * @return NodeListPayload
+     * @throws ServiceFailure
+     */
+    public static NodeListPayload create(Object nodeList, long version, boolean compress) throws ServiceFailure {
+        ByteArrayOutputStream xmlOutputStream = new ByteArrayOutputStream(64 * 1024);
+        try {
+            TypeMarshaller.marshalTypeToOutputStream(nodeList, xmlOutputStream);
+        } catch (Exception ex) {
+            throw new ServiceFailure("-1", "unable to serialize the nodelist: " + ex.getMessage());
+        }
+        return fromXml(xmlOutputStream.toByteArray(), version, compress);
+    }
+
+    /**
+     * build the payload from already serialized XML, the array must not be modified afterwards
+     *
+     * @param xml
+     * @param version
+     * @param compress
+     * @return NodeListPayload
+     * @throws ServiceFailure
+     */
+    static NodeListPayload fromXml(byte[] xml, long version, boolean compress) throws ServiceFailure {
+        byte[] gzip = null;
+        if (compress) {
+            try {
+                ByteArrayOutputStream gzipOutputStream = new ByteArrayOutputStream(xml.length / 4 + 64);
+                GZIPOutputStream gzipStream = new GZIPOutputStream(gzipOutputStream);
+                gzipStream.write(xml);
+                gzipStream.close();
+                gzip = gzipOutputStream.toByteArray();
+            } catch (IOException ex) {
+                throw new ServiceFailure("-1", "unable to compress the nodelist: " + ex.getMessage());
+            }
+        }
+        return new NodeListPayload(xml, gzip, computeETag(xml), version);
+    }
+
+    /*
+     * a strong entity tag, the quoted hex SHA-256 digest of the content
+     */
+    private static String computeETag(byte[] content) throws ServiceFailure {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new ServiceFailure("-1", ex.getMessage());
+        }
+        StringBuilder eTag = new StringBuilder(digest.length * 2 + 2);
+        eTag.append('"');
+        for (byte b : digest) {
+            eTag.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+        }
+        eTag.append('"');
+        return eTag.toString();
+    }
+
+    /**
+     * @return the strong ETag of the XML, including the surrounding quotes
+     */
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * @return the version of the NodeList snapshot this payload was built from
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * determine if the value of an If-None-Match request header matches this payload,
+     * in which case the content need not be sent
+     *
+     * @param ifNoneMatch the header value, may be null
+     * @return true if the header is * or lists the ETag of this payload
+     */
+    public boolean matches(String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // weak comparison, as If-None-Match requires
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(eTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the length in bytes of the XML
+     */
+    public int getXmlLength() {
+        return xml.length;
+    }
+
+    /**
+     * @return a stream over the XML
+     */
+    public InputStream getXmlInputStream() {
+        return new ByteArrayInputStream(xml);
+    }
+
+    /**
+     * @param outputStream
+     * @throws IOException
+     */
+    public void writeXml(OutputStream outputStream) throws IOException {
+        outputStream.write(xml);
+    }
+
+    /**
+     * @return true if a gzip compressed copy of the XML is available
+     */
+    public boolean hasGzip() {
+        return gzip != null;
+    }
+
+    /**
+     * @return the length in bytes of the gzip compressed XML, or -1 if there is none
+     */
+    public int getGzipLength() {
+        return gzip == null ? -1 : gzip.length;
+    }
+
+    /**
+     * @return a stream over the gzip compressed XML
+     * @throws IllegalStateException if the payload was built without compression
+     */
+    public InputStream getGzipInputStream() {
+        if (gzip == null) {
+            throw new IllegalStateException("nodelist payload was built without compression");
+        }
+        return new ByteArrayInputStream(gzip);
+    }
+
+    /**
+     * write the gzip compressed XML, for responses with Content-Encoding: gzip
+     *
+     * @param outputStream
+     * @throws IOException
+     * @throws IllegalStateException if the payload was built without compression
+     */
+    public void writeGzip(OutputStream outputStream) throws IOException {
+        if (gzip == null) {
+            throw new IllegalStateException("nodelist payload was built without compression");
+        }
+        outputStream.write(gzip);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2.impl;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.dataone.service.exceptions.ServiceFailure;
+
+/**
+ * Holds the NodeListPayload of the latest NodeList snapshot version. The payload of a new
+ * version is built by a single caller while the others wait for it, so marshalling,
+ * compressing and hashing the NodeList is done once per version however many requests
+ * arrive right after a refresh.
+ *
+ * Callers holding an older snapshot than the one the payload was built from are served
+ * the newer payload.
+ *
+ * @author waltz
+ */
+public final class NodeListPayloadCache {
+
+    /**
+     * Builds the payload of a snapshot, in the representation served by the caller
+     */
+    public interface PayloadBuilder {
+
+        NodeListPayload build(NodeListSnapshot snapshot) throws ServiceFailure;
+    }
+
+    private final PayloadBuilder payloadBuilder;
+    private final ReentrantLock buildLock = new ReentrantLock();
+    private volatile NodeListPayload payload = null;
+
+    /**
+     * @param payloadBuilder
+     */
+    public NodeListPayloadCache(PayloadBuilder payloadBuilder) {
+        this.payloadBuilder = payloadBuilder;
+    }
+
+    /**
+     * @param snapshot the current NodeList snapshot
+     * @return the payload of the snapshot, or of a newer one
+     * @throws ServiceFailure if the payload could not be built
+     */
+    public NodeListPayload get(NodeListSnapshot snapshot) throws ServiceFailure {
+        NodeListPayload current = payload;
+        if (current != null && current.getVersion() >= snapshot.getVersion()) {
+            return current;
+        }
+        buildLock.lock();
+        try {
+            current = payload;
+            if (current != null && current.getVersion() >= snapshot.getVersion()) {
+                // built while waiting for the lock
+                return current;
+            }
+            current = payloadBuilder.build(snapshot);
+            payload = current;
+            return current;
+        } finally {
+            buildLock.unlock();
+        }
+    }
+}
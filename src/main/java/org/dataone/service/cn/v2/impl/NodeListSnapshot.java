@@ -0,0 +1,109 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2.impl;
+
+import org.dataone.service.types.v2.NodeList;
+
+/**
+ * An immutable, published view of the approved NodeList as it was loaded from LDAP.
+ *
+ * A snapshot is never modified after it is published. A refresh builds a new NodeList and
+ * publishes a new snapshot, so readers may hold on to a snapshot without any locking.
+ * Callers must treat the NodeList returned from a snapshot as read-only.
+ *
+ * The age of a snapshot is measured with System.nanoTime so that it is unaffected by
+ * changes to the wall clock.
+ *
+ * @author waltz
+ */
+public final class NodeListSnapshot {
+
+    private final NodeList nodeList;
+    private final long version;
+    private final long loadedNanos;
+    private final boolean invalidated;
+
+    public NodeListSnapshot(NodeList nodeList, long version) {
+        this(nodeList, version, System.nanoTime(), false);
+    }
+
+    private NodeListSnapshot(NodeList nodeList, long version, long loadedNanos, boolean invalidated) {
+        this.nodeList = nodeList;
+        this.version = version;
+        this.loadedNanos = loadedNanos;
+        this.invalidated = invalidated;
+    }
+
+    /**
+     * @return the NodeList of this snapshot, it must not be modified
+     */
+    public NodeList getNodeList() {
+        return nodeList;
+    }
+
+    /**
+     * The version is incremented every time a new NodeList is loaded. Derived
+     * representations of the NodeList may be cached against it.
+     *
+     * @return the version of the NodeList held by this snapshot
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return milliseconds elapsed since the NodeList of this snapshot was loaded
+     */
+    public long getAgeMS() {
+        return (System.nanoTime() - loadedNanos) / 1000000L;
+    }
+
+    /**
+     * determines if the snapshot should be refreshed
+     *
+     * @param refreshIntervalMS
+     * @return true if the snapshot was invalidated or is older than the refresh interval
+     */
+    public boolean isExpired(long refreshIntervalMS) {
+        return invalidated || getAgeMS() >= refreshIntervalMS;
+    }
+
+    /**
+     * Create a copy of this snapshot that holds the same NodeList but is always
+     * expired, so that the next reader triggers a refresh while still being able
+     * to serve the current NodeList.
+     *
+     * @return an invalidated snapshot
+     */
+    public NodeListSnapshot invalidate() {
+        return new NodeListSnapshot(nodeList, version, loadedNanos, true);
+    }
+
+    /**
+     * Create a snapshot of a NodeList patched from the NodeList of this snapshot. The
+     * nodes that were not patched were loaded with this snapshot, so the patched snapshot
+     * keeps its age and expiry.
+     *
+     * @param patchedNodeList
+     * @param patchedVersion
+     * @return the patched snapshot
+     */
+    public NodeListSnapshot patch(NodeList patchedNodeList, long patchedVersion) {
+        return new NodeListSnapshot(patchedNodeList, patchedVersion, loadedNanos, invalidated);
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * This work was created by participants in the DataONE project, and is jointly copyrighted by participating
+ * institutions in DataONE. For more information on DataONE, see our web site at http://dataone.org.
+ *
+ * Copyright ${year}
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ *
+ * $Id$
+ */
+package org.dataone.service.cn.v2.impl;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Rebuilds the NodeList snapshot and the per-node caches of a NodeRegistryServiceImpl
+ * on a background thread, so that request threads are always served from memory
+ * (stale-while-revalidate).
+ *
+ * The refresher is enabled with noderegistry.backgroundRefresh=true and runs every
+ * noderegistry.nodeListRefreshInterval seconds. A failed refresh is logged and retried
+ * at the next interval; the NodeRegistryServiceImpl makes callers block once the cached
+ * data is older than noderegistry.maxStaleness, so a refresher that is stuck or failing
+ * can not serve stale data forever.
+ *
+ * @author waltz
+ */
+class NodeRegistryRefresher implements Runnable {
+
+    public static Log log = LogFactory.getLog(NodeRegistryRefresher.class);
+
+    /* the scheduler does not accept a zero delay */
+    private static final long MINIMUM_INTERVAL_MS = 1000L;
+
+    private final NodeRegistryServiceImpl nodeRegistryService;
+    private final long refreshIntervalMS;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean refreshPending = new AtomicBoolean(false);
+
+    NodeRegistryRefresher(NodeRegistryServiceImpl nodeRegistryService, long refreshIntervalMS) {
+        this.nodeRegistryService = nodeRegistryService;
+        this.refreshIntervalMS = Math.max(refreshIntervalMS, MINIMUM_INTERVAL_MS);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NodeRegistryRefresher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * start refreshing immediately and then at every refresh interval
+     */
+    void start() {
+        log.info("starting background node registry refresh every " + refreshIntervalMS + " ms");
+        scheduler.scheduleWithFixedDelay(this, 0L, refreshIntervalMS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * schedule an additional refresh to run as soon as possible, for instance
+     * after the registry has been modified. Requests made before the pending
+     * refresh has started are coalesced into it
+     */
+    void refreshNow() {
+        if (!scheduler.isShutdown() && refreshPending.compareAndSet(false, true)) {
+            scheduler.execute(this);
+        }
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        refreshPending.set(false);
+        try {
+            nodeRegistryService.refreshNodeListSnapshot();
+        } catch (Exception ex) {
+            log.error("background nodelist refresh failed: " + ex.getMessage(), ex);
+        }
+        try {
+            nodeRegistryService.refreshNodeCaches();
+        } catch (Exception ex) {
+            log.error("background node refresh failed: " + ex.getMessage(), ex);
+        }
+    }
+}
@@ -17,21 +17,38 @@
  */
 package org.dataone.service.cn.v2.impl;
 
+import org.dataone.service.cn.v2.NodeRegistrationResult;
 import org.dataone.service.cn.v2.NodeRegistryService;
-import java.text.DateFormat;
-import java.util.Date;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.naming.NamingException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.dataone.cn.ldap.NodeChangeHandler;
 import org.dataone.cn.ldap.NodeFacade;
+import org.dataone.cn.ldap.NodeRegistryChangeListener;
 import org.dataone.cn.quartz.CronExpression;
 import org.dataone.configuration.Settings;
+import org.dataone.service.exceptions.BaseException;
 import org.dataone.service.exceptions.IdentifierNotUnique;
 import org.dataone.service.exceptions.InvalidRequest;
 import org.dataone.service.exceptions.NotFound;
@@ -62,22 +79,221 @@ import org.dataone.service.types.v2.NodeList;
 public class NodeRegistryServiceImpl implements NodeRegistryService {
 
     public static Log log = LogFactory.getLog(NodeRegistryServiceImpl.class);
-    private NodeFacade nodeFacade = new NodeFacade();
+    private static NodeFacade nodeFacade = new NodeFacade();
 
 
     static Pattern excludeNodeBaseURLPattern = Pattern
             .compile("^https?\\:\\/\\/(?:(?:localhost(?:\\:8080)?\\/)|(?:127\\.0)).+");
     static Pattern validNodeIdPattern = Pattern.compile(Settings.getConfiguration().getString(
             "cn.nodeId.validation"));
-    private long lastNodelistRefreshTimeMS = 0;
 
     static final long NODELIST_REFRESH_INTERVAL_MS = Settings.getConfiguration().getLong("noderegistry.nodeListRefreshInterval", 3L) * 1000L;
     static final long NODE_REFRESH_INTERVAL_MS = Settings.getConfiguration().getLong("noderegistry.nodeRefreshInterval", 3L) * 1000L;
-    ;
-    NodeList nodeList = null;
 
-    Map<NodeReference, Long> nodeRefreshDateMap = new ConcurrentHashMap<NodeReference, Long>();
-    Map<NodeReference, Node> nodeCacheMap = new ConcurrentHashMap<NodeReference, Node>();
+    /*
+     * The caches, the cluster member, the background refresher and the change listener
+     * are shared by every instance in the JVM, including the one that the v1 service
+     * delegates to. They are started by the first instance and stopped once every
+     * instance has been shut down
+     */
+    private static int instanceCount = 0;
+    private boolean shutdown = false;
+
+    /*
+     * the published NodeList. Readers never lock, only the thread that refreshes
+     * the snapshot holds the nodeListRefreshLock
+     */
+    private static final AtomicReference<NodeListSnapshot> nodeListSnapshot = new AtomicReference<NodeListSnapshot>();
+    private static final ReentrantLock nodeListRefreshLock = new ReentrantLock();
+    private static final AtomicLong nodeListVersion = new AtomicLong();
+
+    /*
+     * the serialized NodeList of the current snapshot, rebuilt when the snapshot version changes
+     */
+    static final boolean NODELIST_PAYLOAD_GZIP = Settings.getConfiguration().getBoolean("noderegistry.nodeListPayload.gzip", true);
+    private static final NodeListPayloadCache nodeListPayloadCache = new NodeListPayloadCache(
+            new NodeListPayloadCache.PayloadBuilder() {
+                @Override
+                public NodeListPayload build(NodeListSnapshot snapshot) throws ServiceFailure {
+                    return NodeListPayload.create(snapshot.getNodeList(), snapshot.getVersion(), NODELIST_PAYLOAD_GZIP);
+                }
+            });
+
+    /*
+     * when the background refresher is enabled, request threads are served from memory
+     * until the cached data is older than MAX_STALENESS_MS, after which they block
+     */
+    static final boolean BACKGROUND_REFRESH = Settings.getConfiguration().getBoolean("noderegistry.backgroundRefresh", false);
+    static final long MAX_STALENESS_MS = Settings.getConfiguration().getLong("noderegistry.maxStaleness", 300L) * 1000L;
+    private static volatile NodeRegistryRefresher backgroundRefresher = null;
+
+    /*
+     * when the change listener is enabled and the server supports persistent search,
+     * cached nodes are invalidated as soon as they change in LDAP, and the caches
+     * only expire after CHANGE_LISTENER_REFRESH_INTERVAL_MS as a safety net
+     */
+    static final boolean CHANGE_LISTENER = Settings.getConfiguration().getBoolean("noderegistry.changeListener", false);
+    static final long CHANGE_LISTENER_REFRESH_INTERVAL_MS = Settings.getConfiguration().getLong("noderegistry.changeListener.refreshInterval", 3600L) * 1000L;
+    private static volatile NodeRegistryChangeListener changeListener = null;
+
+    /*
+     * when incremental refresh is enabled, only the nodes that changed since the
+     * previous refresh are reloaded, and deletions are detected at every reconcile interval
+     */
+    static final boolean INCREMENTAL_REFRESH = Settings.getConfiguration().getBoolean("noderegistry.incrementalRefresh", false);
+    static final long INCREMENTAL_REFRESH_OVERLAP_MS = Settings.getConfiguration().getLong("noderegistry.incrementalRefresh.overlap", 60L) * 1000L;
+    static final long RECONCILE_INTERVAL_MS = Settings.getConfiguration().getLong("noderegistry.incrementalRefresh.reconcileInterval", 600L) * 1000L;
+    private static volatile IncrementalNodeListLoader incrementalNodeListLoader = null;
+
+    /*
+     * the number of nodes registerAll creates concurrently, each creation holds a pooled
+     * LDAP context so this should not exceed cn.ldap.pool.max_total
+     */
+    static final int REGISTER_ALL_THREADS = Settings.getConfiguration().getInt("noderegistry.registerAll.threads", 4);
+
+    static final int NODE_CACHE_MAX_SIZE = Settings.getConfiguration().getInt("noderegistry.nodeCacheMaxSize", 1000);
+
+    /*
+     * when the cluster cache is enabled, the NodeList and the nodes are held in distributed
+     * Hazelcast maps shared by all CNs, and only one CN at a time refreshes them from LDAP.
+     * The local snapshot and node cache are then not used
+     */
+    static final boolean CLUSTER_CACHE = Settings.getConfiguration().getBoolean("noderegistry.hazelcast", false);
+    static final String CLUSTER_CACHE_CONFIG = Settings.getConfiguration().getString("noderegistry.hazelcast.config", null);
+    static final int NEAR_CACHE_TTL_SECONDS = Settings.getConfiguration().getInt("noderegistry.hazelcast.nearCache.timeToLive", 60);
+    static final long REFRESH_LOCK_TIMEOUT_MS = Settings.getConfiguration().getLong("noderegistry.hazelcast.refreshLockTimeout", 30L) * 1000L;
+    private static volatile ClusterNodeRegistryCache clusterCache = null;
+
+    /*
+     * per node cache of getNodeCapabilities, keyed by the node identifier value.
+     * With the background refresher, nodes are reloaded by the refresher and only
+     * expire once they are older than MAX_STALENESS_MS
+     */
+    private static final NodeCapabilitiesCache.NodeLoader nodeLoader = new NodeCapabilitiesCache.NodeLoader() {
+        @Override
+        public Node load(String nodeId) throws ServiceFailure, NotFound {
+            NodeReference nodeReference = new NodeReference();
+            nodeReference.setValue(nodeId);
+            return nodeFacade.getNode(nodeReference);
+        }
+    };
+    static final NodeCapabilitiesCache nodeCapabilitiesCache = new NodeCapabilitiesCache(nodeLoader,
+            BACKGROUND_REFRESH ? MAX_STALENESS_MS : NODE_REFRESH_INTERVAL_MS, NODE_CACHE_MAX_SIZE);
+
+    public NodeRegistryServiceImpl() {
+        synchronized (NodeRegistryServiceImpl.class) {
+            if (instanceCount++ == 0) {
+                start();
+            }
+        }
+    }
+
+    /*
+     * start the components shared by all instances, called by the first instance
+     */
+    private void start() {
+        if (CLUSTER_CACHE) {
+            try {
+                clusterCache = new ClusterNodeRegistryCache(
+                        ClusterNodeRegistryCache.newHazelcastInstance(CLUSTER_CACHE_CONFIG,
+                                NEAR_CACHE_TTL_SECONDS, NODE_CACHE_MAX_SIZE),
+                        new ClusterNodeRegistryCache.NodeListLoader() {
+                            @Override
+                            public NodeList load() throws NotImplemented, ServiceFailure {
+                                return nodeFacade.getApprovedNodeList();
+                            }
+                        }, nodeLoader,
+                        BACKGROUND_REFRESH ? MAX_STALENESS_MS : NODE_REFRESH_INTERVAL_MS,
+                        REFRESH_LOCK_TIMEOUT_MS);
+            } catch (ServiceFailure ex) {
+                log.error("unable to join the node registry cluster, caching locally: " + ex.getDescription(), ex);
+            }
+        }
+        if (INCREMENTAL_REFRESH && clusterCache == null) {
+            incrementalNodeListLoader = new IncrementalNodeListLoader(nodeFacade,
+                    INCREMENTAL_REFRESH_OVERLAP_MS, RECONCILE_INTERVAL_MS);
+        }
+        if (BACKGROUND_REFRESH) {
+            backgroundRefresher = new NodeRegistryRefresher(this, NODELIST_REFRESH_INTERVAL_MS);
+            backgroundRefresher.start();
+        }
+        if (CHANGE_LISTENER) {
+            changeListener = new NodeRegistryChangeListener(new NodeChangeHandler() {
+                @Override
+                public void nodeChanged(String nodeId) {
+                    invalidateNode(nodeId);
+                    patchNodeListSnapshot(nodeId);
+                }
+
+                @Override
+                public void changeListenerFailed(NamingException ex) {
+                    // changes may have been missed, fall back to polling
+                    nodeCapabilitiesCache.setExpireAfterMS(getNodeRefreshIntervalMS());
+                    nodeCapabilitiesCache.invalidateAll();
+                    invalidateNodeListSnapshot();
+                }
+            });
+            if (changeListener.start()) {
+                nodeCapabilitiesCache.setExpireAfterMS(getNodeRefreshIntervalMS());
+            }
+        }
+    }
+
+    /**
+     * release this instance. Once every instance has been shut down, stop the background
+     * refresher and the change listener, if they are running, write the buffered watermarks
+     * and leave the node registry cluster
+     */
+    public void shutdown() {
+        synchronized (NodeRegistryServiceImpl.class) {
+            if (shutdown) {
+                return;
+            }
+            shutdown = true;
+            if (--instanceCount > 0) {
+                return;
+            }
+            if (backgroundRefresher != null) {
+                backgroundRefresher.stop();
+                backgroundRefresher = null;
+            }
+            if (changeListener != null) {
+                changeListener.stop();
+                changeListener = null;
+            }
+            try {
+                nodeFacade.flushWatermarks();
+            } catch (ServiceFailure ex) {
+                log.error("unable to write the buffered watermarks: " + ex.getDescription(), ex);
+            }
+            if (clusterCache != null) {
+                clusterCache.shutdown();
+                clusterCache = null;
+            }
+            incrementalNodeListLoader = null;
+            // a later instance starts again from empty caches
+            nodeCapabilitiesCache.setExpireAfterMS(BACKGROUND_REFRESH ? MAX_STALENESS_MS : NODE_REFRESH_INTERVAL_MS);
+            nodeCapabilitiesCache.invalidateAll();
+            invalidateNodeListSnapshot();
+        }
+    }
+
+    /*
+     * true while LDAP changes are pushed to the caches
+     */
+    private boolean isChangeListenerActive() {
+        return changeListener != null && changeListener.isActive();
+    }
+
+    /*
+     * the age at which a cached node is reloaded
+     */
+    private long getNodeRefreshIntervalMS() {
+        if (isChangeListenerActive()) {
+            return CHANGE_LISTENER_REFRESH_INTERVAL_MS;
+        }
+        return backgroundRefresher != null ? MAX_STALENESS_MS : NODE_REFRESH_INTERVAL_MS;
+    }
     /*
      * Retreive a list of nodes that have been registered and approved
      * with the DataONE infrastructure.
@@ -90,26 +306,227 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
      */
 
     @Override
-    public synchronized NodeList listNodes() throws NotImplemented, ServiceFailure {
+    public NodeList listNodes() throws NotImplemented, ServiceFailure {
+        return getNodeListSnapshot().getNodeList();
+    }
+
+    /**
+     * Return the serialized XML of the current NodeList, with its ETag. The payload is
+     * built once for every version of the NodeList snapshot, and shared by all callers
+     * until the snapshot changes.
+     *
+     * @return the NodeListPayload of the current snapshot
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    public NodeListPayload getNodeListPayload() throws NotImplemented, ServiceFailure {
+        return nodeListPayloadCache.get(getNodeListSnapshot());
+    }
+
+    /**
+     * Return the current NodeList snapshot, refreshing it from LDAP if it has expired.
+     *
+     * Only one thread at a time refreshes the snapshot. While the refresh is running,
+     * every other caller is served the previous snapshot. Callers only wait if there
+     * is no snapshot to serve yet.
+     *
+     * If the background refresher is enabled, request threads never refresh the snapshot
+     * themselves unless it has become older than the maximum staleness, in which case
+     * they block until it has been reloaded.
+     *
+     * @return the current NodeListSnapshot
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    public NodeListSnapshot getNodeListSnapshot() throws NotImplemented, ServiceFailure {
+        if (clusterCache != null) {
+            return clusterCache.getNodeListSnapshot(getNodeListRefreshIntervalMS(), MAX_STALENESS_MS);
+        }
+        NodeListSnapshot snapshot = nodeListSnapshot.get();
+        if (snapshot != null && !isNodeListRefreshRequired(snapshot)) {
+            return snapshot;
+        }
+        if (snapshot == null || backgroundRefresher != null) {
+            // nothing has been loaded yet, or the snapshot is too stale to serve,
+            // wait for whoever is loading it
+            if (snapshot != null) {
+                log.warn("nodelist is " + snapshot.getAgeMS() + " ms old, waiting for a refresh");
+            }
+            nodeListRefreshLock.lock();
+        } else if (!nodeListRefreshLock.tryLock()) {
+            // another thread is refreshing, serve the previous snapshot
+            return snapshot;
+        }
+        try {
+            snapshot = nodeListSnapshot.get();
+            if (snapshot == null || isNodeListRefreshRequired(snapshot)) {
+                snapshot = loadNodeListSnapshot();
+            }
+            return snapshot;
+        } finally {
+            nodeListRefreshLock.unlock();
+        }
+    }
+
+    /*
+     * determine if a request thread has to refresh the snapshot before it is served
+     */
+    private boolean isNodeListRefreshRequired(NodeListSnapshot snapshot) {
+        if (backgroundRefresher != null) {
+            return snapshot.getAgeMS() >= MAX_STALENESS_MS;
+        }
+        if (isChangeListenerActive()) {
+            return snapshot.isExpired(CHANGE_LISTENER_REFRESH_INTERVAL_MS);
+        }
+        return snapshot.isExpired(NODELIST_REFRESH_INTERVAL_MS);
+    }
+
+    /*
+     * the age at which request threads refresh the NodeList of the cluster
+     */
+    private long getNodeListRefreshIntervalMS() {
+        if (backgroundRefresher != null) {
+            return MAX_STALENESS_MS;
+        }
+        return isChangeListenerActive() ? CHANGE_LISTENER_REFRESH_INTERVAL_MS : NODELIST_REFRESH_INTERVAL_MS;
+    }
+
+    /**
+     * unconditionally reload the NodeList snapshot from LDAP, used by the background refresher.
+     * With the cluster cache, every member runs a refresher but the NodeList is only reloaded
+     * if no other member has done so within half the refresh interval
+     *
+     * @throws NotImplemented
+     * @throws ServiceFailure
+     */
+    void refreshNodeListSnapshot() throws NotImplemented, ServiceFailure {
+        if (clusterCache != null) {
+            clusterCache.refreshNodeList(NODELIST_REFRESH_INTERVAL_MS / 2L);
+            return;
+        }
+        nodeListRefreshLock.lock();
+        try {
+            loadNodeListSnapshot();
+        } finally {
+            nodeListRefreshLock.unlock();
+        }
+    }
+
+    /**
+     * reload every node held in the node cache from LDAP, used by the background refresher.
+     * Nodes that no longer exist are removed from the cache
+     */
+    void refreshNodeCaches() {
+        if (clusterCache != null) {
+            clusterCache.refreshNodes();
+            return;
+        }
+        nodeCapabilitiesCache.refreshAll();
+    }
 
-        if ((nodeList == null) || this.isTimeForNodelistRefresh()) {
+    /*
+     * load the approved NodeList from LDAP and publish it as the new snapshot.
+     * Must be called while holding the nodeListRefreshLock
+     */
+    private NodeListSnapshot loadNodeListSnapshot() throws NotImplemented, ServiceFailure {
+        NodeListSnapshot currentSnapshot = nodeListSnapshot.get();
+        NodeList nodeList;
+        if (incrementalNodeListLoader == null) {
             nodeList = nodeFacade.getApprovedNodeList();
+        } else if (currentSnapshot == null) {
+            nodeList = incrementalNodeListLoader.loadAll();
+        } else {
+            nodeList = incrementalNodeListLoader.loadChanges(currentSnapshot.getNodeList());
+            if (nodeList == null) {
+                // nothing changed, keep the version so derived representations remain valid
+                NodeListSnapshot snapshot = new NodeListSnapshot(currentSnapshot.getNodeList(), currentSnapshot.getVersion());
+                nodeListSnapshot.set(snapshot);
+                return snapshot;
+            }
+        }
+        NodeListSnapshot snapshot = new NodeListSnapshot(nodeList, nodeListVersion.incrementAndGet());
+        nodeListSnapshot.set(snapshot);
+        log.info("nodelist refresh: published version " + snapshot.getVersion() + " with "
+                + nodeList.sizeNodeList() + " nodes");
+        return snapshot;
+    }
 
+    /*
+     * force the NodeList to be refreshed by the next caller, callers
+     * continue to be served the current NodeList until it is refreshed
+     */
+    private void invalidateNodeListSnapshot() {
+        if (clusterCache != null) {
+            clusterCache.invalidateNodeList();
+            return;
+        }
+        NodeListSnapshot snapshot = nodeListSnapshot.get();
+        while (snapshot != null && !nodeListSnapshot.compareAndSet(snapshot, snapshot.invalidate())) {
+            snapshot = nodeListSnapshot.get();
         }
-        return nodeList;
     }
 
-    @Override
-    public NodeList listPendingNodes() throws NotImplemented, ServiceFailure, NotFound {
-        NodeList pendingNodeList = new NodeList();
+    /*
+     * reload a single node and patch it into the NodeList snapshot, or drop it if it has
+     * been deleted or is no longer approved. The NodeList of the cluster is refreshed instead
+     */
+    private void patchNodeListSnapshot(String nodeId) {
+        if (clusterCache != null) {
+            invalidateNodeListSnapshot();
+            if (backgroundRefresher != null) {
+                backgroundRefresher.refreshNow();
+            }
+            return;
+        }
+        nodeListRefreshLock.lock();
+        try {
+            NodeListSnapshot snapshot = nodeListSnapshot.get();
+            if (snapshot == null) {
+                // nothing has been loaded yet
+                return;
+            }
+            Set<String> nodeIds = Collections.singleton(nodeId);
+            NodeList nodeList = IncrementalNodeListLoader.patchNodeList(snapshot.getNodeList(), nodeIds,
+                    nodeFacade.getApprovedNodes(nodeIds));
+            nodeListSnapshot.set(snapshot.patch(nodeList, nodeListVersion.incrementAndGet()));
+        } catch (ServiceFailure ex) {
+            log.warn("unable to reload " + nodeId + ", refreshing the nodelist: " + ex.getDescription());
+            invalidateNodeListSnapshot();
+        } finally {
+            nodeListRefreshLock.unlock();
+        }
+    }
 
-        List<NodeReference> pendingReferenceNodeList = nodeFacade.getPendingNodeReferenceList();
-        for (NodeReference nodeReference : pendingReferenceNodeList){
-            Node node = this.getNodeCapabilities(nodeReference);
-            pendingNodeList.addNode(node);
-            
+    /*
+     * remove the node from the node cache, or from the cluster, so that the next request reloads it.
+     * The next incremental refresh of the NodeList reloads it as well
+     */
+    private void invalidateNode(String nodeId) {
+        if (clusterCache != null) {
+            clusterCache.invalidate(nodeId);
+        } else {
+            nodeCapabilitiesCache.invalidate(nodeId);
+        }
+        IncrementalNodeListLoader loader = incrementalNodeListLoader;
+        if (loader != null) {
+            loader.reloadNode(nodeId);
         }
-        return pendingNodeList;
+    }
+
+    /*
+     * Retreive the nodes that have been registered but not yet approved.
+     *
+     * The pending nodes are loaded with a single subtree search on every call,
+     * they are not placed in the node capabilities cache
+     *
+     * @return a DataONE NodeList
+     * @throws ServiceFailure
+     * @throws NotImplemented
+     * @throws NotFound
+     */
+    @Override
+    public NodeList listPendingNodes() throws NotImplemented, ServiceFailure, NotFound {
+        return nodeFacade.getPendingNodeList();
     }
     /*
      * Retreive the capabilities of the specified node 
@@ -123,20 +540,11 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
      * 
      */
     @Override
-    public synchronized Node getNodeCapabilities(NodeReference nodeReference) throws ServiceFailure, NotFound {
-
-        Node node = null;
-        if ( (!nodeCacheMap.containsKey(nodeReference))
-                || this.isTimeForNodeRefresh(nodeReference)) {
-                node = nodeFacade.getNode(nodeReference);
-
-            nodeCacheMap.put(nodeReference, node);
+    public Node getNodeCapabilities(NodeReference nodeReference) throws ServiceFailure, NotFound {
+        if (clusterCache != null) {
+            return clusterCache.getNode(nodeReference.getValue());
         }
-        node = nodeCacheMap.get(nodeReference);
-        if (node == null) {
-            throw new ServiceFailure("4803", "could not retrieve " + nodeReference.getValue() + " from nodeCacheMap");
-        }
-        return node;
+        return nodeCapabilitiesCache.get(nodeReference.getValue());
     }
 
     /*
@@ -156,6 +564,123 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
     @Override
     public NodeReference register(Node node) throws ServiceFailure, InvalidRequest,
             IdentifierNotUnique, NotImplemented {
+        validateRegistration(node);
+        // validate that the node Id in the node structure is unique and conforms
+        // to the naming convention rules and max length rules
+        String newNodeId = node.getIdentifier().getValue();
+        boolean nodeIdRegistered = false;
+        String baseUrlNodeId = null;
+        for (String nodeId : nodeFacade.getNodeIdList(newNodeId, node.getBaseURL()).keySet()) {
+            // node identifiers are matched without regard to case, as in the node DN
+            if (nodeId.equalsIgnoreCase(newNodeId)) {
+                nodeIdRegistered = true;
+            } else {
+                baseUrlNodeId = nodeId;
+            }
+        }
+        validateUniqueness(node, nodeIdRegistered, baseUrlNodeId);
+        return createNode(node);
+    }
+
+    /*
+     * Create a batch of new nodes in the system. Each node is validated as by register,
+     * against the index of the registered node identifiers and baseURLs, and
+     * against the nodes that precede it in the batch.
+     *
+     * The nodes that pass validation are created concurrently by up to REGISTER_ALL_THREADS
+     * threads, each borrowing its own context from the LDAP pool.
+     *
+     * @author waltz
+     * @param Collection<Node> The Nodes to be registered
+     * @return The outcome of the registration of each Node
+     * @throws ServiceFailure if the registered nodes could not be listed
+     * @throws NotImplemented
+     *
+     */
+    @Override
+    public List<NodeRegistrationResult> registerAll(Collection<Node> nodes) throws ServiceFailure,
+            NotImplemented {
+        // node identifiers of the batch are kept in lower case, as in the NodeIdIndex
+        Set<String> batchNodeIds = new HashSet<String>(nodes.size() * 2);
+        Map<String, String> batchNodeIdsByBaseURL = new HashMap<String, String>(nodes.size() * 2);
+
+        // validation is serial so that the first of two conflicting nodes of the batch is accepted
+        final NodeRegistrationResult[] results = new NodeRegistrationResult[nodes.size()];
+        List<Callable<Void>> creations = new ArrayList<Callable<Void>>(nodes.size());
+        int index = 0;
+        for (final Node node : nodes) {
+            final int resultIndex = index++;
+            final NodeReference nodeReference = node == null ? null : node.getIdentifier();
+            try {
+                if (nodeReference == null || nodeReference.getValue() == null
+                        || node.getBaseURL() == null) {
+                    throw new InvalidRequest("4823", "Node identifier and baseURL are required");
+                }
+                validateRegistration(node);
+                String baseUrlNodeId = nodeFacade.findByBaseUrl(node.getBaseURL());
+                if (baseUrlNodeId == null) {
+                    baseUrlNodeId = batchNodeIdsByBaseURL.get(node.getBaseURL());
+                }
+                validateUniqueness(node, nodeFacade.isRegistered(nodeReference.getValue())
+                        || batchNodeIds.contains(nodeReference.getValue().toLowerCase()), baseUrlNodeId);
+            } catch (InvalidRequest ex) {
+                results[resultIndex] = new NodeRegistrationResult(nodeReference, ex);
+                continue;
+            } catch (IdentifierNotUnique ex) {
+                results[resultIndex] = new NodeRegistrationResult(nodeReference, ex);
+                continue;
+            }
+            batchNodeIds.add(nodeReference.getValue().toLowerCase());
+            batchNodeIdsByBaseURL.put(node.getBaseURL(), nodeReference.getValue());
+            creations.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    BaseException exception = null;
+                    try {
+                        createNode(node);
+                    } catch (BaseException ex) {
+                        exception = ex;
+                    }
+                    results[resultIndex] = new NodeRegistrationResult(nodeReference, exception);
+                    return null;
+                }
+            });
+        }
+
+        if (!creations.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(REGISTER_ALL_THREADS,
+                    creations.size()));
+            try {
+                for (Future<Void> creation : executor.invokeAll(creations)) {
+                    try {
+                        creation.get();
+                    } catch (ExecutionException ex) {
+                        log.error("Problem registering nodes", ex.getCause());
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new ServiceFailure("4842", "Registration of the nodes was interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        // a creation that died with an Error has left no result
+        index = 0;
+        for (Node node : nodes) {
+            if (results[index] == null) {
+                results[index] = new NodeRegistrationResult(node.getIdentifier(), new ServiceFailure(
+                        "4842", "Problem registering node " + node.getName()));
+            }
+            index++;
+        }
+        return Arrays.asList(results);
+    }
+
+    /*
+     * checks of a node to be registered that do not depend on the registered nodes
+     */
+    private void validateRegistration(Node node) throws InvalidRequest {
         // do not allow localhost to be baseURL of a node
         Matcher httpPatternMatcher = excludeNodeBaseURLPattern.matcher(node.getBaseURL());
         if (httpPatternMatcher.find()) {
@@ -168,28 +693,26 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
                     + node.getIdentifier().getValue() + "-"
                     + Settings.getConfiguration().getString("cn.nodeId.validation.errorText"));
         }
-        // validate that the node Id in the node structure is unique and conforms
-        // to the naming convention rules and max length rules
-        String newNodeId = node.getIdentifier().getValue();
-        String newBaseUrl = node.getBaseURL();
-        Map<String, String> nodeIds = nodeFacade.getNodeIdList();
-        if (nodeIds.containsKey(newNodeId)) {
+    }
+
+    /*
+     * the node identifier and the baseURL of a node to be registered may not be used by another node
+     */
+    private void validateUniqueness(Node node, boolean nodeIdRegistered, String baseUrlNodeId)
+            throws InvalidRequest, IdentifierNotUnique {
+        if (nodeIdRegistered) {
             IdentifierNotUnique ex = new IdentifierNotUnique("4844", node.getIdentifier()
                     .getValue() + " is not available for registration");
             throw ex;
         }
-        if (nodeIds.containsValue(newBaseUrl)) {
-            String offendingNodeId = "";
-            for (String nodeId : nodeIds.keySet()) {
-                if (nodeIds.get(nodeId).equals(newBaseUrl)) {
-                    offendingNodeId = nodeId;
-                    break;
-                }
-            }
-            throw new InvalidRequest("4823", "BaseURL " + newBaseUrl + " used by another node "
-                    + offendingNodeId);
+        if (baseUrlNodeId != null) {
+            throw new InvalidRequest("4823", "BaseURL " + node.getBaseURL() + " used by another node "
+                    + baseUrlNodeId);
         }
+    }
 
+    private NodeReference createNode(Node node) throws ServiceFailure, InvalidRequest,
+            IdentifierNotUnique, NotImplemented {
         try {
             if (node.isSynchronize()) {
                 validateSynchronizationSchedule(node);
@@ -205,6 +728,8 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
         } catch (NotImplemented ex) {
             ex.setDetail_code("4820");
             throw ex;
+        } catch (IdentifierNotUnique ex) {
+            throw ex;
         } catch (Exception ex) {
             ex.printStackTrace();
             log.error("Problem registering node " + node.getName(), ex);
@@ -239,10 +764,11 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
                 validateSynchronizationSchedule(node);
             }
             nodeFacade.updateNode(node);
-            this.setLastNodelistRefreshTimeMS(this.getLastNodelistRefreshTimeMS()-NODELIST_REFRESH_INTERVAL_MS);
-            if (nodeRefreshDateMap.containsKey(nodeid)) {
-                // force update on next refresh
-                nodeRefreshDateMap.put(nodeid, nodeRefreshDateMap.get(nodeid) - NODE_REFRESH_INTERVAL_MS);
+            this.invalidateNodeListSnapshot();
+            // force update on next request
+            invalidateNode(nodeid.getValue());
+            if (backgroundRefresher != null) {
+                backgroundRefresher.refreshNow();
             }
             return true;
         } catch (ServiceFailure ex) {
@@ -276,6 +802,11 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
     @Override
     public void deleteNode(NodeReference nodeReference) throws ServiceFailure {
             nodeFacade.deleteNode(nodeReference);
+            invalidateNodeListSnapshot();
+            invalidateNode(nodeReference.getValue());
+            if (backgroundRefresher != null) {
+                backgroundRefresher.refreshNow();
+            }
     }
 
     /*
@@ -292,6 +823,11 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
     @Override
     public void approveNode(NodeReference nodeReference) throws ServiceFailure {
         nodeFacade.setNodeApproved(nodeReference, Boolean.TRUE);
+        invalidateNodeListSnapshot();
+        invalidateNode(nodeReference.getValue());
+        if (backgroundRefresher != null) {
+            backgroundRefresher.refreshNow();
+        }
 
     }
 
@@ -335,57 +871,4 @@ public class NodeRegistryServiceImpl implements NodeRegistryService {
         }
 
     }
-
-    /**
-     * determines if it is time to refresh the nodelist information cache.
-     *
-     * @return boolean. true if time to refresh
-     */
-    private Boolean isTimeForNodelistRefresh() {
-        Date now = new Date();
-        long nowMS = now.getTime();
-        DateFormat df = DateFormat.getDateTimeInstance();
-        df.format(now);
-
-        if (nowMS - this.getLastNodelistRefreshTimeMS() > NODELIST_REFRESH_INTERVAL_MS) {
-            this.setLastNodelistRefreshTimeMS(nowMS);
-            log.info("  nodelist refresh: new cached time: " + df.format(now));
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    /**
-     * determines if it is time to refresh the node information cache.
-     *
-     * @return boolean. true if time to refresh
-     */
-    private Boolean isTimeForNodeRefresh(NodeReference nodeReference) {
-        Date now = new Date();
-        Long nowMS = new Long(now.getTime());
-        DateFormat df = DateFormat.getDateTimeInstance();
-        df.format(now);
-        if (!nodeRefreshDateMap.containsKey(nodeReference)) {
-            nodeRefreshDateMap.put(nodeReference, nowMS);
-
-            log.info("node initial refresh: new cached time: " + df.format(now));
-            return true;
-        } else if (nowMS - nodeRefreshDateMap.get(nodeReference) > NODELIST_REFRESH_INTERVAL_MS) {
-            nodeRefreshDateMap.put(nodeReference, nowMS);
-
-            log.info("node refresh: new cached time: " + df.format(now));
-            return true;
-        } else {
-            return false;
-        }
-    }
-
-    private long getLastNodelistRefreshTimeMS() {
-        return lastNodelistRefreshTimeMS;
-    }
-
-    private synchronized void setLastNodelistRefreshTimeMS(long lastNodelistRefreshTimeMS) {
-        this.lastNodelistRefreshTimeMS = lastNodelistRefreshTimeMS;
-    }
 }
@@ -0,0 +1,48 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import javax.naming.NamingException;
+import javax.naming.ldap.Control;
+
+import org.junit.Test;
+
+public class AssertionControlTest {
+
+	@Test
+	public void testNotAfter() {
+		Control control = AssertionControl.notAfter("a", "b");
+		assertEquals(LdapControlSupport.ASSERTION_OID, control.getID());
+		assertTrue(control.isCritical());
+		// (|(!(a=*))(a<=b))
+		byte[] expected = new byte[] {
+				(byte) 0xA1, 0x0D,
+				(byte) 0xA2, 0x03, (byte) 0x87, 0x01, 0x61,
+				(byte) 0xA6, 0x06, 0x04, 0x01, 0x61, 0x04, 0x01, 0x62 };
+		assertArrayEquals(expected, control.getEncodedValue());
+	}
+
+	@Test
+	public void testLongLength() {
+		byte[] element = AssertionControl.tlv(0x04, new byte[200]);
+		assertEquals(203, element.length);
+		assertEquals((byte) 0x81, element[1]);
+		assertEquals((byte) 200, element[2]);
+
+		element = AssertionControl.tlv(0x04, new byte[300]);
+		assertEquals(304, element.length);
+		assertEquals((byte) 0x82, element[1]);
+		assertEquals(0x01, element[2]);
+		assertEquals(0x2C, element[3]);
+	}
+
+	@Test
+	public void testIsAssertionFailed() {
+		assertTrue(AssertionControl.isAssertionFailed(new NamingException("[LDAP: error code 122 - Assertion Failed]")));
+		assertFalse(AssertionControl.isAssertionFailed(new NamingException("[LDAP: error code 32 - No Such Object]")));
+		assertFalse(AssertionControl.isAssertionFailed(new NamingException()));
+	}
+}
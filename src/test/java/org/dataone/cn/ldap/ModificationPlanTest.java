@@ -0,0 +1,85 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.junit.Test;
+
+public class ModificationPlanTest {
+
+	private static Attribute attribute(String attributeName, String... values) {
+		Attribute attribute = new BasicAttribute(attributeName);
+		for (String value : values) {
+			attribute.add(value);
+		}
+		return attribute;
+	}
+
+	@Test
+	public void testReplace() throws NamingException {
+		ModificationPlan plan = new ModificationPlan();
+		plan.replace("name", attribute("name", "foo"), "foo");
+		assertTrue("the same value should not be modified", plan.isEmpty());
+
+		plan.replace("name", attribute("name", "foo"), "bar");
+		plan.replace("description", null, "bar");
+		plan.replace("baseURL", attribute("baseURL", "foo"), null);
+		plan.replace("state", null, null);
+		assertEquals(3, plan.size());
+		ModificationItem[] items = plan.toArray();
+		assertEquals(DirContext.REPLACE_ATTRIBUTE, items[0].getModificationOp());
+		assertEquals(DirContext.ADD_ATTRIBUTE, items[1].getModificationOp());
+		assertEquals(DirContext.REMOVE_ATTRIBUTE, items[2].getModificationOp());
+		assertEquals(0, items[2].getAttribute().size());
+	}
+
+	@Test
+	public void testAddAndRemove() throws NamingException {
+		ModificationPlan plan = new ModificationPlan();
+		plan.addAndRemove("allowedNode", attribute("allowedNode", "urn:node:a", "urn:node:b"),
+				Arrays.asList("urn:node:b", "urn:node:a"));
+		assertTrue("the same values in another order should not be modified", plan.isEmpty());
+
+		plan.addAndRemove("allowedNode", attribute("allowedNode", "urn:node:a", "urn:node:b"),
+				Arrays.asList("urn:node:b", "urn:node:c", "urn:node:c"));
+		assertEquals(2, plan.size());
+		ModificationItem[] items = plan.toArray();
+		assertEquals(DirContext.ADD_ATTRIBUTE, items[0].getModificationOp());
+		assertEquals(1, items[0].getAttribute().size());
+		assertEquals("urn:node:c", items[0].getAttribute().get());
+		assertEquals(DirContext.REMOVE_ATTRIBUTE, items[1].getModificationOp());
+		assertEquals("urn:node:a", items[1].getAttribute().get());
+	}
+
+	@Test
+	public void testAddAndRemoveSubjects() throws NamingException {
+		ModificationPlan plan = new ModificationPlan();
+		plan.addAndRemoveSubjects("subject", attribute("subject", "cn=huey, dc=dataone, dc=org"),
+				Arrays.asList("CN=huey,DC=dataone,DC=org"));
+		assertTrue("the same DN written differently should not be modified", plan.isEmpty());
+
+		plan.addAndRemoveSubjects("subject", attribute("subject", "cn=huey,dc=dataone,dc=org"), null);
+		assertEquals(1, plan.size());
+		assertEquals(DirContext.REMOVE_ATTRIBUTE, plan.toArray()[0].getModificationOp());
+	}
+
+	@Test
+	public void testAddIfAbsent() throws NamingException {
+		ModificationPlan plan = new ModificationPlan();
+		plan.addIfAbsent("lastHarvested", attribute("lastHarvested", "1900-01-01T00:00:00.000Z"), Arrays.asList("now"));
+		plan.addIfAbsent("lastCompleteHarvest", null, Arrays.<String>asList());
+		assertTrue(plan.isEmpty());
+
+		plan.addIfAbsent("lastHarvested", null, Arrays.asList("1900-01-01T00:00:00.000Z"));
+		assertEquals(1, plan.size());
+		assertEquals(DirContext.ADD_ATTRIBUTE, plan.getModificationItemList().get(0).getModificationOp());
+	}
+}
@@ -1,5 +1,9 @@
 package org.dataone.cn.ldap;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedInputStream;
@@ -7,9 +11,15 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.naming.NamingEnumeration;
@@ -18,11 +28,22 @@ import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.BasicAttribute;
 import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
 import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
 
 import org.dataone.service.types.v1.Node;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Service;
+import org.dataone.service.types.v1.ServiceMethodRestriction;
+import org.dataone.service.types.v1.Services;
 import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v2.Property;
 import org.dataone.service.types.v2.TypeFactory;
+import org.dataone.service.util.DateTimeMarshaller;
 import org.dataone.service.util.TypeMarshaller;
 import org.dataone.exceptions.MarshallingException;
 import org.junit.Test;
@@ -183,8 +204,8 @@ public class NodeAccessTest {
 		for (ModificationItem item : mods) {
 			System.out.println(item.toString());
 		}
-		assertTrue("empty String should result in one modification", mods.size() == 1);
-		assertTrue("empty String should replace the old value", mods.get(0).toString().contains("Replace attribute:"));
+		assertTrue("null should result in one modification", mods.size() == 1);
+		assertTrue("null should remove the old value", mods.get(0).toString().contains("Remove attribute:"));
 	}
 	
 	@Test
@@ -421,6 +442,289 @@ public class NodeAccessTest {
 	}
 	
 	
+	@Test
+	public void testCalcEntryModifications_sameValues() throws NamingException {
+		NodeAccess na = new NodeAccess();
+		Attributes stored = new BasicAttributes(true);
+		stored.put("objectClass", NodeServicesAccess.OBJECT_CLASS_ID);
+		stored.put("d1nodeservicename", "MNRead");
+		stored.put("d1nodeserviceversion", "v1");
+		stored.put("d1nodeserviceavailable", "TRUE");
+
+		Attributes atts = new BasicAttributes(true);
+		atts.put("objectclass", NodeServicesAccess.OBJECT_CLASS_ID);
+		atts.put(NodeServicesAccess.NODE_SERVICE_ID, "MNRead-v1");
+		atts.put(NodeAccess.NODE_ID, "urn:node:testMN");
+		atts.put(NodeServicesAccess.NODE_SERVICE_NAME, "MNRead");
+		atts.put(NodeServicesAccess.NODE_SERVICE_VERSION, "v1");
+		atts.put(NodeServicesAccess.NODE_SERVICE_AVAILABLE, "TRUE");
+
+		List<ModificationItem> mods = na.calcEntryModifications(stored, atts);
+		assertTrue("there should be no modifications", mods.isEmpty());
+	}
+
+	@Test
+	public void testCalcEntryModifications_changedAndRemovedValues() throws NamingException {
+		NodeAccess na = new NodeAccess();
+		Attributes stored = new BasicAttributes(true);
+		stored.put(NodePropertyAccess.NODE_PROPERTY_KEY, "key");
+		stored.put(NodePropertyAccess.NODE_PROPERTY_VALUE, "old");
+		stored.put(NodePropertyAccess.NODE_PROPERTY_TYPE, "string");
+
+		Attributes atts = new BasicAttributes(true);
+		atts.put(NodePropertyAccess.NODE_PROPERTY_KEY, "key");
+		atts.put(NodePropertyAccess.NODE_PROPERTY_VALUE, "new");
+
+		List<ModificationItem> mods = na.calcEntryModifications(stored, atts);
+		assertEquals(2, mods.size());
+		assertEquals(DirContext.REPLACE_ATTRIBUTE, mods.get(0).getModificationOp());
+		assertEquals("new", mods.get(0).getAttribute().get());
+		assertEquals(DirContext.REMOVE_ATTRIBUTE, mods.get(1).getModificationOp());
+		assertEquals(NodePropertyAccess.NODE_PROPERTY_TYPE, mods.get(1).getAttribute().getID());
+	}
+
+	@Test
+	public void testMapNodeChildEntries() throws NamingException {
+		NodeAccess na = new NodeAccess();
+		org.dataone.service.types.v2.Node node = new org.dataone.service.types.v2.Node();
+		NodeReference nodeReference = new NodeReference();
+		nodeReference.setValue("urn:node:testMN");
+		node.setIdentifier(nodeReference);
+		Service service = new Service();
+		service.setName("MNRead");
+		service.setVersion("v1");
+		service.setAvailable(Boolean.TRUE);
+		ServiceMethodRestriction restriction = new ServiceMethodRestriction();
+		restriction.setMethodName("getReplica");
+		service.addRestriction(restriction);
+		Services services = new Services();
+		services.addService(service);
+		node.setServices(services);
+		Property property = new Property();
+		property.setKey("key");
+		property.setValue("value");
+		node.addProperty(property);
+		Property reserved = new Property();
+		reserved.setKey("CN_reserved");
+		reserved.setValue("value");
+		node.addProperty(reserved);
+
+		List<LdapName> entryNames = new ArrayList<LdapName>(na.mapNodeChildEntries(node).keySet());
+		assertEquals(3, entryNames.size());
+		// services precede their restrictions, reserved properties are not written
+		assertEquals(new LdapName("d1NodeServiceId=MNRead-v1,cn=urn:node:testMN,dc=dataone,dc=org"), entryNames.get(0));
+		assertEquals(new LdapName("d1ServiceMethodName=getReplica,d1NodeServiceId=MNRead-v1,cn=urn:node:testMN,dc=dataone,dc=org"), entryNames.get(1));
+		assertEquals(new LdapName("d1NodePropertyId=key,cn=urn:node:testMN,dc=dataone,dc=org"), entryNames.get(2));
+	}
+
+	/*
+	 * a directory holding the subtree of urn:node:testMN that records the names
+	 * destroyed and the request controls they were destroyed with
+	 */
+	private static class SubtreeServer implements InvocationHandler {
+
+		final List<String> destroyed = new ArrayList<String>();
+		final List<Control[]> destroyControls = new ArrayList<Control[]>();
+		Control[] requestControls = null;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getAttributes")) {
+				BasicAttributes rootDSE = new BasicAttributes(true);
+				rootDSE.put(new BasicAttribute(LdapControlSupport.SUPPORTED_CONTROL, LdapControlSupport.TREE_DELETE_OID));
+				return rootDSE;
+			}
+			if (name.equals("getRequestControls")) {
+				return requestControls;
+			}
+			if (name.equals("setRequestControls")) {
+				requestControls = (Control[]) args[0];
+				return null;
+			}
+			if (name.equals("search")) {
+				final Iterator<SearchResult> results = Arrays.asList(
+						entry("d1NodeServiceId=MNRead-v1,cn=urn:node:testMN,dc=dataone,dc=org"),
+						entry("cn=urn:node:testMN,dc=dataone,dc=org"),
+						entry("d1ServiceMethodName=getReplica,d1NodeServiceId=MNRead-v1,cn=urn:node:testMN,dc=dataone,dc=org"),
+						entry("d1NodePropertyId=key,cn=urn:node:testMN,dc=dataone,dc=org")).iterator();
+				return new NamingEnumeration<SearchResult>() {
+					public boolean hasMore() { return results.hasNext(); }
+					public SearchResult next() { return results.next(); }
+					public boolean hasMoreElements() { return results.hasNext(); }
+					public SearchResult nextElement() { return results.next(); }
+					public void close() { }
+				};
+			}
+			if (name.equals("destroySubcontext")) {
+				destroyed.add(args[0].toString());
+				destroyControls.add(requestControls);
+				return null;
+			}
+			throw new UnsupportedOperationException(name);
+		}
+
+		private static SearchResult entry(String entryName) {
+			SearchResult entry = new SearchResult(entryName, null, new BasicAttributes(true), false);
+			entry.setNameInNamespace(entryName);
+			return entry;
+		}
+	}
+
+	private static NodeReference testNodeReference() {
+		NodeReference nodeReference = new NodeReference();
+		nodeReference.setValue("urn:node:testMN");
+		return nodeReference;
+	}
+
+	@Test
+	public void testDeleteNodeSubtree_childrenFirst() throws Exception {
+		NodeAccess na = new NodeAccess();
+		SubtreeServer server = new SubtreeServer();
+		DirContext ctx = (DirContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DirContext.class }, server);
+
+		List<String> removed = na.deleteNodeSubtree(ctx, testNodeReference());
+		assertEquals(4, removed.size());
+		assertEquals(removed, server.destroyed);
+		assertEquals("d1ServiceMethodName=getReplica,d1NodeServiceId=MNRead-v1,cn=urn:node:testMN,dc=dataone,dc=org", removed.get(0));
+		assertEquals("cn=urn:node:testMN,dc=dataone,dc=org", removed.get(3));
+	}
+
+	@Test
+	public void testDeleteNodeSubtree_treeDelete() throws Exception {
+		NodeAccess na = new NodeAccess();
+		SubtreeServer server = new SubtreeServer();
+		LdapContext ctx = (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { LdapContext.class }, server);
+
+		List<String> removed = na.deleteNodeSubtree(ctx, testNodeReference());
+		// the node entry is removed with its subtree in one request
+		assertEquals(1, server.destroyed.size());
+		assertEquals("cn=urn:node:testMN,dc=dataone,dc=org", server.destroyed.get(0));
+		assertEquals(LdapControlSupport.TREE_DELETE_OID, server.destroyControls.get(0)[0].getID());
+		assertNull("the request controls are restored", server.requestControls);
+		assertEquals(4, removed.size());
+		assertEquals("cn=urn:node:testMN,dc=dataone,dc=org", removed.get(3));
+	}
+
+	/*
+	 * a directory supporting the Assertion control, that refuses an asserted update if the
+	 * stored date is later, or in any case if the attribute has no ORDERING rule
+	 */
+	private static class WatermarkServer implements InvocationHandler {
+
+		final List<ModificationItem[]> modifications = new ArrayList<ModificationItem[]>();
+		final List<Control[]> modifyControls = new ArrayList<Control[]>();
+		Control[] requestControls = null;
+		String storedValue = null;
+		boolean ordered = true;
+		int reads = 0;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getAttributes") && args[0].equals("")) {
+				BasicAttributes rootDSE = new BasicAttributes(true);
+				rootDSE.put(new BasicAttribute(LdapControlSupport.SUPPORTED_CONTROL, LdapControlSupport.ASSERTION_OID));
+				return rootDSE;
+			}
+			if (name.equals("getAttributes")) {
+				reads++;
+				BasicAttributes attributes = new BasicAttributes(true);
+				if (storedValue != null) {
+					attributes.put(new BasicAttribute(((String[]) args[1])[0], storedValue));
+				}
+				return attributes;
+			}
+			if (name.equals("getRequestControls")) {
+				return requestControls;
+			}
+			if (name.equals("setRequestControls")) {
+				requestControls = (Control[]) args[0];
+				return null;
+			}
+			if (name.equals("modifyAttributes")) {
+				ModificationItem[] mods = (ModificationItem[]) args[1];
+				modifications.add(mods);
+				modifyControls.add(requestControls);
+				String value = (String) mods[0].getAttribute().get();
+				if (requestControls != null && storedValue != null && (!ordered
+						|| DateTimeMarshaller.deserializeDateToUTC(storedValue).after(
+								DateTimeMarshaller.deserializeDateToUTC(value)))) {
+					throw new NamingException("[LDAP: error code 122 - Assertion Failed]");
+				}
+				storedValue = value;
+				return null;
+			}
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	@Test
+	public void testSetWatermark_blindReplace() throws Exception {
+		NodeAccess na = new NodeAccess();
+		WatermarkServer server = new WatermarkServer();
+		LdapContext ctx = (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { LdapContext.class }, server);
+
+		// no read before the write
+		assertTrue(na.setWatermark(ctx, testNodeReference(), NodeAccess.LOG_LAST_AGGREGATED, new Date(1000L), false));
+		assertEquals(1, server.modifications.size());
+		assertNull(server.modifyControls.get(0));
+		ModificationItem mod = server.modifications.get(0)[0];
+		assertEquals(DirContext.REPLACE_ATTRIBUTE, mod.getModificationOp());
+		assertEquals(NodeAccess.LOG_LAST_AGGREGATED, mod.getAttribute().getID());
+	}
+
+	@Test
+	public void testSetWatermark_advanceOnly() throws Exception {
+		NodeAccess na = new NodeAccess();
+		WatermarkServer server = new WatermarkServer();
+		LdapContext ctx = (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { LdapContext.class }, server);
+
+		// the first refused update is checked once against the stored date
+		server.storedValue = DateTimeMarshaller.serializeDateToUTC(new Date(2000L));
+		assertFalse("a later stored date is kept",
+				na.setWatermark(ctx, testNodeReference(), NodeAccess.NODE_LAST_HARVESTED, new Date(1000L), true));
+		assertEquals(1, server.modifications.size());
+		assertNotNull(server.modifyControls.get(0));
+		assertEquals(1, server.reads);
+
+		// from then on the server decides alone
+		assertFalse(na.setWatermark(ctx, testNodeReference(), NodeAccess.NODE_LAST_HARVESTED, new Date(1500L), true));
+		assertTrue(na.setWatermark(ctx, testNodeReference(), NodeAccess.NODE_LAST_HARVESTED, new Date(3000L), true));
+		assertEquals(3, server.modifications.size());
+		assertNotNull(server.modifyControls.get(2));
+		assertEquals(1, server.reads);
+		assertEquals(DateTimeMarshaller.serializeDateToUTC(new Date(3000L)), server.storedValue);
+	}
+
+	@Test
+	public void testSetWatermark_advanceOnlyWithoutOrderingRule() throws Exception {
+		NodeAccess na = new NodeAccess();
+		WatermarkServer server = new WatermarkServer();
+		server.ordered = false;
+		LdapContext ctx = (LdapContext) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { LdapContext.class }, server);
+
+		// the assertion is refused although the stored date is earlier
+		server.storedValue = DateTimeMarshaller.serializeDateToUTC(new Date(1000L));
+		assertTrue(na.setWatermark(ctx, testNodeReference(), NodeAccess.NODE_LAST_HARVESTED, new Date(2000L), true));
+		assertEquals(2, server.modifications.size());
+		assertNull("written again without the control", server.modifyControls.get(1));
+		assertEquals(DateTimeMarshaller.serializeDateToUTC(new Date(2000L)), server.storedValue);
+
+		// from then on the stored date is read first
+		assertFalse(na.setWatermark(ctx, testNodeReference(), NodeAccess.NODE_LAST_HARVESTED, new Date(500L), true));
+		assertEquals(2, server.modifications.size());
+		assertTrue(na.setWatermark(ctx, testNodeReference(), NodeAccess.NODE_LAST_HARVESTED, new Date(3000L), true));
+		assertEquals(3, server.modifications.size());
+		assertNull(server.modifyControls.get(2));
+		assertEquals(3, server.reads);
+	}
+
 	@Test
 	public void mapNodeAttributesShouldAcceptNullishNodeReplicationPolicyTest() throws InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException, IOException, MarshallingException, NamingException {
 	    NodeAccess na = new NodeAccess();
@@ -0,0 +1,209 @@
+package org.dataone.cn.ldap;
+
+import static org.dataone.cn.ldap.NodeAccess.*;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.security.auth.x500.X500Principal;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.NodeReplicationPolicy;
+import org.dataone.service.types.v1.NodeState;
+import org.dataone.service.types.v1.NodeType;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Ping;
+import org.dataone.service.types.v1.Schedule;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v1.Synchronization;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.util.DateTimeMarshaller;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the throughput and the allocation of reading a d1Node entry through the
+ * NodeAttribute table with the HashMap based mapper it replaced. The allocation per
+ * operation is reported by the gc profiler as gc.alloc.rate.norm. Not run by the
+ * unit tests, run it with
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=org.dataone.cn.ldap.NodeAttributeBenchmark
+ *
+ * @author waltz
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NodeAttributeBenchmark {
+
+	NodeAccess nodeAccess;
+	Attributes attributes;
+
+	@Setup
+	public void mapMemberNode() {
+		nodeAccess = new NodeAccess();
+		attributes = nodeAccess.mapNodeAttributes(NodeAttributeTest.memberNode());
+	}
+
+	@Benchmark
+	public Node nodeAttributeTable() throws NamingException {
+		return nodeAccess.mapNode(attributes);
+	}
+
+	@Benchmark
+	public Node hashMap() throws NamingException {
+		HashMap<String, NamingEnumeration<?>> attributesMap = new HashMap<String, NamingEnumeration<?>>();
+		NamingEnumeration<? extends Attribute> values = attributes.getAll();
+		while (values.hasMore()) {
+			Attribute attribute = values.next();
+			attributesMap.put(attribute.getID().toLowerCase(), attribute.getAll());
+		}
+		values.close();
+		return mapBasicNodeProperties(attributesMap, new Node());
+	}
+
+	/*
+	 * the mapper that NodeAttribute replaced, kept as the baseline
+	 */
+	private Node mapBasicNodeProperties(HashMap<String, NamingEnumeration<?>> attributesMap, Node node) throws NamingException {
+		if (attributesMap.containsKey(NODE_ID.toLowerCase())) {
+			NodeReference nodeReference = new NodeReference();
+			nodeReference.setValue(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_ID.toLowerCase())));
+			node.setIdentifier(nodeReference);
+		}
+		if (attributesMap.containsKey(NODE_NAME.toLowerCase())) {
+			node.setName(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_NAME.toLowerCase())));
+		}
+		if (attributesMap.containsKey(NODE_BASEURL.toLowerCase())) {
+			node.setBaseURL(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_BASEURL.toLowerCase())));
+		}
+		if (attributesMap.containsKey(NODE_DESCRIPTION.toLowerCase())) {
+			node.setDescription(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_DESCRIPTION.toLowerCase())));
+		}
+		if (attributesMap.containsKey(NODE_SUBJECT.toLowerCase())) {
+			NamingEnumeration<?> subjects = attributesMap.get(NODE_SUBJECT.toLowerCase());
+			while (subjects.hasMore()) {
+				node.addSubject(standardizedSubject((String) subjects.next()));
+			}
+		}
+		if (attributesMap.containsKey(NODE_CONTACT_SUBJECT.toLowerCase())) {
+			NamingEnumeration<?> contactSubjects = attributesMap.get(NODE_CONTACT_SUBJECT.toLowerCase());
+			while (contactSubjects.hasMore()) {
+				node.addContactSubject(standardizedSubject((String) contactSubjects.next()));
+			}
+		}
+		if (attributesMap.containsKey(NODE_REPLICATE.toLowerCase())) {
+			node.setReplicate(Boolean.valueOf(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_REPLICATE.toLowerCase()))));
+		}
+		if (attributesMap.containsKey(NODE_SYNCHRONIZE.toLowerCase())) {
+			node.setSynchronize(Boolean.valueOf(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_SYNCHRONIZE.toLowerCase()))));
+		}
+		if (attributesMap.containsKey(NODE_STATE.toLowerCase())) {
+			node.setState(NodeState.convert(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_STATE.toLowerCase()))));
+		}
+		if (attributesMap.containsKey(NODE_TYPE.toLowerCase())) {
+			node.setType(NodeType.convert(nodeAccess.getEnumerationValueString(attributesMap.get(NODE_TYPE.toLowerCase()))));
+			if (node.getType().compareTo(NodeType.MN) == 0) {
+				if (attributesMap.containsKey(SYNC_SCHEDULE_SEC.toLowerCase())) {
+					Synchronization synchronization = new Synchronization();
+					Schedule schedule = new Schedule();
+					schedule.setSec(nodeAccess.getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_SEC.toLowerCase())));
+					schedule.setMin(nodeAccess.getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_MIN.toLowerCase())));
+					schedule.setHour(nodeAccess.getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_HOUR.toLowerCase())));
+					schedule.setMday(nodeAccess.getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_MDAY.toLowerCase())));
+					schedule.setMon(nodeAccess.getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_MON.toLowerCase())));
+					schedule.setWday(nodeAccess.getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_WDAY.toLowerCase())));
+					schedule.setYear(nodeAccess.getEnumerationValueString(attributesMap.get(SYNC_SCHEDULE_YEAR.toLowerCase())));
+					synchronization.setSchedule(schedule);
+					synchronization.setLastHarvested(DateTimeMarshaller.deserializeDateToUTC(
+							nodeAccess.getEnumerationValueString(attributesMap.get(NODE_LAST_HARVESTED.toLowerCase()))));
+					synchronization.setLastCompleteHarvest(DateTimeMarshaller.deserializeDateToUTC(
+							nodeAccess.getEnumerationValueString(attributesMap.get(NODE_LAST_COMPLETE_HARVEST.toLowerCase()))));
+					node.setSynchronization(synchronization);
+				}
+				if (attributesMap.containsKey(PING_SUCCESS.toLowerCase())) {
+					Ping ping = new Ping();
+					ping.setSuccess(Boolean.valueOf(
+							nodeAccess.getEnumerationValueString(attributesMap.get(PING_SUCCESS.toLowerCase()))));
+					ping.setLastSuccess(DateTimeMarshaller.deserializeDateToUTC(
+							nodeAccess.getEnumerationValueString(attributesMap.get(PING_DATE_CHECKED.toLowerCase()))));
+					node.setPing(ping);
+				}
+				NodeReplicationPolicy nrp = null;
+				if (attributesMap.containsKey(REP_POLICY_MAXOBJECTSIZE.toLowerCase())) {
+					if (nrp == null) nrp = new NodeReplicationPolicy();
+					nrp.setMaxObjectSize(new BigInteger(
+							nodeAccess.getEnumerationValueString(attributesMap.get(REP_POLICY_MAXOBJECTSIZE.toLowerCase()))));
+				}
+				if (attributesMap.containsKey(REP_POLICY_SPACEALLOCATED.toLowerCase())) {
+					if (nrp == null) nrp = new NodeReplicationPolicy();
+					nrp.setSpaceAllocated(new BigInteger(
+							nodeAccess.getEnumerationValueString(attributesMap.get(REP_POLICY_SPACEALLOCATED.toLowerCase()))));
+				}
+				if (attributesMap.containsKey(REP_POLICY_ALLOWEDNODE.toLowerCase())) {
+					if (nrp == null) nrp = new NodeReplicationPolicy();
+					NamingEnumeration<?> allowedNodes = attributesMap.get(REP_POLICY_ALLOWEDNODE.toLowerCase());
+					while (allowedNodes.hasMore()) {
+						NodeReference nr = new NodeReference();
+						nr.setValue((String) allowedNodes.next());
+						nrp.addAllowedNode(nr);
+					}
+				}
+				if (attributesMap.containsKey(REP_POLICY_ALLOWEDOBJECTFORMAT.toLowerCase())) {
+					if (nrp == null) nrp = new NodeReplicationPolicy();
+					NamingEnumeration<?> allowedFormats = attributesMap.get(REP_POLICY_ALLOWEDOBJECTFORMAT.toLowerCase());
+					while (allowedFormats.hasMore()) {
+						ObjectFormatIdentifier formatid = new ObjectFormatIdentifier();
+						formatid.setValue((String) allowedFormats.next());
+						nrp.addAllowedObjectFormat(formatid);
+					}
+				}
+				if (nrp != null) {
+					node.setNodeReplicationPolicy(nrp);
+				}
+			}
+		}
+		return node;
+	}
+
+	private static Subject standardizedSubject(String subjectValue) {
+		Subject subject = new Subject();
+		subject.setValue(subjectValue);
+		try {
+			subject.setValue(new X500Principal(subjectValue).getName(X500Principal.RFC2253));
+		} catch (IllegalArgumentException iae) {
+			// ignore
+		}
+		return subject;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(NodeAttributeBenchmark.class.getSimpleName())
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,155 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.NodeReplicationPolicy;
+import org.dataone.service.types.v1.NodeState;
+import org.dataone.service.types.v1.NodeType;
+import org.dataone.service.types.v1.Schedule;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v1.Synchronization;
+import org.dataone.service.types.v2.Node;
+import org.junit.Test;
+
+public class NodeAttributeTest {
+
+	private static Subject subject(String value) {
+		Subject subject = new Subject();
+		subject.setValue(value);
+		return subject;
+	}
+
+	static Node memberNode() {
+		Node node = new Node();
+		NodeReference nodeReference = new NodeReference();
+		nodeReference.setValue("urn:node:testMN");
+		node.setIdentifier(nodeReference);
+		node.setName("test member node");
+		node.setDescription("a member node for testing");
+		node.setBaseURL("https://mn.example.org/mn");
+		node.setReplicate(true);
+		node.setSynchronize(false);
+		node.setType(NodeType.MN);
+		node.setState(NodeState.UP);
+		node.addSubject(subject("CN=urn:node:testMN,DC=dataone,DC=org"));
+		node.addContactSubject(subject("CN=Test Contact,O=Example,C=US,DC=cilogon,DC=org"));
+
+		Schedule schedule = new Schedule();
+		schedule.setSec("0");
+		schedule.setMin("0/3");
+		schedule.setHour("*");
+		schedule.setMday("*");
+		schedule.setMon("*");
+		schedule.setWday("?");
+		schedule.setYear("*");
+		Synchronization synchronization = new Synchronization();
+		synchronization.setSchedule(schedule);
+		node.setSynchronization(synchronization);
+
+		NodeReplicationPolicy policy = new NodeReplicationPolicy();
+		policy.setMaxObjectSize(BigInteger.valueOf(1024L));
+		policy.setSpaceAllocated(BigInteger.valueOf(4096L));
+		NodeReference allowedNode = new NodeReference();
+		allowedNode.setValue("urn:node:otherMN");
+		policy.addAllowedNode(allowedNode);
+		node.setNodeReplicationPolicy(policy);
+		return node;
+	}
+
+	@Test
+	public void testSlots() throws Exception {
+		Attributes attributes = new BasicAttributes(true);
+		attributes.put("D1NODEID", "urn:node:testMN");
+		attributes.put(NodeAccess.NODE_NAME, "test member node");
+		attributes.put("d1NodeApproved", "TRUE");
+
+		Attribute[] slots = NodeAttribute.slots(attributes);
+
+		assertEquals(NodeAttribute.values().length, slots.length);
+		assertEquals("urn:node:testMN", slots[NodeAttribute.IDENTIFIER.ordinal()].get());
+		assertEquals("test member node", slots[NodeAttribute.NAME.ordinal()].get());
+		assertNull(slots[NodeAttribute.DESCRIPTION.ordinal()]);
+		assertSame(NodeAttribute.NAME, NodeAttribute.forName("D1NODENAME"));
+		assertNull(NodeAttribute.forName("d1NodeApproved"));
+	}
+
+	@Test
+	public void testCreateAndRead() throws Exception {
+		NodeAccess nodeAccess = new NodeAccess();
+
+		Node node = nodeAccess.mapNode(nodeAccess.mapNodeAttributes(memberNode()));
+
+		assertEquals("urn:node:testMN", node.getIdentifier().getValue());
+		assertEquals("test member node", node.getName());
+		assertEquals("https://mn.example.org/mn", node.getBaseURL());
+		assertTrue(node.isReplicate());
+		assertEquals(NodeType.MN, node.getType());
+		assertEquals(NodeState.UP, node.getState());
+		assertEquals(1, node.getContactSubjectList().size());
+		assertEquals("0/3", node.getSynchronization().getSchedule().getMin());
+		assertEquals("?", node.getSynchronization().getSchedule().getWday());
+		assertEquals(BigInteger.valueOf(1024L), node.getNodeReplicationPolicy().getMaxObjectSize());
+		assertEquals(BigInteger.valueOf(4096L), node.getNodeReplicationPolicy().getSpaceAllocated());
+		assertEquals("urn:node:otherMN", node.getNodeReplicationPolicy().getAllowedNodeList().get(0).getValue());
+		assertNull(node.getPing());
+	}
+
+	@Test
+	public void testModifications() throws Exception {
+		NodeAccess nodeAccess = new NodeAccess();
+		Attribute[] slots = NodeAttribute.slots(nodeAccess.mapNodeAttributes(memberNode()));
+
+		assertTrue(nodeAccess.mapNodeModificationItemList(slots, memberNode()).isEmpty());
+
+		Node node = memberNode();
+		node.setName("renamed member node");
+		NodeReference allowedNode = new NodeReference();
+		allowedNode.setValue("urn:node:thirdMN");
+		node.getNodeReplicationPolicy().addAllowedNode(allowedNode);
+		// the schedule can not be removed
+		node.setSynchronization(null);
+
+		List<ModificationItem> modifications = nodeAccess.mapNodeModificationItemList(slots, node);
+
+		assertEquals(2, modifications.size());
+		assertEquals(DirContext.REPLACE_ATTRIBUTE, modifications.get(0).getModificationOp());
+		assertEquals(NodeAccess.NODE_NAME, modifications.get(0).getAttribute().getID());
+		assertEquals(DirContext.ADD_ATTRIBUTE, modifications.get(1).getModificationOp());
+		assertEquals("urn:node:thirdMN", modifications.get(1).getAttribute().get());
+	}
+
+	@Test
+	public void testHarvestDatesAddedOnce() throws Exception {
+		NodeAccess nodeAccess = new NodeAccess();
+		Node node = memberNode();
+		node.setSynchronization(null);
+		Attribute[] slots = NodeAttribute.slots(nodeAccess.mapNodeAttributes(node));
+
+		// a schedule added later starts with the default harvest dates
+		List<ModificationItem> modifications = nodeAccess.mapNodeModificationItemList(slots, memberNode());
+
+		int harvestDates = 0;
+		for (ModificationItem modification : modifications) {
+			String attributeName = modification.getAttribute().getID();
+			if (attributeName.equals(NodeAccess.NODE_LAST_HARVESTED)
+					|| attributeName.equals(NodeAccess.NODE_LAST_COMPLETE_HARVEST)) {
+				assertEquals(NodeAccess.DEFAULT_NON_HARVEST_DATE, modification.getAttribute().get());
+				harvestDates++;
+			}
+		}
+		assertEquals(2, harvestDates);
+	}
+}
@@ -0,0 +1,92 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class NodeIdIndexTest {
+
+	private static NodeIdIndex loadedIndex() {
+		Map<String, String> nodeIds = new HashMap<String, String>();
+		nodeIds.put("urn:node:A", "https://a.example.org/mn");
+		nodeIds.put("urn:node:B", "https://b.example.org/mn");
+		nodeIds.put("urn:node:C", null);
+		NodeIdIndex index = new NodeIdIndex(60000L);
+		index.load(nodeIds);
+		return index;
+	}
+
+	@Test
+	public void testLookups() {
+		NodeIdIndex index = loadedIndex();
+
+		assertTrue(index.containsNodeId("urn:node:A"));
+		assertTrue(index.containsNodeId("urn:node:C"));
+		assertFalse(index.containsNodeId("urn:node:D"));
+		assertEquals("urn:node:B", index.getNodeIdByBaseURL("https://b.example.org/mn"));
+		assertNull(index.getNodeIdByBaseURL("https://d.example.org/mn"));
+		assertNull(index.getNodeIdByBaseURL(null));
+	}
+
+	@Test
+	public void testPutAndRemove() {
+		NodeIdIndex index = loadedIndex();
+
+		index.put("urn:node:D", "https://d.example.org/mn");
+		assertTrue(index.containsNodeId("urn:node:D"));
+		assertEquals("urn:node:D", index.getNodeIdByBaseURL("https://d.example.org/mn"));
+
+		// an update that moves the baseURL releases the previous one
+		index.put("urn:node:A", "https://a2.example.org/mn");
+		assertNull(index.getNodeIdByBaseURL("https://a.example.org/mn"));
+		assertEquals("urn:node:A", index.getNodeIdByBaseURL("https://a2.example.org/mn"));
+
+		index.remove("urn:node:B");
+		assertFalse(index.containsNodeId("urn:node:B"));
+		assertNull(index.getNodeIdByBaseURL("https://b.example.org/mn"));
+	}
+
+	@Test
+	public void testNodeIdsIgnoreCase() {
+		NodeIdIndex index = loadedIndex();
+
+		assertTrue(index.containsNodeId("URN:NODE:A"));
+		// the identifier is answered as it was recorded
+		assertEquals("urn:node:A", index.getNodeIdByBaseURL("https://a.example.org/mn"));
+
+		index.put("urn:node:E", "https://e.example.org/mn");
+		assertTrue(index.containsNodeId("urn:node:e"));
+
+		index.remove("URN:NODE:B");
+		assertFalse(index.containsNodeId("urn:node:B"));
+		assertNull(index.getNodeIdByBaseURL("https://b.example.org/mn"));
+	}
+
+	@Test
+	public void testExpiry() throws Exception {
+		NodeIdIndex index = new NodeIdIndex(60000L);
+		assertTrue(index.isExpired());
+		index.load(new HashMap<String, String>());
+		assertFalse(index.isExpired());
+
+		index.invalidate();
+		assertTrue(index.isExpired());
+		// lookups are still answered until the index is loaded again
+		assertFalse(index.containsNodeId("urn:node:A"));
+
+		NodeIdIndex expiring = new NodeIdIndex(0L);
+		expiring.load(new HashMap<String, String>());
+		assertTrue(expiring.isExpired());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNotLoaded() {
+		new NodeIdIndex(60000L).containsNodeId("urn:node:A");
+	}
+}
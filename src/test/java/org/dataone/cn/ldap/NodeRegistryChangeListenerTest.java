@@ -0,0 +1,187 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.Binding;
+import javax.naming.CommunicationException;
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.SearchResult;
+import javax.naming.event.EventDirContext;
+import javax.naming.event.NamingEvent;
+import javax.naming.event.NamingExceptionEvent;
+
+import org.junit.Test;
+
+public class NodeRegistryChangeListenerTest {
+
+	/*
+	 * records the notifications of the listener
+	 */
+	private static class RecordingHandler implements NodeChangeHandler {
+
+		List<String> changedNodeIds = new ArrayList<String>();
+		List<NamingException> failures = new ArrayList<NamingException>();
+
+		@Override
+		public void nodeChanged(String nodeId) {
+			changedNodeIds.add(nodeId);
+		}
+
+		@Override
+		public void changeListenerFailed(NamingException ex) {
+			failures.add(ex);
+		}
+	}
+
+	/*
+	 * NamingEvents require a source, none of its methods are called
+	 */
+	private static EventDirContext eventSource() {
+		return (EventDirContext) Proxy.newProxyInstance(EventDirContext.class.getClassLoader(),
+				new Class<?>[] { EventDirContext.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static Binding binding(String name) {
+		return new Binding(name, null);
+	}
+
+	@Test
+	public void testGetNodeId_nodeEntry() {
+		assertEquals("urn:node:testNode",
+				NodeTreeAccess.getNodeId("cn=urn:node:testNode,dc=dataone,dc=org"));
+	}
+
+	@Test
+	public void testGetNodeId_relativeName() {
+		assertEquals("urn:node:testNode",
+				NodeTreeAccess.getNodeId("cn=urn:node:testNode,dc=dataone"));
+	}
+
+	@Test
+	public void testGetNodeId_restrictionEntry() {
+		String dn = "d1ServiceMethodRestrictionId=urn:node:testNode-MNRead-v1-get,"
+				+ "d1NodeServiceId=MNRead-v1,cn=urn:node:testNode,dc=dataone,dc=org";
+		assertEquals("urn:node:testNode", NodeTreeAccess.getNodeId(dn));
+	}
+
+	@Test
+	public void testGetNodeId_notANode() {
+		assertNull(NodeTreeAccess.getNodeId("dc=dataone,dc=org"));
+		assertNull(NodeTreeAccess.getNodeId("not a dn"));
+	}
+
+	@Test
+	public void testHandleEvent_serviceChanged() {
+		RecordingHandler handler = new RecordingHandler();
+		NodeRegistryChangeListener listener = new NodeRegistryChangeListener(handler);
+		String serviceName = "d1NodeServiceId=MNRead-v1,cn=urn:node:testNode,dc=dataone";
+
+		listener.objectChanged(new NamingEvent(eventSource(), NamingEvent.OBJECT_CHANGED,
+				binding(serviceName), binding(serviceName), null));
+
+		assertEquals(1, handler.changedNodeIds.size());
+		assertEquals("urn:node:testNode", handler.changedNodeIds.get(0));
+	}
+
+	@Test
+	public void testHandleEvent_nodeRemoved() {
+		RecordingHandler handler = new RecordingHandler();
+		NodeRegistryChangeListener listener = new NodeRegistryChangeListener(handler);
+
+		listener.objectRemoved(new NamingEvent(eventSource(), NamingEvent.OBJECT_REMOVED,
+				null, binding("cn=urn:node:testNode,dc=dataone"), null));
+
+		assertEquals(1, handler.changedNodeIds.size());
+		assertEquals("urn:node:testNode", handler.changedNodeIds.get(0));
+	}
+
+	@Test
+	public void testHandleEvent_renameAffectsBothNodes() {
+		RecordingHandler handler = new RecordingHandler();
+		NodeRegistryChangeListener listener = new NodeRegistryChangeListener(handler);
+
+		listener.objectRenamed(new NamingEvent(eventSource(), NamingEvent.OBJECT_RENAMED,
+				binding("cn=urn:node:newNode,dc=dataone"), binding("cn=urn:node:oldNode,dc=dataone"), null));
+
+		assertEquals(2, handler.changedNodeIds.size());
+		assertTrue(handler.changedNodeIds.contains("urn:node:oldNode"));
+		assertTrue(handler.changedNodeIds.contains("urn:node:newNode"));
+	}
+
+	/*
+	 * an entry as returned by the persistent search
+	 */
+	private static SearchResult entry(String name, String approved, String lastHarvested) {
+		BasicAttributes attributes = new BasicAttributes(true);
+		attributes.put("d1NodeApproved", approved);
+		if (lastHarvested != null) {
+			attributes.put(NodeAccess.NODE_LAST_HARVESTED, lastHarvested);
+		}
+		return new SearchResult(name, null, attributes);
+	}
+
+	@Test
+	public void testObjectChanged_watermarkIgnored() {
+		RecordingHandler handler = new RecordingHandler();
+		NodeRegistryChangeListener listener = new NodeRegistryChangeListener(handler);
+		String nodeName = "cn=urn:node:testNode,dc=dataone";
+
+		listener.objectAdded(new NamingEvent(eventSource(), NamingEvent.OBJECT_ADDED,
+				entry(nodeName, "FALSE", null), null, null));
+		listener.objectChanged(new NamingEvent(eventSource(), NamingEvent.OBJECT_CHANGED,
+				entry(nodeName, "FALSE", "2016-01-01T00:00:00.000Z"), null, null));
+		listener.objectChanged(new NamingEvent(eventSource(), NamingEvent.OBJECT_CHANGED,
+				entry(nodeName, "FALSE", "2016-01-02T00:00:00.000Z"), null, null));
+		assertEquals(1, handler.changedNodeIds.size());
+
+		listener.objectChanged(new NamingEvent(eventSource(), NamingEvent.OBJECT_CHANGED,
+				entry(nodeName, "TRUE", "2016-01-02T00:00:00.000Z"), null, null));
+		assertEquals(2, handler.changedNodeIds.size());
+	}
+
+	@Test
+	public void testObjectChanged_firstChangeReported() {
+		RecordingHandler handler = new RecordingHandler();
+		NodeRegistryChangeListener listener = new NodeRegistryChangeListener(handler);
+		String nodeName = "cn=urn:node:testNode,dc=dataone";
+
+		// nothing is known of entries that existed before the listener started
+		listener.objectChanged(new NamingEvent(eventSource(), NamingEvent.OBJECT_CHANGED,
+				entry(nodeName, "TRUE", "2016-01-01T00:00:00.000Z"), null, null));
+		assertEquals(1, handler.changedNodeIds.size());
+
+		// a removed entry is forgotten
+		listener.objectRemoved(new NamingEvent(eventSource(), NamingEvent.OBJECT_REMOVED,
+				null, binding(nodeName), null));
+		listener.objectChanged(new NamingEvent(eventSource(), NamingEvent.OBJECT_CHANGED,
+				entry(nodeName, "TRUE", "2016-01-01T00:00:00.000Z"), null, null));
+		assertEquals(3, handler.changedNodeIds.size());
+	}
+
+	@Test
+	public void testNamingExceptionThrown() {
+		RecordingHandler handler = new RecordingHandler();
+		NodeRegistryChangeListener listener = new NodeRegistryChangeListener(handler);
+
+		listener.namingExceptionThrown(new NamingExceptionEvent(eventSource(),
+				new CommunicationException("connection closed")));
+
+		assertEquals(1, handler.failures.size());
+		assertTrue(!listener.isActive());
+		assertTrue(handler.changedNodeIds.isEmpty());
+	}
+}
@@ -0,0 +1,139 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.DirContext;
+
+import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
+import org.dataone.cn.service.ldap.tests.v1.LdapPopulationService;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.util.TypeMarshaller;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Exercises the change listener against the embedded directory server of NodeRegistrySuiteTest,
+ * which supports persistent search
+ */
+public class NodeRegistryChangeListenerTestUnit extends AbstractLdapTestUnit {
+
+	/* the persistent search is issued by a thread of the JNDI provider after start returns */
+	private static final long REGISTRATION_MS = 1000L;
+	private static final long EVENT_TIMEOUT_MS = 10000L;
+	/* events of a single update arrive well within this interval of each other */
+	private static final long QUIET_MS = 2000L;
+
+	/*
+	 * queues the notifications of the listener, they are delivered on the event thread
+	 */
+	private static class QueueingHandler implements NodeChangeHandler {
+
+		BlockingQueue<String> changedNodeIds = new LinkedBlockingQueue<String>();
+		BlockingQueue<NamingException> failures = new LinkedBlockingQueue<NamingException>();
+
+		@Override
+		public void nodeChanged(String nodeId) {
+			changedNodeIds.add(nodeId);
+		}
+
+		@Override
+		public void changeListenerFailed(NamingException ex) {
+			failures.add(ex);
+		}
+	}
+
+	NodeFacade nodeFacade = new NodeFacade();
+	LdapPopulationService ldapPopulationService = new LdapPopulationService();
+	QueueingHandler handler = new QueueingHandler();
+	NodeRegistryChangeListener listener = new NodeRegistryChangeListener(handler);
+	Node testMNNode;
+
+	@Before
+	public void removeTestNode() throws Exception {
+		InputStream is = this.getClass().getResourceAsStream("/org/dataone/cn/resources/samples/v2/mnNode.xml");
+		try {
+			testMNNode = TypeMarshaller.unmarshalTypeFromStream(Node.class, is);
+		} finally {
+			is.close();
+		}
+		ldapPopulationService.deleteTestNodesByName(testMNNode.getIdentifier().getValue());
+	}
+
+	@After
+	public void stopListener() throws Exception {
+		listener.stop();
+		ldapPopulationService.deleteTestNodesByName(testMNNode.getIdentifier().getValue());
+	}
+
+	/*
+	 * wait for the first notification, then drain those that follow it
+	 * @return the number of notifications received
+	 */
+	private int awaitChanges(String nodeId) throws InterruptedException {
+		String changedNodeId = handler.changedNodeIds.poll(EVENT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+		if (changedNodeId == null) {
+			return 0;
+		}
+		int count = 0;
+		while (changedNodeId != null) {
+			assertEquals(nodeId, changedNodeId);
+			count++;
+			changedNodeId = handler.changedNodeIds.poll(QUIET_MS, TimeUnit.MILLISECONDS);
+		}
+		return count;
+	}
+
+	@Test
+	public void testStart_deliversChanges() throws Exception {
+		assertTrue(listener.start());
+		assertTrue(listener.isActive());
+		Thread.sleep(REGISTRATION_MS);
+
+		String nodeId = testMNNode.getIdentifier().getValue();
+		nodeFacade.createNode(testMNNode);
+		// the node entry and each of its services, restrictions and properties
+		assertTrue(awaitChanges(nodeId) > 0);
+
+		// a watermark alone does not change the node
+		DirContext ctx = NodeFacade.getDirContextProvider().borrowDirContext();
+		try {
+			NodeFacade.getNodeAccess().setDateLastHarvested(ctx, testMNNode.getIdentifier(), new Date());
+		} finally {
+			NodeFacade.getDirContextProvider().returnDirContext(ctx);
+		}
+		nodeFacade.setNodeApproved(testMNNode.getIdentifier(), Boolean.TRUE);
+		assertEquals(1, awaitChanges(nodeId));
+
+		nodeFacade.deleteNode(testMNNode.getIdentifier());
+		assertTrue(awaitChanges(nodeId) > 0);
+		assertTrue(handler.failures.isEmpty());
+		assertTrue(listener.isActive());
+	}
+
+	@Test
+	public void testStart_persistentSearchNotSupported() throws Exception {
+		LdapControlSupport.setControlSupported(LdapControlSupport.PERSISTENT_SEARCH_OID, Boolean.FALSE);
+		try {
+			assertFalse(listener.start());
+			assertFalse(listener.isActive());
+
+			nodeFacade.createNode(testMNNode);
+			assertNull(handler.changedNodeIds.poll(QUIET_MS, TimeUnit.MILLISECONDS));
+		} finally {
+			LdapControlSupport.setControlSupported(LdapControlSupport.PERSISTENT_SEARCH_OID, null);
+		}
+		// the server is asked again once the answer is forgotten
+		assertTrue(listener.start());
+	}
+}
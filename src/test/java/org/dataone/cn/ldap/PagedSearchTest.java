@@ -0,0 +1,199 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.SearchControls;
+import javax.naming.directory.SearchResult;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.PagedResultsControl;
+import javax.naming.ldap.PagedResultsResponseControl;
+
+import org.junit.Test;
+
+public class PagedSearchTest {
+
+	private static class ListEnumeration implements NamingEnumeration<SearchResult> {
+
+		private final Iterator<SearchResult> iterator;
+
+		ListEnumeration(List<SearchResult> results) {
+			iterator = results.iterator();
+		}
+
+		@Override
+		public boolean hasMore() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public SearchResult next() {
+			return iterator.next();
+		}
+
+		@Override
+		public boolean hasMoreElements() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public SearchResult nextElement() {
+			return iterator.next();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	/*
+	 * serves the entries a page at a time, the size of the page is given to the constructor
+	 * since the request control can not be decoded
+	 */
+	private static class PagingServer implements InvocationHandler {
+
+		final List<SearchResult> entries = new ArrayList<SearchResult>();
+		final int pageSize;
+		int offset = 0;
+		Control[] requestControls = null;
+		List<Control> searchControls = new ArrayList<Control>();
+
+		PagingServer(int entryCount, int pageSize) {
+			for (int i = 0; i < entryCount; i++) {
+				entries.add(new SearchResult("cn=node" + i, null, new BasicAttributes()));
+			}
+			this.pageSize = pageSize;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("getAttributes")) {
+				BasicAttributes rootDSE = new BasicAttributes(true);
+				rootDSE.put(new BasicAttribute(LdapControlSupport.SUPPORTED_CONTROL, PagedResultsControl.OID));
+				return rootDSE;
+			}
+			if (name.equals("getRequestControls")) {
+				return requestControls;
+			}
+			if (name.equals("setRequestControls")) {
+				requestControls = (Control[]) args[0];
+				return null;
+			}
+			if (name.equals("search")) {
+				searchControls.add(requestControls[0]);
+				List<SearchResult> page = entries.subList(offset, Math.min(offset + pageSize, entries.size()));
+				offset += page.size();
+				return new ListEnumeration(new ArrayList<SearchResult>(page));
+			}
+			if (name.equals("getResponseControls")) {
+				byte[] cookie = offset < entries.size() ? new byte[] { 1 } : new byte[0];
+				// BER sequence of the result size and the cookie
+				byte[] value = new byte[7 + cookie.length];
+				value[0] = 0x30;
+				value[1] = (byte) (5 + cookie.length);
+				value[2] = 0x02;
+				value[3] = 0x01;
+				value[4] = (byte) entries.size();
+				value[5] = 0x04;
+				value[6] = (byte) cookie.length;
+				System.arraycopy(cookie, 0, value, 7, cookie.length);
+				return new Control[] { new PagedResultsResponseControl(PagedResultsControl.OID, false, value) };
+			}
+			throw new UnsupportedOperationException(name);
+		}
+	}
+
+	private static class RecordingPageHandler implements PagedSearch.PageHandler {
+
+		List<Integer> pageSizes = new ArrayList<Integer>();
+
+		@Override
+		public boolean handlePage(List<SearchResult> page) {
+			pageSizes.add(page.size());
+			return true;
+		}
+	}
+
+	@Test
+	public void testPagedSearch() throws Exception {
+		PagingServer server = new PagingServer(5, 2);
+		LdapContext ctx = (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+				new Class<?>[] { LdapContext.class }, server);
+		RecordingPageHandler handler = new RecordingPageHandler();
+
+		PagedSearch.search(ctx, "dc=org", "(objectClass=d1Node)", new SearchControls(), 2, handler);
+
+		assertEquals(3, handler.pageSizes.size());
+		assertEquals(Integer.valueOf(2), handler.pageSizes.get(0));
+		assertEquals(Integer.valueOf(1), handler.pageSizes.get(2));
+		assertEquals(3, server.searchControls.size());
+		for (Control control : server.searchControls) {
+			assertTrue(control instanceof PagedResultsControl);
+		}
+		// the pooled context is left as it was found
+		assertNull(server.requestControls);
+	}
+
+	@Test
+	public void testPagedSearch_stop() throws Exception {
+		final PagingServer server = new PagingServer(5, 2);
+		LdapContext ctx = (LdapContext) Proxy.newProxyInstance(LdapContext.class.getClassLoader(),
+				new Class<?>[] { LdapContext.class }, server);
+		final List<Integer> pageSizes = new ArrayList<Integer>();
+
+		PagedSearch.search(ctx, "dc=org", "(objectClass=d1Node)", new SearchControls(), 2,
+				new PagedSearch.PageHandler() {
+					@Override
+					public boolean handlePage(List<SearchResult> page) {
+						// the handler may search with the context without the paging control
+						assertNull(server.requestControls);
+						pageSizes.add(page.size());
+						return false;
+					}
+				});
+
+		assertEquals(1, pageSizes.size());
+		// the second search abandons the results held by the server
+		assertEquals(2, server.searchControls.size());
+		assertNull(server.requestControls);
+	}
+
+	@Test
+	public void testUnpagedSearch() throws Exception {
+		final List<SearchResult> entries = new ArrayList<SearchResult>();
+		for (int i = 0; i < 5; i++) {
+			entries.add(new SearchResult("cn=node" + i, null, new BasicAttributes()));
+		}
+		// a DirContext that is not an LdapContext can not carry the control
+		DirContext ctx = (DirContext) Proxy.newProxyInstance(DirContext.class.getClassLoader(),
+				new Class<?>[] { DirContext.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("search")) {
+							return new ListEnumeration(entries);
+						}
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		RecordingPageHandler handler = new RecordingPageHandler();
+
+		PagedSearch.search(ctx, "dc=org", "(objectClass=d1Node)", new SearchControls(), 2, handler);
+
+		assertEquals(3, handler.pageSizes.size());
+		assertEquals(Integer.valueOf(1), handler.pageSizes.get(2));
+	}
+}
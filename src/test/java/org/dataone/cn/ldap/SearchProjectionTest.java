@@ -0,0 +1,46 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.naming.directory.SearchControls;
+
+import org.junit.Test;
+
+public class SearchProjectionTest {
+
+	@Test
+	public void testSubtreeSearchControls() {
+		SearchControls ctls = SearchProjection.NODE_ID_AND_BASEURL.subtreeSearchControls();
+
+		assertEquals(SearchControls.SUBTREE_SCOPE, ctls.getSearchScope());
+		assertArrayEquals(new String[]{NodeAccess.NODE_ID, NodeAccess.NODE_BASEURL}, ctls.getReturningAttributes());
+		assertArrayEquals(new String[]{"1.1"}, SearchProjection.ENTRY_NAME.getAttributes());
+	}
+
+	@Test
+	public void testNodeTreeIsUnionOfEntryProjections() {
+		List<String> nodeTree = Arrays.asList(SearchProjection.NODE_TREE.getAttributes());
+
+		SearchProjection[] entryProjections = {SearchProjection.NODE, SearchProjection.NODE_SERVICE,
+				SearchProjection.SERVICE_METHOD_RESTRICTION, SearchProjection.NODE_PROPERTY};
+		for (SearchProjection projection : entryProjections) {
+			assertTrue(projection.name(), nodeTree.containsAll(Arrays.asList(projection.getAttributes())));
+		}
+		// the objectClass is needed to tell the entries apart, and is listed once
+		assertEquals(nodeTree.indexOf("objectClass"), nodeTree.lastIndexOf("objectClass"));
+		assertTrue(nodeTree.contains("objectClass"));
+	}
+
+	@Test
+	public void testAttributesAreCopied() {
+		SearchProjection.NODE_ID.getAttributes()[0] = "changed";
+		SearchProjection.NODE_ID.subtreeSearchControls().getReturningAttributes()[0] = "changed";
+
+		assertEquals(NodeAccess.NODE_ID, SearchProjection.NODE_ID.getAttributes()[0]);
+	}
+}
@@ -0,0 +1,50 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class SubjectNormalizerTest {
+
+	@Test
+	public void testNormalize() {
+		SubjectNormalizer subjectNormalizer = new SubjectNormalizer(10, false);
+		String standardizedName = subjectNormalizer.normalize("CN=Test Contact, O=Example, C=US");
+		assertEquals("CN=Test Contact,O=Example,C=US", standardizedName);
+		// the cached name is returned
+		assertSame(standardizedName, subjectNormalizer.normalize("CN=Test Contact, O=Example, C=US"));
+		assertEquals(1, subjectNormalizer.size());
+	}
+
+	@Test
+	public void testNormalize_notADN() {
+		SubjectNormalizer subjectNormalizer = new SubjectNormalizer(10, false);
+		assertEquals("public", subjectNormalizer.normalize("public"));
+	}
+
+	@Test
+	public void testCacheIsBounded() {
+		SubjectNormalizer subjectNormalizer = new SubjectNormalizer(2, false);
+		subjectNormalizer.normalize("CN=one,DC=dataone,DC=org");
+		subjectNormalizer.normalize("CN=two,DC=dataone,DC=org");
+		subjectNormalizer.normalize("CN=three,DC=dataone,DC=org");
+		assertEquals(2, subjectNormalizer.size());
+	}
+
+	@Test
+	public void testNormalizeOnRead() {
+		SubjectNormalizer subjectNormalizer = new SubjectNormalizer(10, false);
+		assertEquals("CN=one, DC=dataone", subjectNormalizer.forWrite("CN=one, DC=dataone"));
+		assertEquals("CN=one,DC=dataone", subjectNormalizer.forRead("CN=one, DC=dataone"));
+	}
+
+	@Test
+	public void testNormalizeOnWrite() {
+		SubjectNormalizer subjectNormalizer = new SubjectNormalizer(10, true);
+		assertEquals("CN=one,DC=dataone", subjectNormalizer.forWrite("CN=one, DC=dataone"));
+		// stored values are read without parsing
+		assertEquals("CN=one, DC=dataone", subjectNormalizer.forRead("CN=one, DC=dataone"));
+		assertEquals(1, subjectNormalizer.size());
+	}
+}
@@ -0,0 +1,195 @@
+package org.dataone.cn.ldap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.naming.CommunicationException;
+import javax.naming.NameNotFoundException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Synchronization;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.util.DateTimeMarshaller;
+import org.junit.Test;
+
+public class WatermarkBufferTest {
+
+	/*
+	 * records the modifications written, or fails them all. Reads answer the stored value
+	 */
+	private static class ModifyRecorder implements InvocationHandler {
+
+		final List<String> names = new ArrayList<String>();
+		final List<ModificationItem[]> modifications = new ArrayList<ModificationItem[]>();
+		boolean failing = false;
+		boolean deleted = false;
+		Date storedValue = null;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getName().equals("getAttributes")) {
+				BasicAttributes attributes = new BasicAttributes(true);
+				if (storedValue != null) {
+					attributes.put(new BasicAttribute(((String[]) args[1])[0],
+							DateTimeMarshaller.serializeDateToUTC(storedValue)));
+				}
+				return attributes;
+			}
+			if (method.getName().equals("modifyAttributes")) {
+				if (failing) {
+					throw new CommunicationException("down");
+				}
+				if (deleted) {
+					throw new NameNotFoundException((String) args[0]);
+				}
+				names.add((String) args[0]);
+				modifications.add((ModificationItem[]) args[1]);
+				return null;
+			}
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+	private static DirContext context(ModifyRecorder recorder) {
+		return (DirContext) Proxy.newProxyInstance(WatermarkBufferTest.class.getClassLoader(),
+				new Class<?>[] { DirContext.class }, recorder);
+	}
+
+	@Test
+	public void testCoalesce() {
+		WatermarkBuffer buffer = new WatermarkBuffer(1000L);
+		buffer.put("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1000L));
+		buffer.put("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(2000L));
+		buffer.put("urn:node:testMN", NodeAccess.LOG_LAST_AGGREGATED, new Date(3000L));
+		assertEquals(2, buffer.size());
+		// reads see the newest value before it is written
+		assertEquals(new Date(2000L), buffer.get("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED));
+		assertNull(buffer.get("urn:node:otherMN", NodeAccess.NODE_LAST_HARVESTED));
+
+		ModifyRecorder recorder = new ModifyRecorder();
+		assertEquals(1, buffer.flush(context(recorder)));
+		assertEquals("cn=urn:node:testMN,dc=dataone,dc=org", recorder.names.get(0));
+		ModificationItem[] mods = recorder.modifications.get(0);
+		assertEquals(2, mods.length);
+		for (ModificationItem mod : mods) {
+			assertEquals(DirContext.REPLACE_ATTRIBUTE, mod.getModificationOp());
+		}
+		assertEquals(0, buffer.size());
+		assertNull(buffer.get("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED));
+	}
+
+	@Test
+	public void testFailedFlushIsRetried() {
+		WatermarkBuffer buffer = new WatermarkBuffer(1000L);
+		buffer.put("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1000L));
+
+		ModifyRecorder recorder = new ModifyRecorder();
+		recorder.failing = true;
+		assertEquals(0, buffer.flush(context(recorder)));
+		assertEquals(1, buffer.size());
+
+		recorder.failing = false;
+		assertEquals(1, buffer.flush(context(recorder)));
+		assertEquals(0, buffer.size());
+		assertEquals(0, buffer.flush(context(recorder)));
+	}
+
+	@Test
+	public void testAdvanceKeepsTheLaterValue() {
+		WatermarkBuffer buffer = new WatermarkBuffer(1000L);
+		buffer.put("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(2000L));
+		assertFalse(buffer.advance("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1000L)));
+		assertEquals(new Date(2000L), buffer.get("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED));
+
+		assertTrue(buffer.advance("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(3000L)));
+		assertEquals(new Date(3000L), buffer.get("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED));
+		assertFalse("advancing a replacing value keeps it replacing",
+				buffer.getBuffered("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED).isAdvanceOnly());
+	}
+
+	@Test
+	public void testAdvanceOnlyIsBuffered() {
+		WatermarkBuffer buffer = new WatermarkBuffer(1000L);
+		// nothing buffered, the value is buffered without reading the stored one
+		assertTrue(buffer.advance("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1000L)));
+		assertTrue(buffer.advance("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(2000L)));
+		assertFalse(buffer.advance("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1500L)));
+		WatermarkBuffer.BufferedWatermark buffered = buffer.getBuffered("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED);
+		assertTrue(buffered.isAdvanceOnly());
+		assertEquals(new Date(2000L), buffered.resolve(new Date(1000L)));
+		assertEquals("a later stored value is kept", new Date(3000L), buffered.resolve(new Date(3000L)));
+
+		// written advance-only, the later stored value is kept
+		ModifyRecorder recorder = new ModifyRecorder();
+		recorder.storedValue = new Date(3000L);
+		assertEquals(1, buffer.flush(context(recorder)));
+		assertEquals(0, recorder.modifications.size());
+		assertEquals(0, buffer.size());
+
+		buffer.advance("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(4000L));
+		assertEquals(1, buffer.flush(context(recorder)));
+		assertEquals(1, recorder.modifications.size());
+		assertEquals(DirContext.REPLACE_ATTRIBUTE, recorder.modifications.get(0)[0].getModificationOp());
+		assertEquals(0, buffer.size());
+	}
+
+	@Test
+	public void testDeletedNodeIsDiscarded() {
+		WatermarkBuffer buffer = new WatermarkBuffer(1000L);
+		buffer.put("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1000L));
+
+		ModifyRecorder recorder = new ModifyRecorder();
+		recorder.deleted = true;
+		assertEquals(0, buffer.flush(context(recorder)));
+		assertEquals("the watermarks of a missing node are not retried", 0, buffer.size());
+	}
+
+	@Test
+	public void testRemove() {
+		WatermarkBuffer buffer = new WatermarkBuffer(1000L);
+		buffer.put("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1000L));
+		buffer.put("urn:node:testMN", NodeAccess.LOG_LAST_AGGREGATED, new Date(1000L));
+		buffer.put("urn:node:otherMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1000L));
+
+		buffer.remove("urn:node:testMN");
+		assertEquals(1, buffer.size());
+		assertNull(buffer.get("urn:node:testMN", NodeAccess.LOG_LAST_AGGREGATED));
+	}
+
+	@Test
+	public void testOverlay() {
+		WatermarkBuffer buffer = new WatermarkBuffer(1000L);
+		Node node = new Node();
+		NodeReference nodeReference = new NodeReference();
+		nodeReference.setValue("urn:node:testMN");
+		node.setIdentifier(nodeReference);
+		node.setSynchronization(new Synchronization());
+		node.getSynchronization().setLastHarvested(new Date(1000L));
+
+		buffer.overlay(node);
+		assertEquals("nothing is buffered", new Date(1000L), node.getSynchronization().getLastHarvested());
+
+		buffer.put("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(2000L));
+		buffer.overlay(node);
+		assertEquals(new Date(2000L), node.getSynchronization().getLastHarvested());
+
+		// an advance-only value does not hide a later stored one
+		buffer.remove("urn:node:testMN");
+		buffer.advance("urn:node:testMN", NodeAccess.NODE_LAST_HARVESTED, new Date(1500L));
+		buffer.overlay(node);
+		assertEquals(new Date(2000L), node.getSynchronization().getLastHarvested());
+	}
+}
@@ -39,8 +39,10 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.directory.server.core.integ.AbstractLdapTestUnit;
 import org.dataone.cn.ldap.NodeFacade;
 import org.dataone.cn.ldap.NodeServicesAccess;
+import org.dataone.cn.ldap.NodeVisitor;
 import org.dataone.cn.ldap.ServiceMethodRestrictionsAccess;
 import org.dataone.cn.service.ldap.tests.v1.LdapPopulationService;
+import org.dataone.service.cn.v2.NodeRegistrationResult;
 import org.dataone.service.cn.v2.impl.NodeRegistryServiceImpl;
 import org.dataone.service.exceptions.IdentifierNotUnique;
 import org.dataone.service.exceptions.InvalidRequest;
@@ -321,6 +323,93 @@ public class NodeRegistryServiceTestUnit extends AbstractLdapTestUnit {
         ldapPopulationService.deleteTestNodesByName(testMNNoRepPolicy.getIdentifier().getValue());
     }
 
+    @Test
+    public void testRegisterAll() throws Exception {
+        Node testBadLocalhostNode = buildTestNode("/org/dataone/cn/resources/samples/v2/mnBadLocalhostNode.xml");
+        List<Node> batch = new ArrayList<Node>();
+        batch.add(testMNNode);
+        batch.add(testCNNode);
+        // same baseURL as testMNNode
+        batch.add(testMNNoRepPolicy);
+        batch.add(testBadLocalhostNode);
+        // same identifier as testMNNode
+        batch.add(testMNNode);
+
+        List<NodeRegistrationResult> results = nodeRegistryService.registerAll(batch);
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).isRegistered());
+        assertTrue(results.get(1).isRegistered());
+        assertTrue(results.get(2).getException() instanceof InvalidRequest);
+        assertTrue(results.get(3).getException() instanceof InvalidRequest);
+        assertTrue(results.get(4).getException() instanceof IdentifierNotUnique);
+
+        assertNotNull(nodeRegistryService.getNodeCapabilities(testMNNode.getIdentifier()));
+        assertNotNull(nodeRegistryService.getNodeCapabilities(testCNNode.getIdentifier()));
+
+        ldapPopulationService.deleteTestNodesByName(testMNNode.getIdentifier().getValue());
+        ldapPopulationService.deleteTestNodesByName(testCNNode.getIdentifier().getValue());
+    }
+
+    @Test
+    public void testForEachApprovedNode() throws Exception {
+        nodeRegistryService.register(testMNNode);
+        nodeRegistryService.register(testCNNode);
+        nodeAccess.setNodeApproved(testMNNode.getIdentifier(), Boolean.TRUE);
+        nodeAccess.setNodeApproved(testCNNode.getIdentifier(), Boolean.TRUE);
+        try {
+            final List<Node> visited = new ArrayList<Node>();
+            nodeAccess.forEachApprovedNode(new NodeVisitor() {
+                @Override
+                public boolean visit(Node node) {
+                    visited.add(node);
+                    return true;
+                }
+            });
+            assertEquals(nodeAccess.getApprovedNodeList().sizeNodeList(), visited.size());
+            boolean foundTestCNServices = false;
+            for (Node node : visited) {
+                if (node.getIdentifier().getValue().equals(testCNNode.getIdentifier().getValue())) {
+                    foundTestCNServices = node.getServices().sizeServiceList() > 0;
+                }
+            }
+            assertTrue(foundTestCNServices);
+
+            // the walk ends once the visitor returns false
+            final List<Node> first = new ArrayList<Node>();
+            nodeAccess.forEachApprovedNode(new NodeVisitor() {
+                @Override
+                public boolean visit(Node node) {
+                    first.add(node);
+                    return false;
+                }
+            });
+            assertEquals(1, first.size());
+        } finally {
+            ldapPopulationService.deleteTestNodesByName(testMNNode.getIdentifier().getValue());
+            ldapPopulationService.deleteTestNodesByName(testCNNode.getIdentifier().getValue());
+        }
+    }
+
+    @Test
+    public void testRegisterDuplicateNode() throws Exception {
+        nodeRegistryService.register(testMNNode);
+        try {
+            nodeRegistryService.register(testMNNode);
+            fail("a node identifier may only be registered once");
+        } catch (IdentifierNotUnique ex) {
+            // expected
+        }
+        try {
+            // same baseURL as testMNNode
+            nodeRegistryService.register(testMNNoRepPolicy);
+            fail("a baseURL may only be registered once");
+        } catch (InvalidRequest ex) {
+            // expected
+        } finally {
+            ldapPopulationService.deleteTestNodesByName(testMNNode.getIdentifier().getValue());
+        }
+    }
+
     @Test(expected = InvalidRequest.class)
     public void testRegisterBadLocalhostNode() throws IOException, InstantiationException, IllegalAccessException, MarshallingException, ServiceFailure, IdentifierNotUnique, InvalidRequest, NotImplemented {
         Node testMNNode = buildTestNode("/org/dataone/cn/resources/samples/v2/mnBadLocalhostNode.xml");
@@ -15,6 +15,7 @@ import org.apache.directory.server.core.annotations.CreateDS;
 import org.apache.directory.server.core.annotations.CreatePartition;
 import org.apache.directory.server.core.authn.SimpleAuthenticator;
 
+import org.dataone.cn.ldap.NodeRegistryChangeListenerTestUnit;
 import org.dataone.test.apache.directory.server.integ.ApacheDSSuiteRunner;
 
 import org.junit.runner.RunWith;
@@ -25,7 +26,7 @@ import org.junit.runners.Suite;
  * @author waltz
  */
 @RunWith(ApacheDSSuiteRunner.class)
-@Suite.SuiteClasses({  NodeRegistryServiceTestUnit.class })
+@Suite.SuiteClasses({  NodeRegistryServiceTestUnit.class, NodeRegistryChangeListenerTestUnit.class })
 @CreateDS(allowAnonAccess = false, enableAccessControl=true,  authenticators ={@CreateAuthenticator(type = SimpleAuthenticator.class)} ,name = "org", partitions = { @CreatePartition(name = "org", suffix = "dc=org") })
 @ApplyLdifFiles({"org/dataone/test/apache/directory/server/dataone-schema.ldif", "org/dataone/test/apache/directory/server/dataone-base-data.ldif", "org/dataone/test/services/types/v1/nodes/ldif/devNodeList.ldif", "org/dataone/test/services/types/v1/person/ldif/devTestPrincipal.ldif"})
 @CreateLdapServer(transports = { @CreateTransport(address = "localhost", protocol = "LDAP", port=11389) })
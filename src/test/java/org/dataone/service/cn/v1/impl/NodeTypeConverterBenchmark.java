@@ -0,0 +1,76 @@
+package org.dataone.service.cn.v1.impl;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dataone.service.types.v1.NodeList;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.types.v2.TypeFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the conversion of a v2 NodeList to v1 by NodeTypeConverter with the
+ * TypeFactory conversion it replaced. Not run by the unit tests, run it with
+ *
+ * mvn test-compile exec:java -Dexec.classpathScope=test
+ *     -Dexec.mainClass=org.dataone.service.cn.v1.impl.NodeTypeConverterBenchmark
+ *
+ * @author waltz
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NodeTypeConverterBenchmark {
+
+	/* the production NodeList holds about a hundred nodes */
+	@Param({ "1", "100" })
+	int nodes;
+
+	org.dataone.service.types.v2.NodeList nodeList;
+
+	@Setup
+	public void buildNodeList() {
+		nodeList = new org.dataone.service.types.v2.NodeList();
+		for (int i = 0; i < nodes; i++) {
+			Node node = NodeTypeConverterTest.fullNode();
+			NodeReference nodeReference = new NodeReference();
+			nodeReference.setValue("urn:node:testMN" + i);
+			node.setIdentifier(nodeReference);
+			nodeList.addNode(node);
+		}
+	}
+
+	@Benchmark
+	public NodeList nodeTypeConverter() {
+		return NodeTypeConverter.toV1(nodeList);
+	}
+
+	@Benchmark
+	public NodeList typeFactory() throws Exception {
+		return TypeFactory.convertTypeFromType(nodeList, NodeList.class);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(NodeTypeConverterBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+}
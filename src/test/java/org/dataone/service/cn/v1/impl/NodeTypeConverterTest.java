@@ -0,0 +1,213 @@
+package org.dataone.service.cn.v1.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.Date;
+
+import org.dataone.service.types.v1.Node;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.NodeReplicationPolicy;
+import org.dataone.service.types.v1.NodeState;
+import org.dataone.service.types.v1.NodeType;
+import org.dataone.service.types.v1.ObjectFormatIdentifier;
+import org.dataone.service.types.v1.Ping;
+import org.dataone.service.types.v1.Schedule;
+import org.dataone.service.types.v1.Service;
+import org.dataone.service.types.v1.ServiceMethodRestriction;
+import org.dataone.service.types.v1.Services;
+import org.dataone.service.types.v1.Subject;
+import org.dataone.service.types.v1.Synchronization;
+import org.dataone.service.types.v2.Property;
+import org.dataone.service.types.v2.TypeFactory;
+import org.dataone.service.util.TypeMarshaller;
+import org.junit.Test;
+
+public class NodeTypeConverterTest {
+
+	private static Subject subject(String value) {
+		Subject subject = new Subject();
+		subject.setValue(value);
+		return subject;
+	}
+
+	private static NodeReference nodeReference(String value) {
+		NodeReference nodeReference = new NodeReference();
+		nodeReference.setValue(value);
+		return nodeReference;
+	}
+
+	/*
+	 * a v2 Node with every field the converter copies
+	 */
+	static org.dataone.service.types.v2.Node fullNode() {
+		org.dataone.service.types.v2.Node node = new org.dataone.service.types.v2.Node();
+		node.setIdentifier(nodeReference("urn:node:testMN"));
+		node.setName("test member node");
+		node.setDescription("a member node for testing");
+		node.setBaseURL("https://mn.example.org/mn");
+		node.setReplicate(true);
+		node.setSynchronize(true);
+		node.setType(NodeType.MN);
+		node.setState(NodeState.UP);
+		node.addSubject(subject("CN=urn:node:testMN,DC=dataone,DC=org"));
+		node.addContactSubject(subject("CN=Test Contact,O=Example,C=US,DC=cilogon,DC=org"));
+
+		ServiceMethodRestriction restriction = new ServiceMethodRestriction();
+		restriction.setMethodName("replicate");
+		restriction.addSubject(subject("CN=urn:node:CN,DC=dataone,DC=org"));
+		Service service = new Service();
+		service.setName("MNReplication");
+		service.setVersion("v1");
+		service.setAvailable(Boolean.TRUE);
+		service.addRestriction(restriction);
+		Services services = new Services();
+		services.addService(service);
+		node.setServices(services);
+
+		Schedule schedule = new Schedule();
+		schedule.setSec("0");
+		schedule.setMin("0/3");
+		schedule.setHour("*");
+		schedule.setMday("*");
+		schedule.setMon("*");
+		schedule.setWday("?");
+		schedule.setYear("*");
+		Synchronization synchronization = new Synchronization();
+		synchronization.setSchedule(schedule);
+		synchronization.setLastHarvested(new Date(1000000L));
+		synchronization.setLastCompleteHarvest(new Date(2000000L));
+		node.setSynchronization(synchronization);
+
+		Ping ping = new Ping();
+		ping.setSuccess(Boolean.TRUE);
+		ping.setLastSuccess(new Date(3000000L));
+		node.setPing(ping);
+
+		NodeReplicationPolicy policy = new NodeReplicationPolicy();
+		policy.setMaxObjectSize(BigInteger.valueOf(1024L));
+		policy.setSpaceAllocated(BigInteger.valueOf(4096L));
+		policy.addAllowedNode(nodeReference("urn:node:otherMN"));
+		ObjectFormatIdentifier format = new ObjectFormatIdentifier();
+		format.setValue("text/csv");
+		policy.addAllowedObjectFormat(format);
+		node.setNodeReplicationPolicy(policy);
+
+		Property property = new Property();
+		property.setKey("key");
+		property.setValue("value");
+		node.addProperty(property);
+		return node;
+	}
+
+	private static String marshal(Object object) throws Exception {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		TypeMarshaller.marshalTypeToOutputStream(object, outputStream);
+		return outputStream.toString("UTF-8");
+	}
+
+	@Test
+	public void testToV1_sameAsTypeFactory() throws Exception {
+		org.dataone.service.types.v2.Node node = fullNode();
+
+		Node expected = TypeFactory.convertTypeFromType(node, Node.class);
+		assertEquals(marshal(expected), marshal(NodeTypeConverter.toV1(node)));
+	}
+
+	@Test
+	public void testToV2_sameAsTypeFactory() throws Exception {
+		Node node = NodeTypeConverter.toV1(fullNode());
+
+		org.dataone.service.types.v2.Node expected = TypeFactory.convertTypeFromType(node,
+				org.dataone.service.types.v2.Node.class);
+		assertEquals(marshal(expected), marshal(NodeTypeConverter.toV2(node)));
+	}
+
+	@Test
+	public void testToV1_copiesAllFields() {
+		org.dataone.service.types.v2.Node node = fullNode();
+		Node v1Node = NodeTypeConverter.toV1(node);
+
+		assertEquals("urn:node:testMN", v1Node.getIdentifier().getValue());
+		assertEquals(node.getName(), v1Node.getName());
+		assertEquals(node.getDescription(), v1Node.getDescription());
+		assertEquals(node.getBaseURL(), v1Node.getBaseURL());
+		assertTrue(v1Node.isReplicate());
+		assertTrue(v1Node.isSynchronize());
+		assertEquals(NodeType.MN, v1Node.getType());
+		assertEquals(NodeState.UP, v1Node.getState());
+		assertEquals(node.getSubjectList().get(0).getValue(), v1Node.getSubjectList().get(0).getValue());
+		assertEquals(node.getContactSubjectList().get(0).getValue(), v1Node.getContactSubjectList().get(0).getValue());
+
+		Service service = v1Node.getServices().getServiceList().get(0);
+		assertEquals("MNReplication", service.getName());
+		assertEquals("v1", service.getVersion());
+		assertEquals(Boolean.TRUE, service.getAvailable());
+		ServiceMethodRestriction restriction = service.getRestrictionList().get(0);
+		assertEquals("replicate", restriction.getMethodName());
+		assertEquals("CN=urn:node:CN,DC=dataone,DC=org", restriction.getSubjectList().get(0).getValue());
+
+		Synchronization synchronization = v1Node.getSynchronization();
+		assertEquals("0/3", synchronization.getSchedule().getMin());
+		assertEquals("?", synchronization.getSchedule().getWday());
+		assertEquals(new Date(1000000L), synchronization.getLastHarvested());
+		assertEquals(new Date(2000000L), synchronization.getLastCompleteHarvest());
+
+		assertEquals(Boolean.TRUE, v1Node.getPing().getSuccess());
+		assertEquals(new Date(3000000L), v1Node.getPing().getLastSuccess());
+
+		NodeReplicationPolicy policy = v1Node.getNodeReplicationPolicy();
+		assertEquals(BigInteger.valueOf(1024L), policy.getMaxObjectSize());
+		assertEquals(BigInteger.valueOf(4096L), policy.getSpaceAllocated());
+		assertEquals("urn:node:otherMN", policy.getAllowedNodeList().get(0).getValue());
+		assertEquals("text/csv", policy.getAllowedObjectFormatList().get(0).getValue());
+	}
+
+	@Test
+	public void testToV1_sharesNoMutableState() {
+		org.dataone.service.types.v2.Node node = fullNode();
+		Node v1Node = NodeTypeConverter.toV1(node);
+
+		assertNotSame(node.getIdentifier(), v1Node.getIdentifier());
+		assertNotSame(node.getServices(), v1Node.getServices());
+		assertNotSame(node.getServices().getServiceList().get(0), v1Node.getServices().getServiceList().get(0));
+		assertNotSame(node.getSynchronization().getSchedule(), v1Node.getSynchronization().getSchedule());
+		assertNotSame(node.getSynchronization().getLastHarvested(), v1Node.getSynchronization().getLastHarvested());
+		assertNotSame(node.getNodeReplicationPolicy(), v1Node.getNodeReplicationPolicy());
+		assertNotSame(node.getPing(), v1Node.getPing());
+		assertNotSame(node.getSubjectList(), v1Node.getSubjectList());
+
+		v1Node.getServices().getServiceList().get(0).setName("changed");
+		assertEquals("MNReplication", node.getServices().getServiceList().get(0).getName());
+	}
+
+	@Test
+	public void testToV2_roundTrip() {
+		org.dataone.service.types.v2.Node node = NodeTypeConverter.toV2(NodeTypeConverter.toV1(fullNode()));
+
+		assertEquals("urn:node:testMN", node.getIdentifier().getValue());
+		assertEquals("MNReplication", node.getServices().getServiceList().get(0).getName());
+		assertEquals("0/3", node.getSynchronization().getSchedule().getMin());
+		assertEquals(BigInteger.valueOf(1024L), node.getNodeReplicationPolicy().getMaxObjectSize());
+		// v1 nodes have no properties
+		assertTrue(node.getPropertyList() == null || node.getPropertyList().isEmpty());
+	}
+
+	@Test
+	public void testNullFields() {
+		org.dataone.service.types.v2.Node node = new org.dataone.service.types.v2.Node();
+		node.setIdentifier(nodeReference("urn:node:empty"));
+
+		Node v1Node = NodeTypeConverter.toV1(node);
+		assertEquals("urn:node:empty", v1Node.getIdentifier().getValue());
+		assertNull(v1Node.getServices());
+		assertNull(v1Node.getSynchronization());
+		assertNull(v1Node.getPing());
+		assertNull(v1Node.getNodeReplicationPolicy());
+		assertNull(NodeTypeConverter.toV1((org.dataone.service.types.v2.Node) null));
+	}
+}
@@ -0,0 +1,241 @@
+package org.dataone.service.cn.v2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dataone.service.exceptions.NotFound;
+import org.dataone.service.exceptions.NotImplemented;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.types.v2.NodeList;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.hazelcast.config.Config;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.HazelcastInstance;
+
+/*
+ * runs the cache against an embedded cluster of two Hazelcast members in this JVM
+ */
+public class ClusterNodeRegistryCacheTest {
+
+	private static HazelcastInstance memberA;
+	private static HazelcastInstance memberB;
+
+	/*
+	 * counts the LDAP loads of the whole cluster
+	 */
+	private static class CountingLoader implements ClusterNodeRegistryCache.NodeListLoader,
+			NodeCapabilitiesCache.NodeLoader {
+
+		final AtomicInteger nodeListLoads = new AtomicInteger();
+		final ConcurrentHashMap<String, AtomicInteger> nodeLoads = new ConcurrentHashMap<String, AtomicInteger>();
+		volatile boolean notFound = false;
+
+		@Override
+		public NodeList load() throws NotImplemented, ServiceFailure {
+			nodeListLoads.incrementAndGet();
+			List<Node> nodes = new ArrayList<Node>();
+			nodes.add(node("urn:node:A"));
+			NodeList nodeList = new NodeList();
+			nodeList.setNodeList(nodes);
+			return nodeList;
+		}
+
+		@Override
+		public Node load(String nodeId) throws ServiceFailure, NotFound {
+			nodeLoads.putIfAbsent(nodeId, new AtomicInteger());
+			nodeLoads.get(nodeId).incrementAndGet();
+			if (notFound) {
+				throw new NotFound("4801", nodeId + " not found");
+			}
+			return node(nodeId);
+		}
+
+		int nodeLoads(String nodeId) {
+			AtomicInteger count = nodeLoads.get(nodeId);
+			return count == null ? 0 : count.get();
+		}
+	}
+
+	private static Node node(String nodeId) {
+		Node node = new Node();
+		NodeReference nodeReference = new NodeReference();
+		nodeReference.setValue(nodeId);
+		node.setIdentifier(nodeReference);
+		return node;
+	}
+
+	private static HazelcastInstance newMember() {
+		Config config = new Config();
+		config.getGroupConfig().setName("noderegistryClusterTest");
+		config.getNetworkConfig().setPort(5721);
+		config.getNetworkConfig().getJoin().getMulticastConfig().setEnabled(false);
+		config.getNetworkConfig().getJoin().getTcpIpConfig().addMember("127.0.0.1").setEnabled(true);
+		return Hazelcast.newHazelcastInstance(ClusterNodeRegistryCache.configureNearCache(config, 60, 100));
+	}
+
+	@BeforeClass
+	public static void startCluster() {
+		memberA = newMember();
+		memberB = newMember();
+	}
+
+	@AfterClass
+	public static void stopCluster() {
+		Hazelcast.shutdownAll();
+	}
+
+	@Before
+	public void clearMaps() {
+		memberA.getMap(ClusterNodeRegistryCache.NODES_MAP).clear();
+		memberA.getMap(ClusterNodeRegistryCache.NODELIST_MAP).clear();
+	}
+
+	@Test
+	public void testConfigureNearCache() {
+		Config config = ClusterNodeRegistryCache.configureNearCache(new Config(), 30, 10);
+		assertNotNull(config.getMapConfig(ClusterNodeRegistryCache.NODES_MAP).getNearCacheConfig());
+		assertEquals(30, config.getMapConfig(ClusterNodeRegistryCache.NODELIST_MAP).getNearCacheConfig()
+				.getTimeToLiveSeconds());
+		assertTrue(config.getMapConfig(ClusterNodeRegistryCache.NODES_MAP).getNearCacheConfig()
+				.isInvalidateOnChange());
+	}
+
+	@Test
+	public void testNodeList_loadedOnceForTheCluster() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		ClusterNodeRegistryCache cacheA = new ClusterNodeRegistryCache(memberA, loader, loader, 60000L, 60000L);
+		ClusterNodeRegistryCache cacheB = new ClusterNodeRegistryCache(memberB, loader, loader, 60000L, 60000L);
+
+		NodeListSnapshot snapshotA = cacheA.getNodeListSnapshot(60000L, 60000L);
+		NodeListSnapshot snapshotB = cacheB.getNodeListSnapshot(60000L, 60000L);
+		assertEquals(1, loader.nodeListLoads.get());
+		assertEquals(snapshotA.getVersion(), snapshotB.getVersion());
+		assertEquals(1, snapshotB.getNodeList().sizeNodeList());
+		assertSame("the local snapshot should be reused for the same version", snapshotB,
+				cacheB.getNodeListSnapshot(60000L, 60000L));
+	}
+
+	@Test
+	public void testNodeList_invalidatedAcrossTheCluster() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		ClusterNodeRegistryCache cacheA = new ClusterNodeRegistryCache(memberA, loader, loader, 60000L, 60000L);
+		ClusterNodeRegistryCache cacheB = new ClusterNodeRegistryCache(memberB, loader, loader, 60000L, 60000L);
+
+		long version = cacheA.getNodeListSnapshot(60000L, 60000L).getVersion();
+		cacheB.invalidateNodeList();
+		assertEquals(version + 1, cacheA.getNodeListSnapshot(60000L, 60000L).getVersion());
+		assertEquals(version + 1, cacheB.getNodeListSnapshot(60000L, 60000L).getVersion());
+		assertEquals(2, loader.nodeListLoads.get());
+	}
+
+	@Test
+	public void testNodeList_loadedWithoutAStuckRefreshLock() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		ClusterNodeRegistryCache cacheA = new ClusterNodeRegistryCache(memberA, loader, loader, 60000L, 60000L);
+		ClusterNodeRegistryCache cacheB = new ClusterNodeRegistryCache(memberB, loader, loader, 60000L, 100L);
+		long version = cacheA.getNodeListSnapshot(60000L, 60000L).getVersion();
+
+		// another member holds the refresh lock and never releases it
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread stuck = new Thread() {
+			@Override
+			public void run() {
+				memberA.getLock(ClusterNodeRegistryCache.REFRESH_LOCK).lock();
+				locked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+				} finally {
+					memberA.getLock(ClusterNodeRegistryCache.REFRESH_LOCK).unlock();
+				}
+			}
+		};
+		stuck.start();
+		locked.await();
+		try {
+			Thread.sleep(10L);
+			assertEquals("an expired nodelist is served while it is not too stale", version,
+					cacheB.getNodeListSnapshot(0L, 60000L).getVersion());
+			assertEquals(1, loader.nodeListLoads.get());
+			assertEquals("a nodelist past the maximum staleness is loaded after the lock timeout",
+					version + 1, cacheB.getNodeListSnapshot(0L, 5L).getVersion());
+			assertEquals(2, loader.nodeListLoads.get());
+			assertEquals(version + 1, cacheA.getNodeListSnapshot(60000L, 60000L).getVersion());
+		} finally {
+			release.countDown();
+			stuck.join();
+		}
+	}
+
+	@Test
+	public void testRefreshNodeList_skippedWhenRecentlyRefreshed() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		ClusterNodeRegistryCache cacheA = new ClusterNodeRegistryCache(memberA, loader, loader, 60000L, 60000L);
+		ClusterNodeRegistryCache cacheB = new ClusterNodeRegistryCache(memberB, loader, loader, 60000L, 60000L);
+
+		assertTrue(cacheA.refreshNodeList(60000L));
+		assertFalse("another member has just refreshed", cacheB.refreshNodeList(60000L));
+		assertEquals(1, loader.nodeListLoads.get());
+		assertTrue(cacheB.refreshNodeList(0L));
+		assertEquals(2, loader.nodeListLoads.get());
+	}
+
+	@Test
+	public void testGetNode_readThrough() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		ClusterNodeRegistryCache cacheA = new ClusterNodeRegistryCache(memberA, loader, loader, 60000L, 60000L);
+		ClusterNodeRegistryCache cacheB = new ClusterNodeRegistryCache(memberB, loader, loader, 60000L, 60000L);
+
+		assertEquals("urn:node:A", cacheA.getNode("urn:node:A").getIdentifier().getValue());
+		assertEquals("urn:node:A", cacheB.getNode("urn:node:A").getIdentifier().getValue());
+		assertEquals(1, loader.nodeLoads("urn:node:A"));
+
+		cacheB.invalidate("urn:node:A");
+		cacheA.getNode("urn:node:A");
+		assertEquals(2, loader.nodeLoads("urn:node:A"));
+	}
+
+	@Test
+	public void testGetNode_notFoundIsNotCached() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		loader.notFound = true;
+		ClusterNodeRegistryCache cacheA = new ClusterNodeRegistryCache(memberA, loader, loader, 60000L, 60000L);
+		ClusterNodeRegistryCache cacheB = new ClusterNodeRegistryCache(memberB, loader, loader, 60000L, 60000L);
+
+		try {
+			cacheA.getNode("urn:node:missing");
+			fail("NotFound expected");
+		} catch (NotFound expected) {
+		}
+		loader.notFound = false;
+		assertNotNull(cacheB.getNode("urn:node:missing"));
+		assertEquals(2, loader.nodeLoads("urn:node:missing"));
+	}
+
+	@Test
+	public void testGetNode_zeroTimeToLiveAlwaysReloads() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		ClusterNodeRegistryCache cacheA = new ClusterNodeRegistryCache(memberA, loader, loader, 0L, 60000L);
+
+		cacheA.getNode("urn:node:A");
+		cacheA.getNode("urn:node:A");
+		assertEquals(2, loader.nodeLoads("urn:node:A"));
+	}
+}
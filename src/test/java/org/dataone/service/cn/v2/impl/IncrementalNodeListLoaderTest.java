@@ -0,0 +1,213 @@
+package org.dataone.service.cn.v2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.dataone.cn.ldap.NodeFacade;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v1.Service;
+import org.dataone.service.types.v1.ServiceMethodRestriction;
+import org.dataone.service.types.v1.Services;
+import org.dataone.service.types.v2.Node;
+import org.dataone.service.types.v2.NodeList;
+import org.dataone.service.types.v2.Property;
+import org.junit.Test;
+
+public class IncrementalNodeListLoaderTest {
+
+	private static Node node(String nodeId) {
+		Node node = new Node();
+		NodeReference nodeReference = new NodeReference();
+		nodeReference.setValue(nodeId);
+		node.setIdentifier(nodeReference);
+		return node;
+	}
+
+	private static NodeList nodeList(Node... nodes) {
+		List<Node> list = new ArrayList<Node>();
+		for (Node node : nodes) {
+			list.add(node);
+		}
+		NodeList nodeList = new NodeList();
+		nodeList.setNodeList(list);
+		return nodeList;
+	}
+
+	private static Set<String> ids(String... nodeIds) {
+		Set<String> set = new HashSet<String>();
+		for (String nodeId : nodeIds) {
+			set.add(nodeId);
+		}
+		return set;
+	}
+
+	@Test
+	public void testPatchNodeList_replacesInPlace() {
+		Node a = node("urn:node:A");
+		Node b = node("urn:node:B");
+		Node c = node("urn:node:C");
+		NodeList current = nodeList(a, b, c);
+		Node newB = node("urn:node:B");
+		Map<String, Node> reloaded = new HashMap<String, Node>();
+		reloaded.put("urn:node:B", newB);
+
+		NodeList patched = IncrementalNodeListLoader.patchNodeList(current, ids("urn:node:B"), reloaded);
+
+		assertEquals(3, patched.sizeNodeList());
+		assertSame(a, patched.getNodeList().get(0));
+		assertSame(newB, patched.getNodeList().get(1));
+		assertSame(c, patched.getNodeList().get(2));
+		// the current NodeList belongs to a published snapshot and must not change
+		assertSame(b, current.getNodeList().get(1));
+	}
+
+	@Test
+	public void testPatchNodeList_removesAndAppends() {
+		Node a = node("urn:node:A");
+		Node b = node("urn:node:B");
+		NodeList current = nodeList(a, b);
+		Node d = node("urn:node:D");
+		Map<String, Node> reloaded = new HashMap<String, Node>();
+		reloaded.put("urn:node:D", d);
+
+		// A was deleted or is no longer approved, D was approved
+		NodeList patched = IncrementalNodeListLoader.patchNodeList(current, ids("urn:node:A", "urn:node:D"), reloaded);
+
+		assertEquals(2, patched.sizeNodeList());
+		assertSame(b, patched.getNodeList().get(0));
+		assertSame(d, patched.getNodeList().get(1));
+	}
+
+	@Test
+	public void testCountEntries() {
+		Node node = node("urn:node:A");
+		assertEquals(1, IncrementalNodeListLoader.countEntries(node));
+
+		Service service = new Service();
+		service.setName("MNCore");
+		service.addRestriction(new ServiceMethodRestriction());
+		service.addRestriction(new ServiceMethodRestriction());
+		Services services = new Services();
+		services.addService(service);
+		services.addService(new Service());
+		node.setServices(services);
+		node.addProperty(new Property());
+
+		// node + 2 services + 2 restrictions + 1 property
+		assertEquals(6, IncrementalNodeListLoader.countEntries(node));
+	}
+
+	@Test
+	public void testFindInconsistentNodeIds() {
+		Node a = node("urn:node:A");
+		Node b = node("urn:node:B");
+		b.addProperty(new Property());
+		Node c = node("urn:node:C");
+		NodeList current = nodeList(a, b, c);
+
+		Map<String, Integer> entryCounts = new HashMap<String, Integer>();
+		// A is unchanged
+		entryCounts.put("urn:node:A", 1);
+		// B lost its property
+		entryCounts.put("urn:node:B", 1);
+		// C is gone, D is new
+		entryCounts.put("urn:node:D", 3);
+
+		Set<String> inconsistent = IncrementalNodeListLoader.findInconsistentNodeIds(current, entryCounts);
+
+		assertEquals(3, inconsistent.size());
+		assertTrue(inconsistent.containsAll(ids("urn:node:B", "urn:node:C", "urn:node:D")));
+	}
+
+	/*
+	 * NodeFacade serving nodes from memory, without timestamps: entries are never reported as modified
+	 */
+	private static class MemoryNodeFacade extends NodeFacade {
+		private final Map<String, Node> nodes = new HashMap<String, Node>();
+		private final List<Collection<String>> reloads = new ArrayList<Collection<String>>();
+		private boolean failing = false;
+
+		@Override
+		public NodeList getApprovedNodeList() {
+			return nodeList(nodes.values().toArray(new Node[nodes.size()]));
+		}
+
+		@Override
+		public Set<String> getModifiedNodeIds(Date since) throws ServiceFailure {
+			if (failing) {
+				throw new ServiceFailure("-1", "LDAP Service is unresponsive");
+			}
+			return new HashSet<String>();
+		}
+
+		@Override
+		public Map<String, Node> getApprovedNodes(Collection<String> nodeIds) {
+			reloads.add(new HashSet<String>(nodeIds));
+			Map<String, Node> approvedNodes = new HashMap<String, Node>();
+			for (String nodeId : nodeIds) {
+				if (nodes.containsKey(nodeId)) {
+					approvedNodes.put(nodeId, nodes.get(nodeId));
+				}
+			}
+			return approvedNodes;
+		}
+	}
+
+	@Test
+	public void testLoadChanges_dropsReloadedNode() throws Exception {
+		MemoryNodeFacade nodeFacade = new MemoryNodeFacade();
+		nodeFacade.nodes.put("urn:node:A", node("urn:node:A"));
+		nodeFacade.nodes.put("urn:node:B", node("urn:node:B"));
+		// never reconcile, the deletion is only seen through reloadNode
+		IncrementalNodeListLoader loader = new IncrementalNodeListLoader(nodeFacade, 0L, Long.MAX_VALUE / 1000000L);
+		NodeList current = loader.loadAll();
+		assertEquals(2, current.sizeNodeList());
+
+		nodeFacade.nodes.remove("urn:node:B");
+		assertNull(loader.loadChanges(current));
+
+		loader.reloadNode("urn:node:B");
+		NodeList patched = loader.loadChanges(current);
+		assertEquals(1, patched.sizeNodeList());
+		assertEquals("urn:node:A", patched.getNodeList().get(0).getIdentifier().getValue());
+		assertEquals(ids("urn:node:B"), nodeFacade.reloads.get(0));
+
+		// the request is consumed
+		assertNull(loader.loadChanges(patched));
+	}
+
+	@Test
+	public void testLoadChanges_retriesReloadAfterFailure() throws Exception {
+		MemoryNodeFacade nodeFacade = new MemoryNodeFacade();
+		nodeFacade.nodes.put("urn:node:A", node("urn:node:A"));
+		IncrementalNodeListLoader loader = new IncrementalNodeListLoader(nodeFacade, 0L, Long.MAX_VALUE / 1000000L);
+		NodeList current = loader.loadAll();
+
+		nodeFacade.nodes.remove("urn:node:A");
+		loader.reloadNode("urn:node:A");
+		nodeFacade.failing = true;
+		try {
+			loader.loadChanges(current);
+			fail("the refresh should have failed");
+		} catch (ServiceFailure ex) {
+			// expected
+		}
+
+		nodeFacade.failing = false;
+		NodeList patched = loader.loadChanges(current);
+		assertEquals(0, patched.sizeNodeList());
+	}
+}
@@ -0,0 +1,210 @@
+package org.dataone.service.cn.v2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dataone.service.exceptions.NotFound;
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v1.NodeReference;
+import org.dataone.service.types.v2.Node;
+import org.junit.Test;
+
+public class NodeCapabilitiesCacheTest {
+
+	/*
+	 * counts loads per node id, and can hold loads until released
+	 */
+	private static class CountingLoader implements NodeCapabilitiesCache.NodeLoader {
+
+		final ConcurrentHashMap<String, AtomicInteger> loadCounts = new ConcurrentHashMap<String, AtomicInteger>();
+		volatile CountDownLatch release = new CountDownLatch(0);
+		volatile boolean notFound = false;
+
+		@Override
+		public Node load(String nodeId) throws ServiceFailure, NotFound {
+			loadCounts.putIfAbsent(nodeId, new AtomicInteger());
+			loadCounts.get(nodeId).incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new ServiceFailure("-1", "interrupted");
+			}
+			if (notFound) {
+				throw new NotFound("4801", nodeId + " not found");
+			}
+			Node node = new Node();
+			NodeReference nodeReference = new NodeReference();
+			nodeReference.setValue(nodeId);
+			node.setIdentifier(nodeReference);
+			return node;
+		}
+
+		int loads(String nodeId) {
+			AtomicInteger count = loadCounts.get(nodeId);
+			return count == null ? 0 : count.get();
+		}
+	}
+
+	@Test
+	public void testGet_cachedUntilExpired() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		NodeCapabilitiesCache cache = new NodeCapabilitiesCache(loader, 60000L, 10);
+
+		Node first = cache.get("urn:node:A");
+		Node second = cache.get("urn:node:A");
+		assertSame("the cached node should be returned", first, second);
+		assertEquals(1, loader.loads("urn:node:A"));
+	}
+
+	@Test
+	public void testGet_zeroExpiryAlwaysReloads() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		NodeCapabilitiesCache cache = new NodeCapabilitiesCache(loader, 0L, 10);
+
+		Node first = cache.get("urn:node:A");
+		Node second = cache.get("urn:node:A");
+		assertNotSame(first, second);
+		assertEquals(2, loader.loads("urn:node:A"));
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		NodeCapabilitiesCache cache = new NodeCapabilitiesCache(loader, 60000L, 10);
+
+		cache.get("urn:node:A");
+		cache.invalidate("urn:node:A");
+		cache.get("urn:node:A");
+		assertEquals(2, loader.loads("urn:node:A"));
+	}
+
+	@Test
+	public void testGet_concurrentMissesLoadOnce() throws Exception {
+		final CountingLoader loader = new CountingLoader();
+		loader.release = new CountDownLatch(1);
+		final NodeCapabilitiesCache cache = new NodeCapabilitiesCache(loader, 60000L, 10);
+
+		int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Node>> results = new ArrayList<Future<Node>>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(new Callable<Node>() {
+					@Override
+					public Node call() throws Exception {
+						return cache.get("urn:node:A");
+					}
+				}));
+			}
+			// give every thread the chance to miss before the load completes
+			Thread.sleep(200L);
+			loader.release.countDown();
+
+			Node expected = results.get(0).get(5, TimeUnit.SECONDS);
+			for (Future<Node> result : results) {
+				assertSame(expected, result.get(5, TimeUnit.SECONDS));
+			}
+			assertEquals("concurrent misses should be coalesced", 1, loader.loads("urn:node:A"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testGet_differentNodesDoNotBlock() throws Exception {
+		final CountingLoader loader = new CountingLoader();
+		loader.release = new CountDownLatch(1);
+		final NodeCapabilitiesCache cache = new NodeCapabilitiesCache(new NodeCapabilitiesCache.NodeLoader() {
+			@Override
+			public Node load(String nodeId) throws ServiceFailure, NotFound {
+				if (nodeId.equals("urn:node:SLOW")) {
+					return loader.load(nodeId);
+				}
+				Node node = new Node();
+				return node;
+			}
+		}, 60000L, 10);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			Future<Node> slow = executor.submit(new Callable<Node>() {
+				@Override
+				public Node call() throws Exception {
+					return cache.get("urn:node:SLOW");
+				}
+			});
+			Thread.sleep(100L);
+			// must return while the slow node is still loading
+			cache.get("urn:node:FAST");
+			assertTrue(!slow.isDone());
+			loader.release.countDown();
+			slow.get(5, TimeUnit.SECONDS);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testGet_failureIsNotCached() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		loader.notFound = true;
+		NodeCapabilitiesCache cache = new NodeCapabilitiesCache(loader, 60000L, 10);
+
+		try {
+			cache.get("urn:node:A");
+			fail("NotFound should be thrown");
+		} catch (NotFound expected) {
+		}
+		assertEquals(0, cache.size());
+
+		loader.notFound = false;
+		cache.get("urn:node:A");
+		assertEquals(2, loader.loads("urn:node:A"));
+	}
+
+	@Test
+	public void testGet_evictsLeastRecentlyUsed() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		NodeCapabilitiesCache cache = new NodeCapabilitiesCache(loader, 60000L, 2);
+
+		cache.get("urn:node:A");
+		Thread.sleep(5L);
+		cache.get("urn:node:B");
+		Thread.sleep(5L);
+		cache.get("urn:node:A");
+		Thread.sleep(5L);
+		cache.get("urn:node:C");
+		assertEquals(2, cache.size());
+
+		// B was the least recently used and should have been evicted
+		cache.get("urn:node:A");
+		cache.get("urn:node:B");
+		assertEquals(1, loader.loads("urn:node:A"));
+		assertEquals(2, loader.loads("urn:node:B"));
+	}
+
+	@Test
+	public void testRefreshAll_removesNodesNoLongerFound() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		NodeCapabilitiesCache cache = new NodeCapabilitiesCache(loader, 60000L, 10);
+
+		cache.get("urn:node:A");
+		loader.notFound = true;
+		cache.refreshAll();
+		assertEquals(0, cache.size());
+	}
+}
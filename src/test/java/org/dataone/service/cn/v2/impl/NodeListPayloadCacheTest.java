@@ -0,0 +1,83 @@
+package org.dataone.service.cn.v2.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dataone.service.exceptions.ServiceFailure;
+import org.dataone.service.types.v2.NodeList;
+import org.junit.Test;
+
+public class NodeListPayloadCacheTest {
+
+	private static final byte[] XML = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<ns3:nodeList xmlns:ns3=\"http://ns.dataone.org/service/types/v2.0\"></ns3:nodeList>").getBytes();
+
+	/*
+	 * counts the payloads built, slowly enough for concurrent callers to overlap
+	 */
+	private static class CountingBuilder implements NodeListPayloadCache.PayloadBuilder {
+
+		final AtomicInteger builds = new AtomicInteger();
+
+		@Override
+		public NodeListPayload build(NodeListSnapshot snapshot) throws ServiceFailure {
+			builds.incrementAndGet();
+			try {
+				Thread.sleep(50L);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+			return NodeListPayload.fromXml(XML, snapshot.getVersion(), false);
+		}
+	}
+
+	@Test
+	public void testBuiltOncePerVersion() throws Exception {
+		CountingBuilder builder = new CountingBuilder();
+		final NodeListPayloadCache cache = new NodeListPayloadCache(builder);
+		final NodeListSnapshot snapshot = new NodeListSnapshot(new NodeList(), 1L);
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Callable<NodeListPayload>> requests = new ArrayList<Callable<NodeListPayload>>();
+			for (int i = 0; i < 8; i++) {
+				requests.add(new Callable<NodeListPayload>() {
+					@Override
+					public NodeListPayload call() throws Exception {
+						return cache.get(snapshot);
+					}
+				});
+			}
+			NodeListPayload first = null;
+			for (Future<NodeListPayload> payload : executor.invokeAll(requests)) {
+				if (first == null) {
+					first = payload.get();
+				}
+				assertSame("every caller is served the same payload", first, payload.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, builder.builds.get());
+	}
+
+	@Test
+	public void testNewerVersion() throws Exception {
+		CountingBuilder builder = new CountingBuilder();
+		NodeListPayloadCache cache = new NodeListPayloadCache(builder);
+
+		assertEquals(1L, cache.get(new NodeListSnapshot(new NodeList(), 1L)).getVersion());
+		assertEquals(2L, cache.get(new NodeListSnapshot(new NodeList(), 2L)).getVersion());
+		assertEquals("an older snapshot is served the newer payload", 2L,
+				cache.get(new NodeListSnapshot(new NodeList(), 1L)).getVersion());
+		assertEquals(2, builder.builds.get());
+	}
+}
@@ -0,0 +1,81 @@
+package org.dataone.service.cn.v2.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+public class NodeListPayloadTest {
+
+	private static final byte[] XML = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<ns3:nodeList xmlns:ns3=\"http://ns.dataone.org/service/types/v2.0\"></ns3:nodeList>").getBytes();
+
+	private static byte[] readAll(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = inputStream.read(buffer)) != -1) {
+			outputStream.write(buffer, 0, read);
+		}
+		return outputStream.toByteArray();
+	}
+
+	@Test
+	public void testXmlAndGzip() throws Exception {
+		NodeListPayload payload = NodeListPayload.fromXml(XML, 7L, true);
+
+		assertEquals(7L, payload.getVersion());
+		assertEquals(XML.length, payload.getXmlLength());
+		assertArrayEquals(XML, readAll(payload.getXmlInputStream()));
+		assertTrue(payload.hasGzip());
+		assertArrayEquals(XML, readAll(new GZIPInputStream(payload.getGzipInputStream())));
+
+		ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+		payload.writeGzip(gzipped);
+		assertEquals(payload.getGzipLength(), gzipped.size());
+	}
+
+	@Test
+	public void testWithoutGzip() throws Exception {
+		NodeListPayload payload = NodeListPayload.fromXml(XML, 1L, false);
+
+		assertFalse(payload.hasGzip());
+		assertEquals(-1, payload.getGzipLength());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testWithoutGzip_noStream() throws Exception {
+		NodeListPayload.fromXml(XML, 1L, false).getGzipInputStream();
+	}
+
+	@Test
+	public void testETag() throws Exception {
+		String eTag = NodeListPayload.fromXml(XML, 1L, false).getETag();
+
+		// a strong ETag is quoted and not prefixed with W/
+		assertTrue(eTag.startsWith("\"") && eTag.endsWith("\""));
+		assertEquals("the ETag depends only on the content", eTag,
+				NodeListPayload.fromXml(XML.clone(), 2L, true).getETag());
+		assertFalse(eTag.equals(NodeListPayload.fromXml("<nodeList/>".getBytes(), 1L, false).getETag()));
+	}
+
+	@Test
+	public void testMatches() throws Exception {
+		NodeListPayload payload = NodeListPayload.fromXml(XML, 1L, false);
+		String eTag = payload.getETag();
+
+		assertTrue(payload.matches(eTag));
+		assertTrue(payload.matches("\"other\", " + eTag));
+		assertTrue(payload.matches("W/" + eTag));
+		assertTrue(payload.matches("*"));
+		assertFalse(payload.matches(null));
+		assertFalse(payload.matches("\"other\""));
+	}
+}